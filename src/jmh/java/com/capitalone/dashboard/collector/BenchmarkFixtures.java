@@ -0,0 +1,138 @@
+package com.capitalone.dashboard.collector;
+
+import com.capitalone.dashboard.model.SonarProject;
+import org.apache.commons.io.IOUtils;
+import org.bson.types.ObjectId;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Benchmark inputs of any size, built from the shapes of the json fixtures under src/test/resources.
+ * Every fixture is generated from a fixed seed, so runs compare like with like.
+ */
+final class BenchmarkFixtures {
+    static final String INSTANCE_URL = "http://sonar.com";
+    private static final long SEED = 42;
+
+    private BenchmarkFixtures() {
+    }
+
+    /**
+     * The measures of sonar6measures.json, repeated with varied values until there are {@code size} of them.
+     */
+    static List<SonarJsonReader.SonarMeasure> measures(int size) {
+        try {
+            List<SonarJsonReader.SonarMeasure> template = SonarJsonReader.readComponent(resource("sonar6measures.json"), "component").getMeasures();
+            Random random = new Random(SEED);
+            StringBuilder body = new StringBuilder("{\"component\":{\"measures\":[");
+            for (int i = 0; i < size; i++) {
+                SonarJsonReader.SonarMeasure measure = template.get(i % template.size());
+                if (i > 0) {
+                    body.append(',');
+                }
+                body.append("{\"metric\":\"").append(measure.getMetric())
+                        .append("\",\"value\":\"").append(vary(measure.getValue(), random)).append("\"}");
+            }
+            body.append("]}}");
+            return SonarJsonReader.readComponent(body.toString(), "component").getMeasures();
+        } catch (org.json.simple.parser.ParseException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * sqale_index values in minutes, negative ones included.
+     */
+    static String[] durations(int size) {
+        Random random = new Random(SEED);
+        String[] durations = new String[size];
+        for (int i = 0; i < size; i++) {
+            durations[i] = String.valueOf(random.nextInt(200000) - 20000);
+        }
+        return durations;
+    }
+
+    /**
+     * An /api/projects/search page of {@code size} components shaped like sonar6projects.json.
+     */
+    static String projectListing(int size) {
+        StringBuilder body = new StringBuilder("{\"paging\":{\"pageIndex\":1,\"pageSize\":")
+                .append(size).append(",\"total\":").append(size).append("},\"components\":[");
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                body.append(',');
+            }
+            body.append("{\"organization\":\"default-organization\",\"id\":\"AVu3b-MAphY78UZX").append(i)
+                    .append("\",\"key\":\"").append(projectName(i)).append("\",\"name\":\"").append(projectName(i))
+                    .append("\",\"qualifier\":\"TRK\",\"lastAnalysisDate\":\"").append(analysisDate(i)).append("\"}");
+        }
+        return body.append("]}").toString();
+    }
+
+    /**
+     * Stored projects 0 to {@code size - 1} of the instance, enabled and with an id.
+     */
+    static List<SonarProject> storedProjects(int size) {
+        List<SonarProject> projects = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            SonarProject project = listedProject(i);
+            project.setId(new ObjectId());
+            project.setEnabled(true);
+            projects.add(project);
+        }
+        return projects;
+    }
+
+    static SonarProject listedProject(int index) {
+        SonarProject project = new SonarProject();
+        project.setInstanceUrl(INSTANCE_URL);
+        project.setProjectName(projectName(index));
+        project.setProjectId("AVu3b-MAphY78UZX" + index);
+        return project;
+    }
+
+    /**
+     * Analysis dates in the format of the sonar apis, one minute apart.
+     */
+    static String[] analysisDates(int size) {
+        String[] dates = new String[size];
+        for (int i = 0; i < size; i++) {
+            dates[i] = analysisDate(i);
+        }
+        return dates;
+    }
+
+    private static String analysisDate(int index) {
+        return String.format("2017-%02d-%02dT%02d:%02d:00+0000",
+                index % 12 + 1, index % 28 + 1, index / 60 % 24, index % 60);
+    }
+
+    private static String projectName(int index) {
+        return "com.capitalone.test:TestProject" + index;
+    }
+
+    private static String vary(String value, Random random) {
+        if (value == null || value.startsWith("{")) {
+            return value == null ? "" : value.replace("\"", "\\\"");
+        } else if (value.indexOf('.') > 0) {
+            return String.valueOf(random.nextInt(1000) / 10.0);
+        } else if (value.matches("\\d+")) {
+            return String.valueOf(random.nextInt(1000000));
+        }
+        return value;
+    }
+
+    private static String resource(String name) {
+        try (InputStream in = BenchmarkFixtures.class.getResourceAsStream(name)) {
+            return IOUtils.toString(in, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.capitalone.dashboard.collector;
+
+import com.capitalone.dashboard.model.CodeQualityMetric;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Formatting of measures into code quality metrics, and of sqale_index durations on their own.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dlogback.configurationFile=logback-benchmark.xml")
+public class MetricFormattingBenchmark {
+
+    @Param({"15", "150", "1500"})
+    private int size;
+
+    private DefaultSonar6Client client;
+    private List<SonarJsonReader.SonarMeasure> measures;
+    private String[] durations;
+
+    @Setup
+    public void setUp() {
+        client = new DefaultSonar6Client(null, new SonarSettings());
+        measures = BenchmarkFixtures.measures(size);
+        durations = BenchmarkFixtures.durations(size);
+    }
+
+    @Benchmark
+    public List<CodeQualityMetric> parseCodeQualityMetrics() {
+        return client.parseCodeQualityMetrics(measures);
+    }
+
+    @Benchmark
+    public void formatDuration(Blackhole blackhole) {
+        for (String duration : durations) {
+            blackhole.consume(client.format(duration));
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.capitalone.dashboard.collector;
+
+import com.capitalone.dashboard.model.SonarProject;
+import org.json.simple.parser.ParseException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of a project listing page into projects, the way {@link DefaultSonar6Client} reads each page.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dlogback.configurationFile=logback-benchmark.xml")
+public class ProjectListingBenchmark {
+
+    @Param({"500", "2000", "10000"})
+    private int size;
+
+    private DefaultSonar6Client client;
+    private String listing;
+
+    @Setup
+    public void setUp() {
+        client = new DefaultSonar6Client(null, new SonarSettings());
+        listing = BenchmarkFixtures.projectListing(size);
+    }
+
+    @Benchmark
+    public List<SonarProject> parseProjectListing() throws ParseException {
+        List<SonarProject> projects = new ArrayList<>(size);
+        SonarJsonReader.readPage(listing, "components",
+                component -> projects.add(client.parseSonarProject(BenchmarkFixtures.INSTANCE_URL, component)));
+        return projects;
+    }
+}
@@ -0,0 +1,73 @@
+package com.capitalone.dashboard.collector;
+
+import com.capitalone.dashboard.model.SonarCollector;
+import com.capitalone.dashboard.model.SonarProject;
+import com.capitalone.dashboard.repository.SonarProjectRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reconciliation of one 500 project listing page against the stored projects of the instance. Half of
+ * the page is stored already and unchanged, the other half is new. Repository writes are no-ops.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dlogback.configurationFile=logback-benchmark.xml")
+public class ReconciliationBenchmark {
+    private static final int PAGE_SIZE = 500;
+
+    @Param({"1000", "10000", "100000"})
+    private int stored;
+
+    private SonarCollectorTask task;
+    private SonarCollector collector;
+    private SonarProjectIndex existingProjects;
+    private List<SonarProject> page;
+
+    @Setup
+    public void setUp() {
+        SonarProjectRepository repository = (SonarProjectRepository) Proxy.newProxyInstance(
+                SonarProjectRepository.class.getClassLoader(), new Class<?>[]{SonarProjectRepository.class},
+                (proxy, method, args) -> null);
+        task = new SonarCollectorTask(null, null, repository, null, null, new SonarSettings(), null, null, null, null,
+                new SonarCollectorMetrics(new SimpleMeterRegistry()), null, null);
+        collector = SonarCollector.prototype(Collections.singletonList(BenchmarkFixtures.INSTANCE_URL), Collections.singletonList("sonar"));
+        existingProjects = new SonarProjectIndex(BenchmarkFixtures.storedProjects(stored));
+    }
+
+    /**
+     * A fresh page for every call, as reconciliation updates the projects it is given.
+     */
+    @Setup(Level.Invocation)
+    public void listPage() {
+        page = new ArrayList<>(PAGE_SIZE);
+        for (int i = stored - PAGE_SIZE / 2; i < stored + PAGE_SIZE / 2; i++) {
+            page.add(BenchmarkFixtures.listedProject(i));
+        }
+    }
+
+    @Benchmark
+    public int addNewProjects() {
+        return task.addNewProjects(page, existingProjects, collector);
+    }
+}
@@ -0,0 +1,47 @@
+package com.capitalone.dashboard.collector;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of the analysis dates of a listing or of project_analyses responses.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dlogback.configurationFile=logback-benchmark.xml")
+public class TimestampBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    private int size;
+
+    private DefaultSonar6Client client;
+    private String[] dates;
+
+    @Setup
+    public void setUp() {
+        client = new DefaultSonar6Client(null, new SonarSettings());
+        dates = BenchmarkFixtures.analysisDates(size);
+    }
+
+    @Benchmark
+    public void parseTimestamps(Blackhole blackhole) {
+        for (String date : dates) {
+            blackhole.consume(client.timestamp(date));
+        }
+    }
+}
@@ -1,10 +1,10 @@
 package com.capitalone.dashboard.collector;
 
 import com.capitalone.dashboard.client.RestClient;
+import com.capitalone.dashboard.client.RestUserInfo;
 import com.capitalone.dashboard.model.SonarProject;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.json.simple.JSONObject;
 import org.json.simple.parser.ParseException;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
@@ -24,22 +24,27 @@ public class DefaultSonar56Client extends DefaultSonarClient {
       super(restClient, settings);
     }
 
+    private DefaultSonar56Client(DefaultSonar56Client client, RestUserInfo userInfo) {
+        super(client, userInfo);
+    }
+
+    @Override
+    protected DefaultSonarClient bind(RestUserInfo userInfo) {
+        return new DefaultSonar56Client(this, userInfo);
+    }
+
     @Override
     public List<SonarProject> getProjects(String instanceUrl) {
         List<SonarProject> projects = new ArrayList<>();
         String url = instanceUrl + URL_PROJECTS;
         try {
-
-            for (Object obj : parseAsArray(url)) {
-                JSONObject prjData = (JSONObject) obj;
-
+            SonarJsonReader.readArray(getResponseBody(url), component -> {
                 SonarProject project = new SonarProject();
                 project.setInstanceUrl(instanceUrl);
-                project.setProjectId(str(prjData, ID));
-                project.setProjectName(str(prjData, "nm"));
+                project.setProjectId(component.getId());
+                project.setProjectName(component.getName());
                 projects.add(project);
-            }
-
+            });
         } catch (ParseException e) {
             LOG.error("Could not parse response from: " + url, e);
         } catch (RestClientException rce) {
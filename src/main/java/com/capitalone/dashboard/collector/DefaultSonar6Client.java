@@ -2,10 +2,14 @@ package com.capitalone.dashboard.collector;
 
 import com.capitalone.dashboard.client.RestClient;
 import com.capitalone.dashboard.client.RestUserInfo;
+import com.capitalone.dashboard.collector.SonarJsonReader.SonarAnalysis;
+import com.capitalone.dashboard.collector.SonarJsonReader.SonarComponent;
+import com.capitalone.dashboard.collector.SonarJsonReader.SonarMeasure;
 import com.capitalone.dashboard.model.CodeQualityMetric;
 import com.capitalone.dashboard.model.CodeQualityMetricStatus;
 import com.capitalone.dashboard.model.CodeQualityType;
 import com.capitalone.dashboard.util.SonarDashboardUrl;
+import io.micrometer.core.instrument.Timer;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.lang3.StringUtils;
@@ -20,16 +24,30 @@ import org.json.simple.parser.ParseException;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.ResponseEntity;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.stereotype.Component;
 import org.springframework.web.client.HttpClientErrorException;
 import org.springframework.web.client.RestClientException;
 
 import java.math.BigDecimal;
+import java.net.URLEncoder;
 import java.nio.charset.Charset;
-import java.text.SimpleDateFormat;
+import java.nio.charset.StandardCharsets;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 @Component("DefaultSonar6Client")
 public class DefaultSonar6Client implements SonarClient {
@@ -37,16 +55,22 @@ public class DefaultSonar6Client implements SonarClient {
     private static final String URL_RESOURCES = "/api/components/search?qualifiers=TRK&ps=500";
     private static final String URL_RESOURCES_AUTHENTICATED = "/api/projects/search?ps=500";
     private static final String URL_RESOURCE_DETAILS = "/api/measures/component?format=json&componentId=%s&metricKeys=%s&includealerts=true";
+    static final String URL_MEASURES_SEARCH = "/api/measures/search?projectKeys=%s&metricKeys=%s";
     static final String URL_PROJECT_ANALYSES = "/api/project_analyses/search?project=%s";
+    static final String URL_PROJECTS_BY_KEY = "/api/projects/search?ps=500&projects=%s";
+    // the last analysis dates of a batch are read from the same search
+    static final String URL_ANALYSIS_DATES = URL_PROJECTS_BY_KEY;
     private static final String URL_PROJECT_INFO = "%s/api/components/show?component=%s";
     private static final String URL_QUALITY_PROFILES = "/api/qualityprofiles/search";
     private static final String URL_QUALITY_PROFILE_PROJECT_DETAILS = "/api/qualityprofiles/projects?key=";
     private static final String URL_QUALITY_PROFILE_CHANGES = "/api/qualityprofiles/changelog?profileKey=";
     private static final String DEFAULT_METRICS = "ncloc,violations,new_vulnerabilities,critical_violations,major_violations,blocker_violations,tests,test_success_density,test_errors,test_failures,coverage,line_coverage,sqale_index,alert_status,quality_gate_details";
     protected final String metrics;
+    // listing pages fetched concurrently per discovery
+    protected final int pageFetchThreads;
+    // list catalogues beyond MAX_SEARCH_RESULTS through the database backed project search
+    protected final boolean partitionedDiscovery;
 
-    private static final String DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ssZ";
-    private static final String ID = "id";
     protected static final String NAME = "name";
     protected static final String KEY = "key";
     protected static final String METRIC = "metric";
@@ -54,22 +78,30 @@ public class DefaultSonar6Client implements SonarClient {
     protected static final String VALUE = "value";
     private static final String STATUS_WARN = "WARN";
     private static final String STATUS_ALERT = "ALERT";
-    private static final String DATE = "date";
-    private static final String EVENTS = "events";
+    protected static final String LAST_ANALYSIS_DATE = "lastAnalysisDate";
     private static final String COMPONENT = "component";
+    private static final String COMPONENTS = "components";
 
     protected final RestClient restClient;
-    protected RestUserInfo userInfo = new RestUserInfo("","");
+    protected final RestUserInfo userInfo;
+    // times the measures and analyses calls of a refresh as phases of their own, null leaves them untimed
+    protected final SonarCollectorMetrics collectorMetrics;
 
-    private static final String MINUTES_FORMAT = "%smin";
-    private static final String HOURS_FORMAT = "%sh";
-    private static final String DAYS_FORMAT = "%sd";
-    private static final int HOURS_IN_DAY = 8;
     private static final int PAGE_SIZE=500;
+    // sonar stops paging a search of its index after this many results
+    private static final int MAX_SEARCH_RESULTS = 10000;
 
-    @Autowired
     public DefaultSonar6Client(RestClient restClient, SonarSettings settings) {
+        this(restClient, settings, null);
+    }
+
+    @Autowired
+    public DefaultSonar6Client(RestClient restClient, SonarSettings settings, SonarCollectorMetrics collectorMetrics) {
         this.restClient = restClient;
+        this.collectorMetrics = collectorMetrics;
+        this.userInfo = new RestUserInfo("","");
+        this.pageFetchThreads = settings.getPageFetchThreads();
+        this.partitionedDiscovery = settings.isPartitionedDiscovery();
 
         // override default sonar metrics to fetch via properties file settings
         if (!StringUtils.isEmpty(settings.getMetrics63andAbove())) {
@@ -79,30 +111,54 @@ public class DefaultSonar6Client implements SonarClient {
         }
     }
 
+    /**
+     * Copies the shared configuration of {@code client} and binds it to {@code userInfo}.
+     */
+    protected DefaultSonar6Client(DefaultSonar6Client client, RestUserInfo userInfo) {
+        this.restClient = client.restClient;
+        this.metrics = client.metrics;
+        this.pageFetchThreads = client.pageFetchThreads;
+        this.partitionedDiscovery = client.partitionedDiscovery;
+        this.collectorMetrics = client.collectorMetrics;
+        this.userInfo = userInfo;
+    }
+
     @Override
-    public void setServerCredentials(String username, String password, String token) {
-        // use token when given
-        if (StringUtils.isNotBlank(token)) {
-            this.userInfo.setToken(token);
-            this.userInfo.setUserId(null);
-            this.userInfo.setPassCode(null);
-        }
+    public DefaultSonar6Client withServerCredentials(String username, String password, String token) {
+        return bind(toUserInfo(username, password, token));
+    }
 
-        // but username and password override token
-        if(StringUtils.isNotBlank(username)){
-            this.userInfo = new RestUserInfo(username, password);
-        }
+    protected DefaultSonar6Client bind(RestUserInfo userInfo) {
+        return new DefaultSonar6Client(this, userInfo);
+    }
 
+    private static RestUserInfo toUserInfo(String username, String password, String token) {
         if (StringUtils.isNotBlank(token)
                 && StringUtils.isNotBlank(username)) {
             LOG.warn("Only one mode of authentication is needed. Either token or username/password. " +
                     "Both modes were detected. Using username/password");
         }
+
+        // username and password override token
+        if (StringUtils.isNotBlank(username)) {
+            return new RestUserInfo(username, password);
+        }
+        // use token when given
+        if (StringUtils.isNotBlank(token)) {
+            return new RestUserInfo(null, null, token);
+        }
+        return new RestUserInfo("","");
     }
 
     @Override
     public List<SonarProject> getProjects(String instanceUrl) {
         List<SonarProject> projects = new ArrayList<>();
+        forEachProjectPage(instanceUrl, projects::addAll);
+        return projects;
+    }
+
+    @Override
+    public void forEachProjectPage(String instanceUrl, Consumer<List<SonarProject>> pageConsumer) {
         String url = "";
         // take authenticated route
         if(Objects.nonNull(userInfo.getToken())){
@@ -112,76 +168,160 @@ public class DefaultSonar6Client implements SonarClient {
         }
 
         try {
-            JSONArray jsonArray = getProjectsWithPaging(url);
-            for (Object obj : jsonArray) {
-                JSONObject prjData = (JSONObject) obj;
-
-                SonarProject project = parseSonarProject(instanceUrl, prjData);
-                projects.add(project);
-            }
-
+            getProjectsWithPaging(url, instanceUrl, pageConsumer);
         } catch (ParseException e) {
             LOG.error("Could not parse response from: " + url, e);
         } catch (RestClientException rce) {
             LOG.error(rce);
         }
-
-        return projects;
     }
 
-    protected SonarProject parseSonarProject(String instanceUrl, JSONObject prjData) {
+    protected SonarProject parseSonarProject(String instanceUrl, SonarComponent component) {
         SonarProject project = new SonarProject();
         project.setInstanceUrl(instanceUrl);
-        project.setProjectId(str(prjData, ID));
-        project.setProjectName(str(prjData, NAME));
+        project.setProjectId(component.getId());
+        project.setProjectKey(component.getKey());
+        project.setProjectName(component.getName());
+        project.setLastAnalysisDate(timestamp(component.getLastAnalysisDate()));
         return project;
     }
 
-    private JSONArray getProjectsWithPaging(String url) throws ParseException {
-        String key = "components";
-        Long totalRecords = getTotalCount(parseJsonObject(url, "paging"));
+    private void getProjectsWithPaging(String url, String instanceUrl, Consumer<List<SonarProject>> pageConsumer) throws ParseException {
+        long totalRecords = SonarJsonReader.readPage(getResponseBody(url), COMPONENTS, null);
         int pages = (int) Math.ceil((double)totalRecords / PAGE_SIZE);
-        JSONArray jsonArray = new JSONArray();
-        jsonArray = totalRecords > PAGE_SIZE ? getProjects(url, key, pages, jsonArray): getProjects(url, key, jsonArray);
-        return jsonArray;
-    }
-
-    private JSONArray getProjects(String url, String key, JSONArray jsonArray) throws ParseException {
-        jsonArray.addAll(parseAsArray(url, key));
-        return jsonArray;
+        if (partitionedDiscovery && totalRecords > MAX_SEARCH_RESULTS && Objects.isNull(userInfo.getToken())) {
+            getProjectsBeyondSearchCeiling(url, instanceUrl, totalRecords, pageConsumer);
+        } else if (totalRecords > PAGE_SIZE) {
+            getProjects(url, instanceUrl, pages, pageConsumer);
+        } else {
+            readProjectPage(url, instanceUrl, pageConsumer);
+        }
     }
 
-    private JSONArray getProjects(String url, String key, int pages, JSONArray jsonArray) throws ParseException {
+    private void getProjects(String url, String instanceUrl, int pages, Consumer<List<SonarProject>> pageConsumer) throws ParseException {
         if(Objects.isNull(userInfo.getToken())){
-            pagingUnAuthenticated(url, key, pages, jsonArray);
+            pagingUnAuthenticated(url, instanceUrl, pages, pageConsumer);
         }else{
-            for (int start=1;start<=pages;start++){
-                getProjects(url, key, jsonArray, start);
-            }
+            fetchPages(url, instanceUrl, pages, pageConsumer);
         }
-        return  jsonArray;
     }
 
-    private void pagingUnAuthenticated(String url, String key, int pages, JSONArray jsonArray) throws ParseException {
+    private void pagingUnAuthenticated(String url, String instanceUrl, int pages, Consumer<List<SonarProject>> pageConsumer) throws ParseException {
         int maxPages = 20;
         if(pages <= maxPages) {
             maxPages = pages;
         }
-        for (int start=1;start<=maxPages;start++){
-            getProjects(url, key, jsonArray, start);
+        fetchPages(url, instanceUrl, maxPages, pageConsumer);
+    }
+
+    /**
+     * Fetches pages 1 to {@code pages}, up to {@link #pageFetchThreads} at a time, and hands them to the
+     * consumer in page order. Only as many pages as there are fetch threads are read ahead of the consumer.
+     */
+    private void fetchPages(String url, String instanceUrl, int pages, Consumer<List<SonarProject>> pageConsumer) throws ParseException {
+        int threads = Math.min(pageFetchThreads, pages);
+        if (threads <= 1) {
+            for (int start=1;start<=pages;start++){
+                getProjects(url, instanceUrl, pageConsumer, start);
+            }
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new CustomizableThreadFactory("sonar-pages-"));
+        try {
+            Deque<Future<List<SonarProject>>> window = new ArrayDeque<>();
+            int next = 1;
+            while (next <= pages && window.size() < threads) {
+                window.add(submitPage(executor, url, instanceUrl, next++));
+            }
+            while (!window.isEmpty()) {
+                List<SonarProject> page = await(window.poll());
+                if (next <= pages) {
+                    window.add(submitPage(executor, url, instanceUrl, next++));
+                }
+                pageConsumer.accept(page);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.warn("Interrupted while fetching project pages from: " + url);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private Future<List<SonarProject>> submitPage(ExecutorService executor, String url, String instanceUrl, int pageNumber) {
+        return executor.submit(() -> {
+            List<SonarProject> page = new ArrayList<>(PAGE_SIZE);
+            getProjects(url, instanceUrl, page::addAll, pageNumber);
+            return page;
+        });
+    }
+
+    private static <T> T await(Future<T> future) throws ParseException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ParseException) {
+                throw (ParseException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Lists a catalogue larger than the search ceiling through {@code /api/projects/search}, which pages
+     * from the database instead of the search index and so reaches every project. Its pages are exact,
+     * disjoint slices of the catalogue, fetched on up to {@link #pageFetchThreads} threads. The route needs
+     * credentials; without them only the first pages are listed, as before.
+     *
+     * @throws IllegalStateException when a page can not be read, so a partial listing is never taken for
+     *                               the whole catalogue
+     */
+    private void getProjectsBeyondSearchCeiling(String url, String instanceUrl, long totalRecords,
+                                                Consumer<List<SonarProject>> pageConsumer) throws ParseException {
+        if (!hasCredentials()) {
+            LOG.warn("Only the first " + MAX_SEARCH_RESULTS + " of " + totalRecords + " projects are listed from: "
+                    + instanceUrl + ", listing the others needs credentials");
+            getProjects(url, instanceUrl, (int) Math.ceil((double) totalRecords / PAGE_SIZE), pageConsumer);
+            return;
         }
+        String databaseUrl = instanceUrl + URL_RESOURCES_AUTHENTICATED;
+        try {
+            long total = SonarJsonReader.readPage(getResponseBody(databaseUrl), COMPONENTS, null);
+            fetchPages(databaseUrl, instanceUrl, (int) Math.ceil((double) total / PAGE_SIZE), pageConsumer);
+        } catch (ParseException | RestClientException e) {
+            throw new IllegalStateException("Could not list the projects of: " + instanceUrl, e);
+        }
+        if (Thread.currentThread().isInterrupted()) {
+            throw new IllegalStateException("Interrupted while listing the projects of: " + instanceUrl);
+        }
+    }
+
+    private boolean hasCredentials() {
+        return StringUtils.isNotBlank(userInfo.getToken()) || StringUtils.isNotBlank(userInfo.getUserId());
     }
 
-    private void getProjects(String url, String key, JSONArray jsonArray, int pageNumber) throws ParseException {
+    private void getProjects(String url, String instanceUrl, Consumer<List<SonarProject>> pageConsumer, int pageNumber) throws ParseException {
         String urlFinal = url+"&p="+pageNumber;
-        jsonArray.addAll(parseAsArray(urlFinal, key));
+        readProjectPage(urlFinal, instanceUrl, pageConsumer);
+    }
+
+    /**
+     * Reads one listing page and hands it over before the next page is requested.
+     */
+    private void readProjectPage(String url, String instanceUrl, Consumer<List<SonarProject>> pageConsumer) throws ParseException {
+        List<SonarProject> page = new ArrayList<>(PAGE_SIZE);
+        SonarJsonReader.readPage(getResponseBody(url), COMPONENTS, component -> page.add(parseSonarProject(instanceUrl, component)));
+        pageConsumer.accept(page);
     }
 
     public SonarProject getProject(String projectKey, String instanceUrl) {
-        String url = String.format(URL_PROJECT_INFO, instanceUrl, projectKey);
+        String url = String.format(URL_PROJECT_INFO, instanceUrl, encode(projectKey));
         SonarProject project = null;
         try {
-            JSONObject component = child(getResponse(url), COMPONENT);
+            SonarComponent component = SonarJsonReader.readComponent(getResponseBody(url), COMPONENT);
             if (component != null) {
                 project =  parseSonarProject(instanceUrl, component);
                 project.setEnabled(false);
@@ -195,27 +335,56 @@ public class DefaultSonar6Client implements SonarClient {
         return project;
     }
 
+    /**
+     * Looks the projects up with one search by keys. The search needs credentials, without them or when it
+     * fails the projects are looked up one at a time.
+     */
+    @Override
+    public Map<String, SonarProject> getProjectsByKey(String instanceUrl, List<String> projectKeys) {
+        if (!hasCredentials() || projectKeys.size() <= 1) {
+            return SonarClient.super.getProjectsByKey(instanceUrl, projectKeys);
+        }
+        String encodedKeys = projectKeys.stream().map(DefaultSonar6Client::encode).collect(Collectors.joining(","));
+        String url = String.format(instanceUrl + URL_PROJECTS_BY_KEY, encodedKeys);
+        Map<String, SonarProject> projects = new HashMap<>();
+        try {
+            SonarJsonReader.readPage(getResponseBody(url), COMPONENTS, component -> {
+                SonarProject project = parseSonarProject(instanceUrl, component);
+                project.setEnabled(false);
+                project.setDescription(project.getProjectName());
+                projects.put(component.getKey(), project);
+            });
+        } catch (ParseException | RestClientException e) {
+            LOG.debug("Could not search projects by key from: " + url, e);
+            return SonarClient.super.getProjectsByKey(instanceUrl, projectKeys);
+        }
+        return projects;
+    }
+
     @Override
     public CodeQuality currentCodeQuality(SonarProject project) throws HttpClientErrorException, ParseException {
         String url = String.format(
-                project.getInstanceUrl() + getResourceDetailsUrl(), project.getProjectId(), metrics);
+                project.getInstanceUrl() + getResourceDetailsUrl(), encode(project.getProjectId()), metrics);
 
-        ResponseEntity<String> response = restClient.makeRestCallGet(url,setHeaders(userInfo) );
-        JSONParser jsonParser = new JSONParser();
-        JSONObject jsonObject = (JSONObject) jsonParser.parse(response.getBody());
+        Timer.Sample measuresSample = startPhase();
+        SonarComponent component;
+        try {
+            component = SonarJsonReader.readComponent(getResponseBody(url), COMPONENT);
+        } finally {
+            recordPhase(measuresSample, SonarCollectorMetrics.PHASE_MEASURES, project.getInstanceUrl());
+        }
 
-        if (jsonObject != null) {
-            JSONObject prjData = (JSONObject) jsonObject.get("component");
-            String key = str(prjData, KEY);
+        if (component != null) {
+            String key = component.getKey();
 
             CodeQuality codeQuality = new CodeQuality();
             codeQuality.setType(CodeQualityType.StaticAnalysis);
-            codeQuality.setName(str(prjData, NAME));
+            codeQuality.setName(component.getName());
             codeQuality.setUrl(new SonarDashboardUrl(project.getInstanceUrl(), key).toString());
 
             updateCodeQualityProjectAnalysis(codeQuality, project, key);
 
-            List<CodeQualityMetric> metrics = parseCodeQualityMetrics((JSONArray) prjData.get(MSR));
+            List<CodeQualityMetric> metrics = parseCodeQualityMetrics(component.getMeasures());
             codeQuality.getMetrics().addAll(metrics);
 
             return codeQuality;
@@ -223,25 +392,130 @@ public class DefaultSonar6Client implements SonarClient {
         return null;
     }
 
+    @Override
+    public Map<String, CodeQuality> currentCodeQualities(List<SonarProject> projects) throws ParseException {
+        Map<String, CodeQuality> codeQualities = new HashMap<>();
+        if (CollectionUtils.isEmpty(projects)) {
+            return codeQualities;
+        }
+        // projects stored before their key was collected are left to the single project lookup
+        List<SonarProject> keyedProjects = projects.stream()
+                .filter(project -> StringUtils.isNotEmpty(getProjectKey(project)))
+                .collect(Collectors.toList());
+        if (keyedProjects.isEmpty()) {
+            return codeQualities;
+        }
+        String instanceUrl = keyedProjects.get(0).getInstanceUrl();
+        String projectKeys = keyedProjects.stream().map(project -> encode(getProjectKey(project))).collect(Collectors.joining(","));
+        String url = String.format(instanceUrl + URL_MEASURES_SEARCH, projectKeys, metrics);
+
+        Timer.Sample measuresSample = startPhase();
+        Map<String, List<SonarMeasure>> measuresByKey;
+        try {
+            measuresByKey = SonarJsonReader.readMeasures(getResponseBody(url), MSR).stream()
+                    .collect(Collectors.groupingBy(SonarMeasure::getComponent));
+        } finally {
+            recordPhase(measuresSample, SonarCollectorMetrics.PHASE_MEASURES, instanceUrl);
+        }
+        Map<String, Long> analysisDates = getAnalysisDates(instanceUrl, projectKeys);
+
+        for (SonarProject project : keyedProjects) {
+            String key = getProjectKey(project);
+            List<SonarMeasure> measures = measuresByKey.get(key);
+            if (measures == null) {
+                continue;
+            }
+            long analysisDate = analysisDates.getOrDefault(key, 0L);
+            if (analysisDate > 0 && analysisDate == project.getLastAnalysisTimestamp()) {
+                // the last analysis is stored already, nothing is built for it and its analyses are not read
+                codeQualities.put(project.getProjectId(), null);
+                continue;
+            }
+            CodeQuality codeQuality = new CodeQuality();
+            codeQuality.setType(CodeQualityType.StaticAnalysis);
+            codeQuality.setName(project.getProjectName());
+            codeQuality.setUrl(new SonarDashboardUrl(instanceUrl, key).toString());
+            try {
+                updateCodeQualityProjectAnalysis(codeQuality, project, key);
+            } catch (ParseException | RestClientException e) {
+                // leave the project out so it is fetched again on its own
+                LOG.debug("Could not fetch analyses for project key=" + key, e);
+                continue;
+            }
+            codeQuality.getMetrics().addAll(parseCodeQualityMetrics(measures));
+            codeQualities.put(project.getProjectId(), codeQuality);
+        }
+        return codeQualities;
+    }
+
+    /**
+     * Last analysis dates of a batch of projects by key, read with one request to the project search.
+     * The search needs credentials, without them or when it fails the map is empty and every
+     * project has its analyses read.
+     */
+    private Map<String, Long> getAnalysisDates(String instanceUrl, String encodedProjectKeys) {
+        Map<String, Long> analysisDates = new HashMap<>();
+        if (!hasCredentials()) {
+            return analysisDates;
+        }
+        String url = String.format(instanceUrl + URL_ANALYSIS_DATES, encodedProjectKeys);
+        Timer.Sample analysesSample = startPhase();
+        try {
+            SonarJsonReader.readPage(getResponseBody(url), COMPONENTS, component -> {
+                long analysisDate = timestamp(component.getLastAnalysisDate());
+                if (component.getKey() != null && analysisDate > 0) {
+                    analysisDates.put(component.getKey(), analysisDate);
+                }
+            });
+        } catch (ParseException | RestClientException e) {
+            LOG.debug("Could not fetch analysis dates from: " + url, e);
+            return Collections.emptyMap();
+        } finally {
+            recordPhase(analysesSample, SonarCollectorMetrics.PHASE_ANALYSES, instanceUrl);
+        }
+        return analysisDates;
+    }
+
+    private Timer.Sample startPhase() {
+        return collectorMetrics == null ? null : collectorMetrics.start();
+    }
+
+    private void recordPhase(Timer.Sample sample, String phase, String instanceUrl) {
+        if (sample != null) {
+            collectorMetrics.record(sample, phase, instanceUrl, SonarCollectorMetrics.clientType(this));
+        }
+    }
+
+    /**
+     * Key used to look the project up in /api/measures/search and /api/project_analyses/search,
+     * null for projects stored before the key was collected.
+     */
+    protected String getProjectKey(SonarProject project) {
+        return project.getProjectKey();
+    }
+
+    /**
+     * Encodes a value for the query of a request url, the rest template sends such urls as they are.
+     */
+    protected static String encode(String value) {
+        return value == null ? null : URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+
     protected String getResourceDetailsUrl() {
         return URL_RESOURCE_DETAILS;
     }
 
-    protected List<CodeQualityMetric> parseCodeQualityMetrics(JSONArray measures) {
+    protected List<CodeQualityMetric> parseCodeQualityMetrics(List<SonarMeasure> measures) {
         List<CodeQualityMetric> metrics = new ArrayList<>();
-        for (Object metricObj : measures) {
-            JSONObject metricJson = (JSONObject) metricObj;
+        for (SonarMeasure measure : measures) {
+            String value = measure.getValue();
 
-            CodeQualityMetric metric = new CodeQualityMetric(str(metricJson, METRIC));
-            metric.setValue(str(metricJson, VALUE));
+            CodeQualityMetric metric = new CodeQualityMetric(measure.getMetric());
+            metric.setValue(value);
             if (metric.getName().equals("sqale_index")) {
-                metric.setFormattedValue(format(str(metricJson, VALUE)));
-            } else if (strSafe(metricJson, VALUE).indexOf(".") > 0) {
-                metric.setFormattedValue(str(metricJson, VALUE) + "%" );
-            } else if (strSafe(metricJson, VALUE).matches("\\d+")) {
-                metric.setFormattedValue(String.format("%,d", integer(metricJson, VALUE)));
+                metric.setFormattedValue(format(value));
             } else {
-                metric.setFormattedValue(str(metricJson, VALUE));
+                metric.setFormattedValue(SonarMetricFormatter.formatValue(value));
             }
             metrics.add(metric);
         }
@@ -250,17 +524,18 @@ public class DefaultSonar6Client implements SonarClient {
 
     protected void updateCodeQualityProjectAnalysis(CodeQuality codeQuality, SonarProject project, String key) throws ParseException {
         String url = String.format(
-                project.getInstanceUrl() + URL_PROJECT_ANALYSES, key);
-        JSONArray jsonArray = parseAsArray(url, "analyses");
-        if(jsonArray!=null && !jsonArray.isEmpty()) {
-            JSONObject prjLatestData = (JSONObject) jsonArray.get(0);
-            codeQuality.setTimestamp(timestamp(prjLatestData, DATE));
-            for (Object eventObj : (JSONArray) prjLatestData.get(EVENTS)) {
-                JSONObject eventJson = (JSONObject) eventObj;
-
-                if (strSafe(eventJson, "category").equals("VERSION")) {
-                    codeQuality.setVersion(str(eventJson, NAME));
-                }
+                project.getInstanceUrl() + URL_PROJECT_ANALYSES, encode(key));
+        Timer.Sample analysesSample = startPhase();
+        SonarAnalysis latestAnalysis;
+        try {
+            latestAnalysis = SonarJsonReader.readLatestAnalysis(getResponseBody(url));
+        } finally {
+            recordPhase(analysesSample, SonarCollectorMetrics.PHASE_ANALYSES, project.getInstanceUrl());
+        }
+        if (latestAnalysis != null) {
+            codeQuality.setTimestamp(timestamp(latestAnalysis.getDate()));
+            if (latestAnalysis.getVersion() != null) {
+                codeQuality.setVersion(latestAnalysis.getVersion());
             }
         }
     }
@@ -321,26 +596,26 @@ public class DefaultSonar6Client implements SonarClient {
         return (JSONArray) jsonObject.get(key);
     }
 
-    private JSONObject parseJsonObject(String url, String key) throws ParseException {
-        JSONObject jsonObject = getResponse(url);
-        return (JSONObject)jsonObject.get(key);
+    private JSONObject getResponse(String url) throws ParseException {
+        JSONParser jsonParser = new JSONParser();
+        return (JSONObject) jsonParser.parse(getResponseBody(url));
     }
 
-    private JSONObject getResponse(String url) throws ParseException {
+    /**
+     * Body of the response, left to {@link SonarJsonReader} for the collection hot paths.
+     */
+    protected String getResponseBody(String url) {
         ResponseEntity<String> response = restClient.makeRestCallGet(url, setHeaders(userInfo));
-        JSONParser jsonParser = new JSONParser();
-        JSONObject jsonObject = (JSONObject) jsonParser.parse(response.getBody());
         LOG.debug(url);
-        return jsonObject;
+        return response.getBody();
     }
 
-    private long timestamp(JSONObject json, String key) {
-        Object obj = json.get(key);
-        if (obj != null) {
+    protected long timestamp(String date) {
+        if (date != null) {
             try {
-                return new SimpleDateFormat(DATE_FORMAT).parse(obj.toString()).getTime();
-            } catch (java.text.ParseException e) {
-                LOG.error(obj + " is not in expected format " + DATE_FORMAT, e);
+                return SonarDateParser.parse(date);
+            } catch (DateTimeParseException e) {
+                LOG.error(date + " is not in expected format " + SonarDateParser.DATE_FORMAT, e);
             }
         }
         return 0;
@@ -379,53 +654,8 @@ public class DefaultSonar6Client implements SonarClient {
         return obj == null ? null : Boolean.valueOf(obj.toString());
     }
 
-    @SuppressWarnings("unused")
     protected String format(String duration) {
-        Long durationInMinutes = Long.valueOf(duration);
-        if (durationInMinutes == 0) {
-            return "0";
-        }
-        boolean isNegative = durationInMinutes < 0;
-        Long absDuration = Math.abs(durationInMinutes);
-
-        int days = ((Double) ((double) absDuration / HOURS_IN_DAY / 60)).intValue();
-        Long remainingDuration = absDuration - (days * HOURS_IN_DAY * 60);
-        int hours = ((Double) (remainingDuration.doubleValue() / 60)).intValue();
-        remainingDuration = remainingDuration - (hours * 60);
-        int minutes = remainingDuration.intValue();
-
-        return format(days, hours, minutes, isNegative);
-    }
-
-    @SuppressWarnings("PMD")
-    private static String format(int days, int hours, int minutes, boolean isNegative) {
-        StringBuilder message = new StringBuilder();
-        if (days > 0) {
-            message.append(String.format(DAYS_FORMAT, isNegative ? (-1 * days) : days));
-        }
-        if (displayHours(days, hours)) {
-            addSpaceIfNeeded(message);
-            message.append(String.format(HOURS_FORMAT, isNegative && message.length() == 0 ? (-1 * hours) : hours));
-        }
-        if (displayMinutes(days, hours, minutes)) {
-            addSpaceIfNeeded(message);
-            message.append(String.format(MINUTES_FORMAT, isNegative && message.length() == 0 ? (-1 * minutes) : minutes));
-        }
-        return message.toString();
-    }
-
-    private static void addSpaceIfNeeded(StringBuilder message) {
-        if (message.length() > 0) {
-            message.append(" ");
-        }
-    }
-
-    private static boolean displayHours(int days, int hours) {
-        return hours > 0 && days < 10;
-    }
-
-    private static boolean displayMinutes(int days, int hours, int minutes) {
-        return minutes > 0 && hours < 10 && days == 0;
+        return SonarMetricFormatter.formatDuration(duration);
     }
 
     private CodeQualityMetricStatus metricStatus(String status) {
@@ -440,10 +670,6 @@ public class DefaultSonar6Client implements SonarClient {
         }
     }
 
-    private Long getTotalCount(JSONObject pagingObject) {
-        return (Long) pagingObject.get("total");
-    }
-
     private HttpHeaders createHeaders(String username, String password){
         HttpHeaders headers = new HttpHeaders();
         if (username != null && !username.isEmpty()) {
@@ -1,6 +1,7 @@
 package com.capitalone.dashboard.collector;
 
 import com.capitalone.dashboard.client.RestClient;
+import com.capitalone.dashboard.client.RestUserInfo;
 import com.capitalone.dashboard.model.SonarProject;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -18,11 +19,24 @@ public class DefaultSonar8Client extends DefaultSonar6Client {
     static final String URL_QUALITY_PROFILE_CHANGES = "/api/qualityprofiles/changelog?qualityProfile=%s&language=%s";
     static final String URL_RESOURCE_DETAILS = "/api/measures/component?component=%s&metricKeys=%s";
 
-    @Autowired
     public DefaultSonar8Client(RestClient restClient, SonarSettings settings) {
         super(restClient, settings);
     }
 
+    @Autowired
+    public DefaultSonar8Client(RestClient restClient, SonarSettings settings, SonarCollectorMetrics collectorMetrics) {
+        super(restClient, settings, collectorMetrics);
+    }
+
+    private DefaultSonar8Client(DefaultSonar8Client client, RestUserInfo userInfo) {
+        super(client, userInfo);
+    }
+
+    @Override
+    protected DefaultSonar6Client bind(RestUserInfo userInfo) {
+        return new DefaultSonar8Client(this, userInfo);
+    }
+
     @Override
     public JSONArray getQualityProfileConfigurationChanges(String instanceUrl, JSONObject qualityProfile) throws ParseException{
         String url = String.format(instanceUrl + URL_QUALITY_PROFILE_CHANGES, qualityProfile.get("name"), qualityProfile.get("language"));
@@ -39,15 +53,22 @@ public class DefaultSonar8Client extends DefaultSonar6Client {
     }
 
     @Override
-    protected SonarProject parseSonarProject(String instanceUrl, JSONObject prjData) {
+    protected SonarProject parseSonarProject(String instanceUrl, SonarJsonReader.SonarComponent component) {
         SonarProject project = new SonarProject();
         project.setInstanceUrl(instanceUrl);
-        project.setProjectId(str(prjData, KEY));
-        project.setProjectName(str(prjData, NAME));
+        project.setProjectId(component.getKey());
+        project.setProjectKey(component.getKey());
+        project.setProjectName(component.getName());
+        project.setLastAnalysisDate(timestamp(component.getLastAnalysisDate()));
         return project;
 
     }
 
+    @Override
+    protected String getProjectKey(SonarProject project) {
+        return project.getProjectId();
+    }
+
     protected String getResourceDetailsUrl() {
         return URL_RESOURCE_DETAILS;
     }
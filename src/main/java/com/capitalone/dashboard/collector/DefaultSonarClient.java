@@ -22,9 +22,11 @@ import org.springframework.stereotype.Component;
 import org.springframework.web.client.RestClientException;
 
 import java.math.BigDecimal;
-import java.text.SimpleDateFormat;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 @Component("DefaultSonarClient")
 public class DefaultSonarClient implements SonarClient {
@@ -38,7 +40,6 @@ public class DefaultSonarClient implements SonarClient {
     protected static final String DEFAULT_METRICS = "ncloc,line_coverage,violations,critical_violations,major_violations,blocker_violations,violations_density,sqale_index,test_success_density,test_failures,test_errors,tests";
     protected final String metrics;
 
-    protected static final String DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ssZ";
     protected static final String ID = "id";
     protected static final String NAME = "name";
     protected static final String KEY = "key";
@@ -53,11 +54,12 @@ public class DefaultSonarClient implements SonarClient {
     protected static final String DATE = "date";
 
     protected final RestClient restClient;
-    protected RestUserInfo userInfo = new RestUserInfo("","");
+    protected final RestUserInfo userInfo;
 
     @Autowired
     public DefaultSonarClient(RestClient restClient, SonarSettings settings) {
         this.restClient = restClient;
+        this.userInfo = new RestUserInfo("","");
 
         if (!StringUtils.isEmpty(settings.getMetricsBefore63())) {
             metrics = settings.getMetricsBefore63();
@@ -66,26 +68,41 @@ public class DefaultSonarClient implements SonarClient {
         }
     }
 
+    /**
+     * Copies the shared configuration of {@code client} and binds it to {@code userInfo}.
+     */
+    protected DefaultSonarClient(DefaultSonarClient client, RestUserInfo userInfo) {
+        this.restClient = client.restClient;
+        this.metrics = client.metrics;
+        this.userInfo = userInfo;
+    }
+
     @Override
-    public void setServerCredentials(String username, String password, String token) {
-        // use token when given
-        if (StringUtils.isNotEmpty(token)) {
-            this.userInfo.setToken(token);
-            this.userInfo.setUserId(null);
-            this.userInfo.setPassCode(null);
-        }
+    public DefaultSonarClient withServerCredentials(String username, String password, String token) {
+        return bind(toUserInfo(username, password, token));
+    }
 
-        // but username and password override token
-        if(StringUtils.isNotBlank(username) && StringUtils.isNotBlank(password)){
-            this.userInfo = new RestUserInfo(username, password);
-        }
+    protected DefaultSonarClient bind(RestUserInfo userInfo) {
+        return new DefaultSonarClient(this, userInfo);
+    }
 
+    private static RestUserInfo toUserInfo(String username, String password, String token) {
         if (StringUtils.isNotBlank(token)
                 && StringUtils.isNotBlank(username)
                 && StringUtils.isNotBlank(password)) {
             LOG.warn("Only one mode of authentication is needed. Either token or username/password. " +
                     "Both modes were detected. Using username/password");
         }
+
+        // username and password override token
+        if (StringUtils.isNotBlank(username) && StringUtils.isNotBlank(password)) {
+            return new RestUserInfo(username, password);
+        }
+        // use token when given
+        if (StringUtils.isNotEmpty(token)) {
+            return new RestUserInfo(null, null, token);
+        }
+        return new RestUserInfo("","");
     }
 
     @Override
@@ -94,17 +111,13 @@ public class DefaultSonarClient implements SonarClient {
         String url = instanceUrl + URL_RESOURCES;
 
         try {
-
-            for (Object obj : parseAsArray(url)) {
-                JSONObject prjData = (JSONObject) obj;
-
+            SonarJsonReader.readArray(getResponseBody(url), component -> {
                 SonarProject project = new SonarProject();
                 project.setInstanceUrl(instanceUrl);
-                project.setProjectId(str(prjData, ID));
-                project.setProjectName(str(prjData, NAME));
+                project.setProjectId(component.getId());
+                project.setProjectName(component.getName());
                 projects.add(project);
-            }
-
+            });
         } catch (ParseException e) {
             LOG.error("Could not parse response from: " + url, e);
         } catch (RestClientException rce) {
@@ -121,26 +134,25 @@ public class DefaultSonarClient implements SonarClient {
                 project.getInstanceUrl() + URL_RESOURCE_DETAILS, project.getProjectId(), metrics);
 
         try {
-            JSONArray jsonArray = parseAsArray(url);
+            List<SonarJsonReader.SonarComponent> resources = new ArrayList<>();
+            SonarJsonReader.readArray(getResponseBody(url), resources::add);
 
-            if (!jsonArray.isEmpty()) {
-                JSONObject prjData = (JSONObject) jsonArray.get(0);
+            if (!resources.isEmpty()) {
+                SonarJsonReader.SonarComponent prjData = resources.get(0);
 
                 CodeQuality codeQuality = new CodeQuality();
-                codeQuality.setName(str(prjData, NAME));
+                codeQuality.setName(prjData.getName());
                 codeQuality.setUrl(new SonarDashboardUrl(project.getInstanceUrl(), project.getProjectId()).toString());
                 codeQuality.setType(CodeQualityType.StaticAnalysis);
-                codeQuality.setTimestamp(timestamp(prjData, DATE));
-                codeQuality.setVersion(str(prjData, VERSION));
-
-                for (Object metricObj : (JSONArray) prjData.get(MSR)) {
-                    JSONObject metricJson = (JSONObject) metricObj;
-
-                    CodeQualityMetric metric = new CodeQualityMetric(str(metricJson, KEY));
-                    metric.setValue(str(metricJson, VALUE));
-                    metric.setFormattedValue(str(metricJson, FORMATTED_VALUE));
-                    metric.setStatus(metricStatus(str(metricJson, ALERT)));
-                    metric.setStatusMessage(str(metricJson, ALERT_TEXT));
+                codeQuality.setTimestamp(timestamp(prjData.getDate()));
+                codeQuality.setVersion(prjData.getVersion());
+
+                for (SonarJsonReader.SonarMeasure measure : prjData.getMeasures()) {
+                    CodeQualityMetric metric = new CodeQualityMetric(measure.getMetric());
+                    metric.setValue(measure.getValue());
+                    metric.setFormattedValue(measure.getFormattedValue());
+                    metric.setStatus(metricStatus(measure.getAlert()));
+                    metric.setStatusMessage(measure.getAlertText());
                     codeQuality.getMetrics().add(metric);
                 }
 
@@ -156,6 +168,12 @@ public class DefaultSonarClient implements SonarClient {
         return null;
     }
 
+    @Override
+    public Map<String, CodeQuality> currentCodeQualities(List<SonarProject> projects) {
+        // /api/measures/search is not available before 6.3, every project is fetched on its own
+        return Collections.emptyMap();
+    }
+
     public JSONArray getQualityProfiles(String instanceUrl) throws ParseException {
     	String url = instanceUrl + URL_QUALITY_PROFILES;
     	try {
@@ -212,9 +230,13 @@ public class DefaultSonarClient implements SonarClient {
         return null;
     }
 
-    protected JSONArray parseAsArray(String url) throws ParseException {
+    /**
+     * Body of the response, left to {@link SonarJsonReader} for the collection hot paths.
+     */
+    protected String getResponseBody(String url) {
         ResponseEntity<String> response = restClient.makeRestCallGet(url, this.userInfo);
-        return (JSONArray) new JSONParser().parse(response.getBody());
+        LOG.debug(url);
+        return response.getBody();
     }
 
     protected JSONArray parseAsArray(String url, String key) throws ParseException {
@@ -225,13 +247,12 @@ public class DefaultSonarClient implements SonarClient {
         return (JSONArray) jsonObject.get(key);
     }
 
-    protected long timestamp(JSONObject json, String key) {
-        Object obj = json.get(key);
-        if (obj != null) {
+    protected long timestamp(String date) {
+        if (date != null) {
             try {
-                return new SimpleDateFormat(DATE_FORMAT).parse(obj.toString()).getTime();
-            } catch (java.text.ParseException e) {
-                LOG.error(obj + " is not in expected format " + DATE_FORMAT, e);
+                return SonarDateParser.parse(date);
+            } catch (DateTimeParseException e) {
+                LOG.error(date + " is not in expected format " + SonarDateParser.DATE_FORMAT, e);
             }
         }
         return 0;
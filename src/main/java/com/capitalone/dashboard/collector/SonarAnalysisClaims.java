@@ -0,0 +1,86 @@
+package com.capitalone.dashboard.collector;
+
+import org.bson.types.ObjectId;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hands every analysis of a project to one refresh, whether it is refreshed by the collection run, the
+ * {@link SonarPollingScheduler} or the {@link SonarRefreshQueue}. A refresh decides whether an analysis is
+ * new from the timestamps it loaded when it began; claiming it also takes the analyses claimed by the other
+ * refreshes into account, so two refreshes running side by side do not both store it.
+ * <p>
+ * The claims of a refresh are kept after it ended until every refresh that began before its end ended too;
+ * the refreshes beginning later load its writes with their timestamps.
+ */
+final class SonarAnalysisClaims {
+    private final List<Refresh> refreshes = new ArrayList<>();
+    private long sequence;
+
+    /**
+     * Begins a refresh, before it loads the latest stored timestamps.
+     */
+    synchronized Refresh begin() {
+        Refresh refresh = new Refresh(++sequence);
+        refreshes.add(refresh);
+        return refresh;
+    }
+
+    /**
+     * @param stored latest timestamp stored for the project when the refresh began, null when there is none
+     * @return whether the analysis is new and claimed by the refresh
+     */
+    synchronized boolean claim(Refresh refresh, ObjectId projectId, long timestamp, Long stored) {
+        Long latest = stored;
+        for (Refresh other : refreshes) {
+            Long claimed = other.claimed.get(projectId);
+            if (claimed != null && (latest == null || claimed > latest)) {
+                latest = claimed;
+            }
+        }
+        if (latest != null && timestamp <= latest) {
+            return false;
+        }
+        refresh.claimed.put(projectId, timestamp);
+        return true;
+    }
+
+    /**
+     * Gives up the claim of an analysis that could not be written, so another refresh can store it.
+     */
+    synchronized void release(Refresh refresh, ObjectId projectId) {
+        refresh.claimed.remove(projectId);
+    }
+
+    /**
+     * Ends a refresh, once its writes are flushed.
+     */
+    synchronized void end(Refresh refresh) {
+        refresh.end = ++sequence;
+        long oldestRunning = Long.MAX_VALUE;
+        for (Refresh other : refreshes) {
+            if (other.end == 0) {
+                oldestRunning = Math.min(oldestRunning, other.begin);
+            }
+        }
+        long before = oldestRunning;
+        refreshes.removeIf(other -> other.end != 0 && other.end < before);
+    }
+
+    synchronized int size() {
+        return refreshes.size();
+    }
+
+    static final class Refresh {
+        private final long begin;
+        private long end;
+        private final Map<ObjectId, Long> claimed = new HashMap<>();
+
+        private Refresh(long begin) {
+            this.begin = begin;
+        }
+    }
+}
@@ -3,7 +3,10 @@ package com.capitalone.dashboard.collector;
 import com.capitalone.dashboard.model.CodeQuality;
 import com.capitalone.dashboard.model.SonarProject;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
 
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
@@ -12,17 +15,57 @@ import org.springframework.web.client.HttpClientErrorException;
 
 public interface SonarClient {
 
-    /** register server credentials before calling getProjects
+    // upper bound of project keys accepted by /api/measures/search
+    int MAX_MEASURES_BATCH_SIZE = 100;
+
+    /** bind server credentials before calling getProjects
      * username and password override token when all arguments are not blank
-     * @param username for subsequent requests to sonarqube
-     * @param password for subsequent requests to sonarqube
-     * @param token for subsequent requests to sonarqube
+     * the receiver is left untouched so clients can be shared across threads
+     * @param username for requests to sonarqube made by the returned client
+     * @param password for requests to sonarqube made by the returned client
+     * @param token for requests to sonarqube made by the returned client
+     * @return a new client bound to the given credentials
      */
-    void setServerCredentials(String username, String password, String token);
+    SonarClient withServerCredentials(String username, String password, String token);
     List<SonarProject> getProjects(String instanceUrl);
+
+    /** hand the projects of the instance over one listing page at a time, so the caller
+     * never has to hold the whole catalogue; clients that do not page hand it over at once
+     * @param instanceUrl of the sonar instance
+     * @param pageConsumer called once per page, in page order
+     */
+    default void forEachProjectPage(String instanceUrl, Consumer<List<SonarProject>> pageConsumer) {
+        pageConsumer.accept(getProjects(instanceUrl));
+    }
+
     CodeQuality currentCodeQuality(SonarProject project) throws HttpClientErrorException, ParseException;
+
+    /** fetch the current code quality of several projects of the same instance in one request
+     * projects missing from the result could not be resolved in bulk and should be
+     * fetched with {@link #currentCodeQuality(SonarProject)}; projects mapped to null have
+     * their last analysis stored already and nothing to refresh
+     * @param projects of one sonar instance, at most {@link #MAX_MEASURES_BATCH_SIZE}
+     * @return code quality keyed by project id
+     */
+    Map<String, CodeQuality> currentCodeQualities(List<SonarProject> projects) throws ParseException;
     JSONArray getQualityProfiles(String instanceUrl) throws ParseException;
     List<String> retrieveProfileAndProjectAssociation(String instanceUrl,JSONObject qualityProfile) throws ParseException;
     JSONArray getQualityProfileConfigurationChanges(String instanceUrl,JSONObject qualityProfile) throws ParseException;
     SonarProject getProject(String projectKey, String instanceUrl);
+
+    /** look several projects of the same instance up by key, clients without a search
+     * by keys look them up one at a time
+     * @param projectKeys at most {@link #MAX_MEASURES_BATCH_SIZE}
+     * @return the projects found, keyed by project key
+     */
+    default Map<String, SonarProject> getProjectsByKey(String instanceUrl, List<String> projectKeys) {
+        Map<String, SonarProject> projects = new HashMap<>();
+        for (String projectKey : projectKeys) {
+            SonarProject project = getProject(projectKey, instanceUrl);
+            if (project != null) {
+                projects.put(projectKey, project);
+            }
+        }
+        return projects;
+    }
 }
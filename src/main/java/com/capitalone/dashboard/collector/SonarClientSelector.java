@@ -2,6 +2,18 @@ package com.capitalone.dashboard.collector;
 
 
 import java.net.URI;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.PreDestroy;
 
 import com.capitalone.dashboard.client.RestOperationsSupplier;
 import org.apache.commons.logging.Log;
@@ -12,8 +24,8 @@ import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.ResponseEntity;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.stereotype.Component;
-import org.springframework.util.StringUtils;
 import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestOperations;
 
@@ -28,45 +40,165 @@ public class SonarClientSelector {
     private DefaultSonar56Client sonar56Client;
     private DefaultSonarClient sonarClient;
     private RestOperations rest;
-    
+    private SonarSettings settings;
+    // last version detected per instance url
+    private final Map<String, CachedVersion> versions = new ConcurrentHashMap<>();
+    // credentials by server url, replaced in whole when the configuration is reloaded
+    private final AtomicReference<Map<String, SonarServerCredentials>> credentials = new AtomicReference<>();
+    private final ExecutorService revalidator = Executors.newSingleThreadExecutor(daemonThreadFactory());
+
     @Autowired
     public SonarClientSelector(
             DefaultSonar8Client sonar8Client, @Qualifier("DefaultSonar6Client") DefaultSonar6Client sonar6Client, DefaultSonar56Client sonar56Client,
             @Qualifier("DefaultSonarClient") DefaultSonarClient sonarClient,
-            RestOperationsSupplier restOperationsSupplier) {
+            RestOperationsSupplier restOperationsSupplier, SonarSettings settings) {
 
         this.sonar8Client = sonar8Client;
         this.sonar6Client = sonar6Client;
         this.sonar56Client = sonar56Client;
         this.sonarClient = sonarClient;
         this.rest = restOperationsSupplier.get();
+        this.settings = settings;
+    }
+
+    /**
+     * Detects the version of the server and binds the matching client to the given credentials.
+     */
+    public SonarServerSession openSession(String instanceUrl, String username, String password, String token) {
+        SonarVersion version = getSonarVersion(instanceUrl);
+        SonarClient client = getSonarClient(version).withServerCredentials(username, password, token);
+        return new SonarServerSession(instanceUrl, version, client);
+    }
+
+    /**
+     * Opens a session using the credentials configured for the server.
+     */
+    public SonarServerSession openSession(String instanceUrl) {
+        SonarServerCredentials serverCredentials = getCredentials(instanceUrl);
+        return openSession(instanceUrl, serverCredentials.getUsername(), serverCredentials.getPassword(),
+                serverCredentials.getToken());
+    }
+
+    /**
+     * @return the credentials of the server in the latest snapshot, those of {@link SonarSettings} until a
+     * snapshot is set
+     */
+    public SonarServerCredentials getCredentials(String instanceUrl) {
+        Map<String, SonarServerCredentials> byServer = credentials.get();
+        if (byServer == null) {
+            credentials.compareAndSet(null, SonarServerCredentials.byServer(settings.getServers(),
+                    settings.getUsernames(), settings.getPasswords(), settings.getTokens()));
+            byServer = credentials.get();
+        }
+        return byServer.getOrDefault(instanceUrl, SonarServerCredentials.NONE);
+    }
+
+    /**
+     * Replaces the credentials of every server at once.
+     */
+    public void setCredentials(Map<String, SonarServerCredentials> byServer) {
+        credentials.set(Collections.unmodifiableMap(new LinkedHashMap<>(byServer)));
     }
     
-    public Double getSonarVersion(String instanceUrl){
-    	Double version = 7.9;
-    	try {
-    	    ResponseEntity<String> versionResponse = rest.exchange(URI.create(instanceUrl + URL_VERSION_RESOURCE), HttpMethod.GET, new HttpEntity<>(new HttpHeaders()), String.class);
-    	    if(!versionResponse.getBody().isEmpty()) {
-    	        if(StringUtils.countOccurrencesOf(versionResponse.getBody(), ".") > 1) {
-    	            version = Double.parseDouble(versionResponse.getBody().substring(0, 3));
-    	        } else {
-    	            version = Double.parseDouble(versionResponse.getBody());
-    	        }
-    	    }    
-    	} catch (RestClientException e) {
-    		LOG.info("Rest exception occurred at fetching sonar version - " + e.getMessage());
-    	}
+    /**
+     * Returns the version of the server, detected once and then served from a cache. Past
+     * {@link SonarSettings#getVersionCacheTtlSeconds()} the cached version is still returned while it
+     * is detected again in the background; a failed detection keeps the last known version.
+     *
+     * @throws RestClientException when the version has never been detected and can not be now
+     */
+    public SonarVersion getSonarVersion(String instanceUrl) {
+        CachedVersion cached = versions.get(instanceUrl);
+        long ttl = TimeUnit.SECONDS.toMillis(settings.getVersionCacheTtlSeconds());
+        if (cached != null && ttl > 0) {
+            if (System.currentTimeMillis() - cached.detectedAt >= ttl) {
+                revalidate(instanceUrl, cached);
+            }
+            return cached.version;
+        }
+        try {
+            return detectVersion(instanceUrl);
+        } catch (RestClientException e) {
+            if (cached == null) {
+                throw e;
+            }
+            LOG.warn(String.format("getSonarVersion failed, keeping version=%s for instanceUrl=%s: %s",
+                    cached.version, instanceUrl, e.getMessage()));
+            return cached.version;
+        }
+    }
+
+    private void revalidate(String instanceUrl, CachedVersion cached) {
+        if (!cached.revalidating.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            revalidator.execute(() -> {
+                try {
+                    detectVersion(instanceUrl);
+                } catch (RestClientException e) {
+                    LOG.warn(String.format("getSonarVersion revalidation failed, keeping version=%s for instanceUrl=%s: %s",
+                            cached.version, instanceUrl, e.getMessage()));
+                } finally {
+                    cached.revalidating.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            cached.revalidating.set(false);
+        }
+    }
+
+    private SonarVersion detectVersion(String instanceUrl) {
+        ResponseEntity<String> versionResponse = rest.exchange(URI.create(instanceUrl + URL_VERSION_RESOURCE), HttpMethod.GET, new HttpEntity<>(new HttpHeaders()), String.class);
+        String body = versionResponse.getBody();
+        SonarVersion version;
+        try {
+            version = SonarVersion.parse(body);
+        } catch (IllegalArgumentException e) {
+            throw new RestClientException("Unrecognized sonar version response from " + instanceUrl + ": " + body, e);
+        }
+        versions.put(instanceUrl, new CachedVersion(version, System.currentTimeMillis()));
+        LOG.info(String.format("getSonarVersion instanceUrl=%s version=%s", instanceUrl, version));
         return version;
     }
 
-    public SonarClient getSonarClient(Double version) {
+    public SonarClient getSonarClient(SonarVersion version) {
         LOG.info(String.format("getSonarClient version=%s", version));
-        if(version != null && version == 5.6){
-          return sonar56Client;
+        if (version != null && version.getMajor() == 5 && version.getMinor() == 6) {
+            return sonar56Client;
         }
-        if (version != null && version >= 8.0){
+        if (version != null && version.isAtLeast(8, 0)) {
             return sonar8Client;
         }
-        return ((version == null) || (version < 6.3)) ? sonarClient : sonar6Client;
+        return ((version == null) || !version.isAtLeast(6, 3)) ? sonarClient : sonar6Client;
+    }
+
+    /**
+     * Selects the client for a version given as {@code major.minor} number.
+     */
+    public SonarClient getSonarClient(Double version) {
+        return getSonarClient(version == null ? null : SonarVersion.parse(version.toString()));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        revalidator.shutdownNow();
+    }
+
+    private static CustomizableThreadFactory daemonThreadFactory() {
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("sonar-version-");
+        threadFactory.setDaemon(true);
+        return threadFactory;
+    }
+
+    private static final class CachedVersion {
+        private final SonarVersion version;
+        private final long detectedAt;
+        private final AtomicBoolean revalidating = new AtomicBoolean(false);
+
+        private CachedVersion(SonarVersion version, long detectedAt) {
+            this.version = version;
+            this.detectedAt = detectedAt;
+        }
     }
 }
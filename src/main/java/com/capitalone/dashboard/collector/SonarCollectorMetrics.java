@@ -0,0 +1,138 @@
+package com.capitalone.dashboard.collector;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Meters of the collection pipeline, published through the actuator {@code metrics} endpoint:
+ * <ul>
+ *     <li>{@code sonar.collector.phase} times every phase of a collection run per instance and client type</li>
+ *     <li>{@code sonar.client.requests} times every call to sonar per instance and endpoint</li>
+ *     <li>{@code sonar.collector.projects} counts projects per instance, client type and outcome</li>
+ *     <li>{@code sonar.collector.projects.enabled} holds the enabled projects of each instance</li>
+ * </ul>
+ * Both timers publish their 50th, 95th and 99th percentiles.
+ */
+@Component
+public class SonarCollectorMetrics {
+    public static final String PHASE_VERSION = "version";
+    public static final String PHASE_DISCOVERY = "discovery";
+    public static final String PHASE_RECONCILIATION = "reconciliation";
+    // measures and analyses fetched for the projects of a refresh
+    public static final String PHASE_REFRESH = "refresh";
+    // the calls of a refresh reading measures and reading analyses, timed by the client
+    public static final String PHASE_MEASURES = "measures";
+    public static final String PHASE_ANALYSES = "analyses";
+    public static final String PHASE_WRITE = "write";
+    public static final String PHASE_PROFILES = "profiles";
+    private static final String PHASE_OTHER = "other";
+
+    public static final String OUTCOME_LISTED = "listed";
+    public static final String OUTCOME_NEW = "new";
+    public static final String OUTCOME_REFRESHED = "refreshed";
+    public static final String OUTCOME_UPDATED = "updated";
+    public static final String OUTCOME_DISABLED = "disabled";
+    // stored projects the listing no longer reports
+    public static final String OUTCOME_STALE = "stale";
+
+    private static final String TAG_INSTANCE = "instance";
+    private static final String TAG_CLIENT = "client";
+    private static final double[] PERCENTILES = {0.5, 0.95, 0.99};
+
+    private final MeterRegistry meterRegistry;
+    private final Map<String, AtomicInteger> enabledProjects = new ConcurrentHashMap<>();
+
+    @Autowired
+    public SonarCollectorMetrics(ObjectProvider<MeterRegistry> meterRegistry) {
+        this(meterRegistry.getIfAvailable(() -> Metrics.globalRegistry));
+    }
+
+    SonarCollectorMetrics(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    public MeterRegistry getMeterRegistry() {
+        return meterRegistry;
+    }
+
+    public Timer.Sample start() {
+        return Timer.start(meterRegistry);
+    }
+
+    public void record(Timer.Sample sample, String phase, String instanceUrl, String client) {
+        sample.stop(phaseTimer(phase, instanceUrl, client));
+    }
+
+    public Timer phaseTimer(String phase, String instanceUrl, String client) {
+        return Timer.builder("sonar.collector.phase")
+                .description("Time taken by a phase of sonar collection")
+                .tags("phase", phase, TAG_INSTANCE, instanceUrl, TAG_CLIENT, client)
+                .publishPercentiles(PERCENTILES)
+                .register(meterRegistry);
+    }
+
+    /**
+     * Records one call to sonar, {@code endpoint} being the path of the call without its query.
+     */
+    public void recordRequest(String instance, String endpoint, int status, Duration latency) {
+        Timer.builder("sonar.client.requests")
+                .description("Time taken by a call to sonar")
+                .tags(TAG_INSTANCE, instance, "endpoint", endpoint, "phase", phaseOf(endpoint), "status", String.valueOf(status))
+                .publishPercentiles(PERCENTILES)
+                .register(meterRegistry)
+                .record(latency);
+    }
+
+    public void countProjects(String outcome, String instanceUrl, String client, int count) {
+        Counter.builder("sonar.collector.projects")
+                .description("Sonar projects handled by collection")
+                .tags("outcome", outcome, TAG_INSTANCE, instanceUrl, TAG_CLIENT, client)
+                .register(meterRegistry)
+                .increment(count);
+    }
+
+    public void setEnabledProjects(String instanceUrl, int count) {
+        enabledProjects.computeIfAbsent(instanceUrl, instance -> {
+            AtomicInteger gauge = new AtomicInteger();
+            Gauge.builder("sonar.collector.projects.enabled", gauge, AtomicInteger::get)
+                    .description("Enabled sonar projects of the instance at its last collection")
+                    .tag(TAG_INSTANCE, instance)
+                    .register(meterRegistry);
+            return gauge;
+        }).set(count);
+    }
+
+    public static String clientType(SonarClient client) {
+        return client == null ? "unknown" : client.getClass().getSimpleName();
+    }
+
+    /**
+     * @return the pipeline phase a sonar api path belongs to
+     */
+    static String phaseOf(String endpoint) {
+        if (endpoint.endsWith("/api/server/version")) {
+            return PHASE_VERSION;
+        } else if (endpoint.contains("/api/measures") || endpoint.contains("/api/resources")) {
+            return PHASE_MEASURES;
+        } else if (endpoint.contains("/api/project_analyses")) {
+            return PHASE_ANALYSES;
+        } else if (endpoint.contains("/api/qualityprofiles")) {
+            return PHASE_PROFILES;
+        } else if (endpoint.endsWith("/api/projects/search") || endpoint.endsWith("/api/components/search")
+                || endpoint.endsWith("/api/projects/index") || endpoint.endsWith("/api/projects")) {
+            return PHASE_DISCOVERY;
+        }
+        return PHASE_OTHER;
+    }
+}
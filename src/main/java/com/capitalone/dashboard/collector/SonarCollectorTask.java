@@ -9,28 +9,33 @@ import com.capitalone.dashboard.model.CollectionError;
 import com.capitalone.dashboard.model.ConfigHistOperationType;
 import com.capitalone.dashboard.model.CollectorItemConfigHistory;
 import com.capitalone.dashboard.repository.BaseCollectorRepository;
-import com.capitalone.dashboard.repository.CodeQualityRepository;
+import com.capitalone.dashboard.repository.CodeQualityTimestampRepository;
+import com.capitalone.dashboard.repository.SonarCollectionRunRepository;
 import com.capitalone.dashboard.repository.ComponentRepository;
 import com.capitalone.dashboard.repository.ConfigurationRepository;
 import com.capitalone.dashboard.repository.SonarCollectorRepository;
 import com.capitalone.dashboard.repository.SonarProfileRepostory;
+import com.capitalone.dashboard.repository.SonarBulkWriter;
 import com.capitalone.dashboard.repository.SonarProjectRepository;
+import io.micrometer.core.instrument.Timer;
 import org.apache.commons.collections.CollectionUtils;
+import org.apache.commons.collections4.ListUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.bson.types.ObjectId;
-import org.joda.time.DateTime;
-import org.joda.time.format.DateTimeFormat;
-import org.joda.time.format.DateTimeFormatter;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.ParseException;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.mongodb.core.MongoOperations;
 import org.springframework.http.HttpStatus;
 import org.springframework.scheduling.TaskScheduler;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.stereotype.Component;
 import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.RestClientException;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -40,9 +45,17 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.stream.Collectors;
-import java.util.stream.IntStream;
 import java.util.stream.StreamSupport;
 
 @Component
@@ -52,33 +65,46 @@ public class SonarCollectorTask extends CollectorTask<SonarCollector> {
 
     private final SonarCollectorRepository sonarCollectorRepository;
     private final SonarProjectRepository sonarProjectRepository;
-    private final CodeQualityRepository codeQualityRepository;
+    private final CodeQualityTimestampRepository codeQualityTimestampRepository;
     private final SonarProfileRepostory sonarProfileRepostory;
     private final SonarClientSelector sonarClientSelector;
     private final SonarSettings sonarSettings;
     private final ComponentRepository dbComponentRepository;
     private final ConfigurationRepository configurationRepository;
-    private AtomicInteger count = new AtomicInteger(0);
+    private final MongoOperations mongoOperations;
+    private final SonarCollectorMetrics metrics;
+    private final SonarShardCoordinator shardCoordinator;
+    private final SonarCollectionRunRepository collectionRunRepository;
+    private volatile boolean collecting;
+    private final SonarAnalysisClaims analysisClaims = new SonarAnalysisClaims();
 
     @Autowired
     public SonarCollectorTask(TaskScheduler taskScheduler,
                               SonarCollectorRepository sonarCollectorRepository,
                               SonarProjectRepository sonarProjectRepository,
-                              CodeQualityRepository codeQualityRepository,
+                              CodeQualityTimestampRepository codeQualityTimestampRepository,
                               SonarProfileRepostory sonarProfileRepostory,
                               SonarSettings sonarSettings,
                               SonarClientSelector sonarClientSelector,
                               ConfigurationRepository configurationRepository,
-                              ComponentRepository dbComponentRepository) {
+                              ComponentRepository dbComponentRepository,
+                              MongoOperations mongoOperations,
+                              SonarCollectorMetrics metrics,
+                              SonarShardCoordinator shardCoordinator,
+                              SonarCollectionRunRepository collectionRunRepository) {
         super(taskScheduler, "Sonar");
         this.sonarCollectorRepository = sonarCollectorRepository;
         this.sonarProjectRepository = sonarProjectRepository;
-        this.codeQualityRepository = codeQualityRepository;
+        this.codeQualityTimestampRepository = codeQualityTimestampRepository;
         this.sonarProfileRepostory = sonarProfileRepostory;
         this.sonarSettings = sonarSettings;
         this.sonarClientSelector = sonarClientSelector;
         this.dbComponentRepository = dbComponentRepository;
         this.configurationRepository = configurationRepository;
+        this.mongoOperations = mongoOperations;
+        this.metrics = metrics;
+        this.shardCoordinator = shardCoordinator;
+        this.collectionRunRepository = collectionRunRepository;
     }
 
     @Override
@@ -87,21 +113,24 @@ public class SonarCollectorTask extends CollectorTask<SonarCollector> {
         Configuration config = configurationRepository.findByCollectorName("Sonar");
         // Only use Admin Page server configuration when available
         // otherwise use properties file server configuration
+        List<String> servers = sonarSettings.getServers();
         if (config != null) {
             config.decryptOrEncrptInfo();
-            // To clear the username and password from existing run and
-            // pick the latest
-            sonarSettings.getServers().clear();
-            sonarSettings.getUsernames().clear();
-            sonarSettings.getPasswords().clear();
+            // the latest servers and credentials replace those of the previous run in one swap, sessions
+            // opened meanwhile by refreshes get the credentials of their own server
+            servers = new ArrayList<>();
+            List<String> usernames = new ArrayList<>();
+            List<String> passwords = new ArrayList<>();
             for (Map<String, String> sonarServer : config.getInfo()) {
-                sonarSettings.getServers().add(sonarServer.get("url"));
-                sonarSettings.getUsernames().add(sonarServer.get("userName"));
-                sonarSettings.getPasswords().add(sonarServer.get("password"));
+                servers.add(sonarServer.get("url"));
+                usernames.add(sonarServer.get("userName"));
+                passwords.add(sonarServer.get("password"));
             }
+            sonarClientSelector.setCredentials(SonarServerCredentials.byServer(servers, usernames, passwords,
+                    sonarSettings.getTokens()));
         }
 
-        return SonarCollector.prototype(sonarSettings.getServers(),  sonarSettings.getNiceNames());
+        return SonarCollector.prototype(servers,  sonarSettings.getNiceNames());
     }
 
     @Override
@@ -116,51 +145,71 @@ public class SonarCollectorTask extends CollectorTask<SonarCollector> {
 
     @Override
     public void collect(SonarCollector collector) {
+        collecting = true;
+        try {
+            collectServers(collector);
+        } finally {
+            collecting = false;
+        }
+    }
+
+    /**
+     * @return whether a collection run is in progress
+     */
+    public boolean isCollecting() {
+        return collecting;
+    }
+
+    /**
+     * Refreshes some projects of one instance outside of a collection run, with the credentials configured
+     * for the instance. Runs are not checkpointed. Analyses are claimed like in a collection run, so one
+     * stored already or refreshed concurrently is not stored again.
+     *
+     * @return the outcome of each stored project, by id
+     * @throws RestClientException when the version of the instance can not be detected
+     */
+    public Map<ObjectId, SonarRefreshTicket.Status> refreshProjects(String instanceUrl, List<SonarProject> projects) {
+        SonarServerSession session = sonarClientSelector.openSession(instanceUrl);
+        RefreshRun run = refreshData(projects, session.getClient(), instanceUrl, false,
+                SonarShardCoordinator.Assignment.ALL);
+        Map<ObjectId, SonarRefreshTicket.Status> outcomes = new HashMap<>();
+        for (SonarProject project : projects) {
+            if (project.getId() != null) {
+                outcomes.put(project.getId(), run.failed.contains(project.getId()) ? SonarRefreshTicket.Status.FAILED
+                        : run.notFound.contains(project.getId()) ? SonarRefreshTicket.Status.NOT_FOUND
+                        : SonarRefreshTicket.Status.REFRESHED);
+            }
+        }
+        return outcomes;
+    }
+
+    private void collectServers(SonarCollector collector) {
         long start = System.currentTimeMillis();
         LOG.info(String.format("SonarCollectorTask:collect() start=%d", start));
         int totalProjectCount = 0;
         Set<ObjectId> udId = new HashSet<>();
         udId.add(collector.getId());
-        List<SonarProject> existingProjects = sonarProjectRepository.findByCollectorIdIn(udId);
-        List<SonarProject> latestProjects = new ArrayList<>();
+        SonarProjectIndex existingProjects = new SonarProjectIndex(sonarProjectRepository.findByCollectorIdIn(udId));
+        AtomicInteger latestProjects = new AtomicInteger(0);
 
         if (!CollectionUtils.isEmpty(collector.getSonarServers())) {
-
-            for (int i = 0; i < collector.getSonarServers().size(); i++) {
-
-                String instanceUrl = collector.getSonarServers().get(i);
-                logBanner(instanceUrl);
-
-                Double version = sonarClientSelector.getSonarVersion(instanceUrl);
-                SonarClient sonarClient = sonarClientSelector.getSonarClient(version);
-
-                String username = getFromListSafely(sonarSettings.getUsernames(), i);
-                String password = getFromListSafely(sonarSettings.getPasswords(), i);
-                String token = getFromListSafely(sonarSettings.getTokens(), i);
-                LOG.info(String.format("SonarCollectorTask:collect() token valid=%s", StringUtils.isNotBlank(token)));
-                sonarClient.setServerCredentials(username, password, token);
-
-                List<SonarProject> projects = sonarClient.getProjects(instanceUrl);
-                latestProjects.addAll(projects);
-                LOG.info(String.format("SonarCollectorTask:collect() latestProjects size=%d ", latestProjects.size()));
-
-                addNewProjects(projects, existingProjects, collector);
-                LOG.info(String.format("SonarCollectorTask:collect() addNewProjects() executed"));
-
-                List<SonarProject> enabledProjects = enabledProjects(collector, instanceUrl);
-                totalProjectCount = enabledProjects.size();
-                refreshData(enabledProjects, sonarClient);
-                LOG.info(String.format("SonarCollectorTask:collect() refreshData() executed"));
-
-                // Changelog apis do not exist for sonarqube versions under version 5.0
-                if (version >= 5.0) {
-                    try {
-                        fetchQualityProfileConfigChanges(collector,instanceUrl,sonarClient);
-                    } catch (Exception e) {
-                        LOG.error(e);
+            SonarShardCoordinator.Assignment assignment = shardCoordinator.hold();
+            try {
+                if (shardCoordinator.isEnabled()) {
+                    LOG.info(String.format("SonarCollectorTask:collect() replicaId=%s partitions=%s",
+                            shardCoordinator.getReplicaId(), assignment.getPartitions()));
+                }
+                int threads = Math.min(sonarSettings.getServerThreads(), collector.getSonarServers().size());
+                if (threads <= 1) {
+                    for (int i = 0; i < collector.getSonarServers().size(); i++) {
+                        totalProjectCount += collectServer(collector, i, existingProjects, latestProjects, assignment);
                     }
+                } else {
+                    totalProjectCount = collectServersInParallel(collector, threads, existingProjects, latestProjects,
+                            assignment);
                 }
-
+            } finally {
+                shardCoordinator.release(assignment);
             }
         }
         long end = System.currentTimeMillis();
@@ -172,14 +221,175 @@ public class SonarCollectorTask extends CollectorTask<SonarCollector> {
         collector.setLastExecutedSeconds(elapsedSeconds);
     }
 
-    private String getFromListSafely(List<String> ls, int index){
-        if(CollectionUtils.isEmpty(ls)) {
-            return null;
-        } else if (ls.size() > index){
-            return ls.get(index);
+    /**
+     * Runs the whole pipeline for one sonar instance: discovery, reconciliation, refresh and
+     * quality profile changes. When sharded, only the instances and projects of the partitions this
+     * replica owns are collected.
+     *
+     * @return the number of enabled projects of the instance
+     */
+    private int collectServer(SonarCollector collector, int index, SonarProjectIndex existingProjects,
+                              AtomicInteger latestProjects, SonarShardCoordinator.Assignment assignment) {
+        String instanceUrl = collector.getSonarServers().get(index);
+        logBanner(instanceUrl);
+        if (!assignment.collectsInstance(instanceUrl)) {
+            LOG.info(String.format("SonarCollectorTask:collect() skipped, instanceUrl=%s belongs to another replica",
+                    instanceUrl));
+            return 0;
+        }
+
+        SonarServerCredentials credentials = sonarClientSelector.getCredentials(instanceUrl);
+        LOG.info(String.format("SonarCollectorTask:collect() token valid=%s", StringUtils.isNotBlank(credentials.getToken())));
+        SonarServerSession session;
+        Timer.Sample versionSample = metrics.start();
+        try {
+            session = sonarClientSelector.openSession(instanceUrl, credentials.getUsername(), credentials.getPassword(),
+                    credentials.getToken());
+        } catch (RestClientException e) {
+            metrics.record(versionSample, SonarCollectorMetrics.PHASE_VERSION, instanceUrl, SonarCollectorMetrics.clientType(null));
+            LOG.error(String.format("SonarCollectorTask:collect() skipped, version of instanceUrl=%s is unknown: %s",
+                    instanceUrl, e.getMessage()));
+            return 0;
+        }
+        SonarVersion version = session.getVersion();
+        SonarClient sonarClient = session.getClient();
+        String clientType = SonarCollectorMetrics.clientType(sonarClient);
+        metrics.record(versionSample, SonarCollectorMetrics.PHASE_VERSION, instanceUrl, clientType);
+
+        // the replica owning the instance lists it, sharded by project the others only refresh their projects
+        boolean discovers = assignment.ownsInstance(instanceUrl);
+        boolean incremental = sonarSettings.isIncrementalCollection();
+        Map<String, Long> analysisDates = new HashMap<>();
+        if (discovers) {
+            try {
+                discoverProjects(collector, instanceUrl, sonarClient, existingProjects, latestProjects,
+                        incremental ? analysisDates : null);
+            } catch (RuntimeException e) {
+                // the projects listed so far are stored, the stored ones are still refreshed
+                LOG.error(String.format("SonarCollectorTask:collect() discovery failed, instanceUrl=%s: %s",
+                        instanceUrl, e.getMessage()));
+                analysisDates.clear();
+            }
+        }
+
+        List<SonarProject> enabledProjects = enabledProjects(collector, instanceUrl).stream()
+                .filter(assignment::ownsProject)
+                .collect(Collectors.toList());
+        metrics.setEnabledProjects(instanceUrl, enabledProjects.size());
+        refreshData(incremental ? changedProjects(enabledProjects, analysisDates) : enabledProjects,
+                sonarClient, instanceUrl, sonarSettings.isResumeRuns(), assignment);
+        LOG.info(String.format("SonarCollectorTask:collect() refreshData() executed"));
+
+        // Changelog apis do not exist for sonarqube versions under version 5.0
+        if (discovers && version.isAtLeast(5, 0) && shardCoordinator.holds(assignment)) {
+            Timer.Sample profilesSample = metrics.start();
+            try {
+                fetchQualityProfileConfigChanges(collector,instanceUrl,sonarClient);
+            } catch (Exception e) {
+                LOG.error(e);
+            } finally {
+                metrics.record(profilesSample, SonarCollectorMetrics.PHASE_PROFILES, instanceUrl, clientType);
+            }
+        }
+        return enabledProjects.size();
+    }
+
+    /**
+     * Lists the projects of the instance and reconciles them page by page with the stored ones. Only the
+     * analysis dates of the listing are kept, when {@code analysisDates} is given, for the incremental refresh.
+     */
+    private void discoverProjects(SonarCollector collector, String instanceUrl, SonarClient sonarClient,
+                                  SonarProjectIndex existingProjects, AtomicInteger latestProjects,
+                                  Map<String, Long> analysisDates) {
+        String clientType = SonarCollectorMetrics.clientType(sonarClient);
+        Timer reconciliation = metrics.phaseTimer(SonarCollectorMetrics.PHASE_RECONCILIATION, instanceUrl, clientType);
+        AtomicInteger listedCount = new AtomicInteger(0);
+        AtomicInteger newCount = new AtomicInteger(0);
+        Timer.Sample discoverySample = metrics.start();
+        sonarClient.forEachProjectPage(instanceUrl, page -> {
+            latestProjects.addAndGet(page.size());
+            listedCount.addAndGet(page.size());
+            newCount.addAndGet(reconciliation.record(() -> addNewProjects(page, existingProjects, collector)));
+            if (analysisDates != null) {
+                recordAnalysisDates(page, analysisDates);
+            }
+        });
+        // the pages are reconciled as they arrive, so discovery includes their reconciliation
+        metrics.record(discoverySample, SonarCollectorMetrics.PHASE_DISCOVERY, instanceUrl, clientType);
+        metrics.countProjects(SonarCollectorMetrics.OUTCOME_LISTED, instanceUrl, clientType, listedCount.get());
+        metrics.countProjects(SonarCollectorMetrics.OUTCOME_NEW, instanceUrl, clientType, newCount.get());
+        LOG.info(String.format("SonarCollectorTask:collect() latestProjects size=%d ", latestProjects.get()));
+        LOG.info(String.format("SonarCollectorTask:collect() addNewProjects() executed"));
+
+        List<SonarProject> staleProjects = existingProjects.stale(instanceUrl);
+        metrics.countProjects(SonarCollectorMetrics.OUTCOME_STALE, instanceUrl, clientType, staleProjects.size());
+        LOG.info(String.format("SonarCollectorTask:collect() instanceUrl=%s staleProjects=%d", instanceUrl,
+                staleProjects.size()));
+        // an empty listing is taken for a failed one rather than for an emptied instance
+        if (sonarSettings.isDeleteStaleProjects() && listedCount.get() > 0) {
+            reconciliation.record(() -> deleteUnwantedJobs(staleProjects));
+        }
+    }
+
+    /**
+     * Collects every instance on its own worker. An instance that fails or runs past
+     * {@link SonarSettings#getServerTimeoutSeconds()} is logged and left out of the totals
+     * without holding back the others.
+     */
+    private int collectServersInParallel(SonarCollector collector, int threads, SonarProjectIndex existingProjects,
+                                         AtomicInteger latestProjects, SonarShardCoordinator.Assignment assignment) {
+        List<String> servers = collector.getSonarServers();
+        AtomicLongArray startTimes = new AtomicLongArray(servers.size());
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new CustomizableThreadFactory("sonar-server-"));
+        int totalProjectCount = 0;
+        try {
+            List<Future<Integer>> futures = new ArrayList<>();
+            for (int i = 0; i < servers.size(); i++) {
+                int index = i;
+                futures.add(executor.submit(() -> {
+                    startTimes.set(index, System.currentTimeMillis());
+                    return collectServer(collector, index, existingProjects, latestProjects, assignment);
+                }));
+            }
+            for (int i = 0; i < servers.size(); i++) {
+                totalProjectCount += awaitServer(servers.get(i), futures.get(i), startTimes, i);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.error("SonarCollectorTask:collect() interrupted while waiting for sonar instances");
+        } finally {
+            executor.shutdownNow();
+        }
+        return totalProjectCount;
+    }
+
+    private int awaitServer(String instanceUrl, Future<Integer> future, AtomicLongArray startTimes, int index)
+            throws InterruptedException {
+        long budget = TimeUnit.SECONDS.toMillis(sonarSettings.getServerTimeoutSeconds());
+        while (true) {
+            try {
+                if (budget <= 0) {
+                    return future.get();
+                }
+                // the budget starts when the instance is picked up, not while it waits for a worker
+                long started = startTimes.get(index);
+                long wait = started == 0 ? budget : started + budget - System.currentTimeMillis();
+                return future.get(Math.max(wait, 0), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                long started = startTimes.get(index);
+                if (started != 0 && System.currentTimeMillis() >= started + budget) {
+                    future.cancel(true);
+                    LOG.error(String.format("SonarCollectorTask:collect() timed out, instanceUrl=%s timeoutSeconds=%d",
+                            instanceUrl, sonarSettings.getServerTimeoutSeconds()));
+                    return 0;
+                }
+            } catch (ExecutionException e) {
+                LOG.error("SonarCollectorTask:collect() failed, instanceUrl=" + instanceUrl, e.getCause());
+                return 0;
+            }
         }
-        return null;
     }
+
     /**
      * Clean up unused sonar collector items
      *
@@ -229,84 +439,307 @@ public class SonarCollectorTask extends CollectorTask<SonarCollector> {
         }
     }
 
-    private void deleteUnwantedJobs(List<SonarProject> latestProjects, List<SonarProject> existingProjects, SonarCollector collector) {
+    /**
+     * Deletes the stored projects the listing of their instance no longer reports, after taking them off
+     * the components they are configured for. Projects pushed via the API are kept.
+     */
+    private void deleteUnwantedJobs(List<SonarProject> staleProjects) {
         List<SonarProject> deleteJobList = new ArrayList<>();
+        Set<ObjectId> enabledIds = new HashSet<>();
 
-        // First delete collector items that are not supposed to be collected anymore because the servers have moved(?)
-        for (SonarProject job : existingProjects) {
+        for (SonarProject job : staleProjects) {
             if (job.isPushed()) continue; // do not delete jobs that are being pushed via API
-            if (!collector.getSonarServers().contains(job.getInstanceUrl()) ||
-                    (!job.getCollectorId().equals(collector.getId())) ||
-                    (!latestProjects.contains(job))) {
-                if(!job.isEnabled()) {
-                    LOG.debug("drop deleted sonar project which is disabled "+job.getProjectName());
-                    deleteJobList.add(job);
-                } else {
-                    LOG.debug("drop deleted sonar project which is enabled "+job.getProjectName());
-                    // CollectorItem should be removed from components and dashboards first
-                    // then the CollectorItem (sonar proj in this case) can be deleted
-
-                    List<com.capitalone.dashboard.model.Component> comps = dbComponentRepository
-                            .findByCollectorTypeAndItemIdIn(CollectorType.CodeQuality, Collections.singletonList(job.getId()));
-
-                    for (com.capitalone.dashboard.model.Component c: comps) {
-                        c.getCollectorItems().get(CollectorType.CodeQuality).removeIf(collectorItem -> collectorItem.getId().equals(job.getId()));
-                        if(CollectionUtils.isEmpty(c.getCollectorItems().get(CollectorType.CodeQuality))){
-                            c.getCollectorItems().remove(CollectorType.CodeQuality);
-                        }
-                    }
-                    dbComponentRepository.saveAll(comps);
-
-                    // other collectors also delete the widget but not here
-                    // should not remove the code analysis widget
-                    // because it is shared by other collectors
-
-                    deleteJobList.add(job);
+            LOG.debug(String.format("drop deleted sonar project which is %s %s",
+                    job.isEnabled() ? "enabled" : "disabled", job.getProjectName()));
+            if (job.isEnabled()) {
+                enabledIds.add(job.getId());
+            }
+            deleteJobList.add(job);
+        }
+        if (!enabledIds.isEmpty()) {
+            // CollectorItem should be removed from components and dashboards first
+            // then the CollectorItem (sonar proj in this case) can be deleted
+            List<com.capitalone.dashboard.model.Component> comps = dbComponentRepository
+                    .findByCollectorTypeAndItemIdIn(CollectorType.CodeQuality, new ArrayList<>(enabledIds));
+
+            for (com.capitalone.dashboard.model.Component c: comps) {
+                c.getCollectorItems().get(CollectorType.CodeQuality).removeIf(collectorItem -> enabledIds.contains(collectorItem.getId()));
+                if(CollectionUtils.isEmpty(c.getCollectorItems().get(CollectorType.CodeQuality))){
+                    c.getCollectorItems().remove(CollectorType.CodeQuality);
                 }
             }
+            dbComponentRepository.saveAll(comps);
+
+            // other collectors also delete the widget but not here
+            // should not remove the code analysis widget
+            // because it is shared by other collectors
         }
         if (!CollectionUtils.isEmpty(deleteJobList)) {
             sonarProjectRepository.deleteAll(deleteJobList);
         }
     }
 
-    private void refreshData(List<SonarProject> sonarProjects, SonarClient sonarClient) {
+    private RefreshRun refreshData(List<SonarProject> sonarProjects, SonarClient sonarClient, String instanceUrl,
+                                   boolean checkpointed, SonarShardCoordinator.Assignment assignment) {
         long start = System.currentTimeMillis();
-        count.set(0);
-        int updated = 0;
-        int disabled = 0;
-        for (SonarProject project : sonarProjects) {
-            try {
-                CodeQuality codeQuality = sonarClient.currentCodeQuality(project);
-                if (codeQuality != null && isNewQualityData(project, codeQuality)) {
-                    project.setLastUpdated(System.currentTimeMillis());
-                    sonarProjectRepository.save(project);
-                    codeQuality.setCollectorItemId(project.getId());
-                    codeQualityRepository.save(codeQuality);
-                    updated++;
+        String clientType = SonarCollectorMetrics.clientType(sonarClient);
+        SonarBulkWriter writer = new SonarBulkWriter(mongoOperations, sonarSettings.getWriteBatchSize(),
+                sonarSettings.getWriteFlushIntervalMillis(),
+                metrics.phaseTimer(SonarCollectorMetrics.PHASE_WRITE, instanceUrl, clientType));
+        SonarRunCheckpoint checkpoint = checkpointed ? openCheckpoint(instanceUrl) : null;
+        List<SonarProject> projects = checkpoint == null ? sonarProjects : checkpoint.remaining(sonarProjects);
+        if (checkpoint != null && checkpoint.isResumed()) {
+            LOG.info(String.format("refreshData resumed, instanceUrl=%s remaining=%d of %d",
+                    instanceUrl, projects.size(), sonarProjects.size()));
+        }
+        SonarAnalysisClaims.Refresh claims = analysisClaims.begin();
+        RefreshRun run;
+        try {
+            run = new RefreshRun(sonarClient, latestTimestamps(projects), writer,
+                    metrics.phaseTimer(SonarCollectorMetrics.PHASE_REFRESH, instanceUrl, clientType), checkpoint, claims,
+                    assignment);
+        } catch (RuntimeException e) {
+            analysisClaims.end(claims);
+            throw e;
+        }
+        int batchSize = Math.max(1, Math.min(sonarSettings.getMeasuresBatchSize(), SonarClient.MAX_MEASURES_BATCH_SIZE));
+        List<List<SonarProject>> chunks = ListUtils.partition(projects, batchSize);
+        if (checkpoint != null) {
+            checkpoint.start(chunks);
+            writer.onFlush(checkpoint::snapshot);
+        }
+        writer.onFailedWrite(projectId -> {
+            analysisClaims.release(claims, projectId);
+            run.failed.add(projectId);
+            if (checkpoint != null) {
+                checkpoint.projectFailed(projectId);
+            }
+        });
+        int threads = Math.min(sonarSettings.getRefreshThreads(), chunks.size());
+        try {
+            if (threads <= 1) {
+                for (int i = 0; i < chunks.size(); i++) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        LOG.warn("refreshData interrupted, remaining projects are skipped");
+                        break;
+                    }
+                    refreshChunk(chunks.get(i), i, run);
                 }
-            } catch (HttpClientErrorException e) {
-                if (e.getStatusCode() == HttpStatus.NOT_FOUND) {
-                    project.setEnabled(false);
-                    project.setLastUpdated(System.currentTimeMillis());
-                    CollectionError error = new CollectionError("404", "disabled as the project no longer exists in Sonar");
-                    project.getErrors().add(error);
-                    sonarProjectRepository.save(project);
-                    LOG.info("Disabled as a result of HTTPStatus.NOT_FOUND, projectName=" + project.getProjectName()
-                            + ", projectId=" + project.getProjectId());
-                    disabled++;
-                } else {
-                    LOG.error(e.getStackTrace());
+            } else {
+                ExecutorService executor = Executors.newFixedThreadPool(threads, new CustomizableThreadFactory("sonar-refresh-"));
+                try {
+                    List<Future<?>> futures = new ArrayList<>();
+                    for (int i = 0; i < chunks.size(); i++) {
+                        int index = i;
+                        futures.add(executor.submit(() -> refreshChunk(chunks.get(index), index, run)));
+                    }
+                    awaitAll(futures);
+                } finally {
+                    executor.shutdownNow();
+                }
+            }
+        } finally {
+            // whatever was refreshed before a failure is still written
+            try {
+                writer.flush();
+            } finally {
+                analysisClaims.end(claims);
+            }
+            if (checkpoint != null && checkpoint.isFinished()) {
+                checkpoint.complete();
+            }
+            metrics.countProjects(SonarCollectorMetrics.OUTCOME_REFRESHED, instanceUrl, clientType, run.total.get());
+            metrics.countProjects(SonarCollectorMetrics.OUTCOME_UPDATED, instanceUrl, clientType, run.updated.get());
+            metrics.countProjects(SonarCollectorMetrics.OUTCOME_DISABLED, instanceUrl, clientType, run.disabled.get());
+        }
+        LOG.info("refreshData updated, total=" + run.total.get() + ", updated=" + run.updated.get()
+                + ", disabled=" + run.disabled.get() + ", threads=" + Math.max(threads, 1)
+                + ", batchSize=" + batchSize + ", timeTaken=" + (System.currentTimeMillis() - start));
+        return run;
+    }
+
+    /**
+     * Opens the run record of the instance, one per replica when the collection is sharded.
+     */
+    private SonarRunCheckpoint openCheckpoint(String instanceUrl) {
+        String runId = shardCoordinator.isEnabled() ? instanceUrl + "#" + shardCoordinator.getReplicaId() : instanceUrl;
+        return SonarRunCheckpoint.open(collectionRunRepository, runId, instanceUrl,
+                TimeUnit.MINUTES.toMillis(sonarSettings.getResumeWindowMinutes()));
+    }
+
+    /**
+     * Loads the latest stored analysis of every project up front, so deciding whether a fetched
+     * analysis is new is a map lookup instead of one code_quality query per project.
+     */
+    private Map<ObjectId, Long> latestTimestamps(List<SonarProject> sonarProjects) {
+        List<ObjectId> ids = sonarProjects.stream()
+                .map(SonarProject::getId)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+        Map<ObjectId, Long> latestTimestamps = codeQualityTimestampRepository.findLatestTimestamps(ids);
+        return latestTimestamps == null ? Collections.emptyMap() : latestTimestamps;
+    }
+
+    private void recordAnalysisDates(List<SonarProject> listedProjects, Map<String, Long> analysisDates) {
+        for (SonarProject listed : listedProjects) {
+            // keyed by id, names are not unique on a server
+            if (listed.getProjectId() != null && listed.getLastAnalysisDate() > 0) {
+                analysisDates.put(listed.getProjectId(), listed.getLastAnalysisDate());
+            }
+        }
+    }
+
+    /**
+     * Keeps the enabled projects the listing reports a newer analysis for than the one last collected.
+     * Projects the listing has no analysis date for are always kept.
+     */
+    private List<SonarProject> changedProjects(List<SonarProject> enabledProjects, Map<String, Long> analysisDates) {
+        List<SonarProject> changed = enabledProjects.stream()
+                .filter(project -> {
+                    Long analysisDate = project.getProjectId() == null ? null : analysisDates.get(project.getProjectId());
+                    return analysisDate == null || analysisDate > project.getLastAnalysisTimestamp();
+                })
+                .collect(Collectors.toList());
+        LOG.info(String.format("SonarCollectorTask:collect() incremental enabled=%d changed=%d",
+                enabledProjects.size(), changed.size()));
+        return changed;
+    }
+
+    private void refreshChunk(List<SonarProject> chunk, int index, RefreshRun run) {
+        // another replica may have claimed the partitions once their leases expired unrenewed
+        if (!shardCoordinator.holds(run.assignment)) {
+            if (run.fenced.compareAndSet(false, true)) {
+                LOG.warn("refreshData stopped, the shard leases of the run expired before they could be renewed");
+            }
+            return;
+        }
+        Map<String, CodeQuality> codeQualities = chunk.size() > 1
+                ? run.refreshTimer.record(() -> fetchCodeQualities(chunk, run.sonarClient)) : Collections.emptyMap();
+        boolean refreshed = true;
+        for (SonarProject project : chunk) {
+            CodeQuality prefetched = codeQualities.get(project.getProjectId());
+            // mapped to null by the batch when its last analysis is stored already
+            if ((prefetched != null || !codeQualities.containsKey(project.getProjectId()))
+                    && !refreshProject(project, run, prefetched)) {
+                refreshed = false;
+                if (project.getId() != null) {
+                    run.failed.add(project.getId());
                 }
-            } catch (ParseException parseEx) {
-                CollectionError error = new CollectionError("500", parseEx.getMessage());
+            }
+            run.total.getAndIncrement();
+        }
+        if (run.checkpoint != null) {
+            if (refreshed) {
+                run.checkpoint.chunkDone(index);
+            } else {
+                run.checkpoint.chunkFailed(index);
+            }
+            checkpoint(run);
+        }
+    }
+
+    /**
+     * Flushes the writer, and with it takes a checkpoint, when the last one is older than the flush interval.
+     * A run finding few new analyses queues few writes, so it would otherwise only be checkpointed at its end.
+     */
+    private void checkpoint(RefreshRun run) {
+        if (!run.checkpoint.isSnapshotDue(sonarSettings.getWriteFlushIntervalMillis())) {
+            return;
+        }
+        try {
+            run.writer.flush();
+        } catch (DataAccessException e) {
+            // the writes are buffered again and the checkpoint waits for the next flush
+            LOG.warn("refreshData could not flush writes for a checkpoint: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Fetches the measures of a chunk in one request. Projects the batch can not resolve are
+     * refreshed one by one, which keeps the 404 and parse error handling of a single project.
+     */
+    private Map<String, CodeQuality> fetchCodeQualities(List<SonarProject> chunk, SonarClient sonarClient) {
+        try {
+            return sonarClient.currentCodeQualities(chunk);
+        } catch (ParseException | RestClientException e) {
+            LOG.warn("refreshData batched measures failed, falling back to one request per project: " + e.getMessage());
+            return Collections.emptyMap();
+        }
+    }
+
+    /**
+     * @return false when the project could not be refreshed and is left for a later run
+     */
+    private boolean refreshProject(SonarProject project, RefreshRun run, CodeQuality prefetched) {
+        try {
+            CodeQuality codeQuality = prefetched != null ? prefetched : fetchCodeQuality(project, run);
+            if (codeQuality != null && isNewQualityData(project, codeQuality, run)) {
+                project.setLastUpdated(System.currentTimeMillis());
+                project.setLastAnalysisTimestamp(codeQuality.getTimestamp());
+                run.writer.saveCodeQuality(project, codeQuality);
+                run.updated.getAndIncrement();
+            } else if (codeQuality != null && codeQuality.getTimestamp() != project.getLastAnalysisTimestamp()) {
+                // already collected, remember the analysis so incremental runs can skip the project
+                project.setLastAnalysisTimestamp(codeQuality.getTimestamp());
+                run.writer.saveLastAnalysisTimestamp(project);
+            }
+            return true;
+        } catch (HttpClientErrorException e) {
+            if (e.getStatusCode() == HttpStatus.NOT_FOUND) {
+                project.setEnabled(false);
+                project.setLastUpdated(System.currentTimeMillis());
+                CollectionError error = new CollectionError("404", "disabled as the project no longer exists in Sonar");
                 project.getErrors().add(error);
                 sonarProjectRepository.save(project);
-                LOG.error(parseEx);
+                LOG.info("Disabled as a result of HTTPStatus.NOT_FOUND, projectName=" + project.getProjectName()
+                        + ", projectId=" + project.getProjectId());
+                run.disabled.getAndIncrement();
+                if (project.getId() != null) {
+                    run.notFound.add(project.getId());
+                }
+                return true;
             }
-            count.getAndIncrement();
+            LOG.error(e.getStackTrace());
+        } catch (ParseException parseEx) {
+            CollectionError error = new CollectionError("500", parseEx.getMessage());
+            project.getErrors().add(error);
+            sonarProjectRepository.save(project);
+            LOG.error(parseEx);
+        }
+        return false;
+    }
+
+    private CodeQuality fetchCodeQuality(SonarProject project, RefreshRun run) throws ParseException {
+        Timer.Sample sample = metrics.start();
+        try {
+            return run.sonarClient.currentCodeQuality(project);
+        } finally {
+            sample.stop(run.refreshTimer);
+        }
+    }
+
+    /**
+     * Waits for every submitted refresh, then rethrows the first unexpected failure
+     * the same way the sequential refresh would have stopped on it.
+     */
+    private void awaitAll(List<Future<?>> futures) {
+        RuntimeException failure = null;
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while refreshing sonar projects", e);
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof RuntimeException
+                            ? (RuntimeException) e.getCause() : new IllegalStateException(e.getCause());
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
         }
-        LOG.info("refreshData updated, total=" + count.get() + ", updated=" + updated + ", disabled=" + disabled + ", timeTaken=" + start);
     }
 
     private void fetchQualityProfileConfigChanges(SonarCollector collector,String instanceUrl,SonarClient sonarClient) throws org.json.simple.parser.ParseException{
@@ -363,7 +796,10 @@ public class SonarCollectorTask extends CollectorTask<SonarCollector> {
         return sonarProjectRepository.findEnabledProjects(collector.getId(), instanceUrl);
     }
 
-    private void addNewProjects(List<SonarProject> projects, List<SonarProject> existingProjects, SonarCollector collector) {
+    /**
+     * @return the number of listed projects that were not stored yet
+     */
+    int addNewProjects(List<SonarProject> projects, SonarProjectIndex existingProjects, SonarCollector collector) {
         long start = System.currentTimeMillis();
         int newCount = 0;
         int updatedCount = 0;
@@ -371,8 +807,13 @@ public class SonarCollectorTask extends CollectorTask<SonarCollector> {
         List<SonarProject> updateProjects = new ArrayList<>();
         for (SonarProject project : projects) {
             String niceName = getNiceName(project,collector);
-            // TODO: the algorithm in this loop is of n^2, need to optimize
-            if (!existingProjects.contains(project)) {
+            List<SonarProject> matches = existingProjects.get(project);
+            if (matches.isEmpty()) {
+                // renamed in sonar, the project id still matches
+                matches = existingProjects.getById(project);
+            }
+            existingProjects.markListed(matches);
+            if (matches.isEmpty()) {
                 project.setCollectorId(collector.getId());
                 project.setEnabled(false);
                 project.setDescription(project.getProjectName());
@@ -382,19 +823,22 @@ public class SonarCollectorTask extends CollectorTask<SonarCollector> {
                         project.getProjectName(), project.getProjectId()));
                 newCount++;
             }else{
-                int[] indexes = IntStream.range(0,existingProjects.size()).filter(i-> existingProjects.get(i).equals(project)).toArray();
-                for (int index :indexes) {
-                    SonarProject s = existingProjects.get(index);
+                for (SonarProject s : matches) {
                     if(Objects.isNull(s.getProjectId())){
                         LOG.info("ProjectId is null for sonar project="+s.getProjectName());
                     }
-                    if ((Objects.nonNull(s.getProjectId()) && !s.getProjectId().equals(project.getProjectId())) || !StringUtils.equals(s.getNiceName(),project.getNiceName())) {
+                    if ((Objects.nonNull(s.getProjectId()) && !s.getProjectId().equals(project.getProjectId()))
+                            || !StringUtils.equals(s.getProjectName(), project.getProjectName())
+                            || !StringUtils.equals(s.getNiceName(),project.getNiceName())
+                            || (Objects.nonNull(project.getProjectKey()) && !project.getProjectKey().equals(s.getProjectKey()))) {
                         LOG.info(String.format("UpdatedProject projectName=%s projectId=%s enabled=%s",
                                 project.getProjectName(), s.getProjectId(), Boolean.toString(s.isEnabled())));
                         if (s.getErrors().size() > 0) {
                             s.getErrors().clear();
                         }
                         s.setProjectId(project.getProjectId());
+                        s.setProjectKey(project.getProjectKey());
+                        s.setProjectName(project.getProjectName());
                         if (StringUtils.isEmpty(s.getNiceName())) {
                             s.setNiceName(niceName);
                         }
@@ -413,6 +857,7 @@ public class SonarCollectorTask extends CollectorTask<SonarCollector> {
         }
         LOG.info(String.format("addNewProjects projectsInSonar=%d existingProjects=%d new=%d updated=%d timeUsed=%d",
                 projects.size(), existingProjects.size(), newCount, updatedCount, System.currentTimeMillis()-start));
+        return newCount;
     }
 
     private String getNiceName(SonarProject project, SonarCollector sonarCollector){
@@ -436,17 +881,19 @@ public class SonarCollectorTask extends CollectorTask<SonarCollector> {
                 collector.getId(), application.getInstanceUrl(), application.getProjectId()) == null;
     }
 
-    private boolean isNewQualityData(SonarProject project, CodeQuality codeQuality) {
-        return codeQualityRepository.findByCollectorItemIdAndTimestamp(
-                project.getId(), codeQuality.getTimestamp()) == null;
+    /**
+     * Claims the analysis for this refresh when it is newer than the one stored or claimed by another refresh.
+     */
+    private boolean isNewQualityData(SonarProject project, CodeQuality codeQuality, RefreshRun run) {
+        Long latest = run.latestTimestamps.get(project.getId());
+        if (project.getId() == null) {
+            return latest == null || codeQuality.getTimestamp() > latest;
+        }
+        return analysisClaims.claim(run.claims, project.getId(), codeQuality.getTimestamp(), latest);
     }
 
     private long convertToTimestamp(String date) {
-
-        DateTimeFormatter formatter = DateTimeFormat.forPattern("yyyy-MM-dd'T'HH:mm:ssZ");
-        DateTime dt = formatter.parseDateTime(date);
-
-        return new DateTime(dt).getMillis();
+        return SonarDateParser.parse(date);
     }
 
     private ConfigHistOperationType determineConfigChangeOperationType(String changeAction){
@@ -461,4 +908,35 @@ public class SonarCollectorTask extends CollectorTask<SonarCollector> {
                 return ConfigHistOperationType.CHANGED;
         }
     }
+
+    /**
+     * State shared by the workers refreshing one instance.
+     */
+    private static final class RefreshRun {
+        private final SonarClient sonarClient;
+        private final Map<ObjectId, Long> latestTimestamps;
+        private final SonarBulkWriter writer;
+        private final Timer refreshTimer;
+        private final SonarRunCheckpoint checkpoint;
+        private final SonarAnalysisClaims.Refresh claims;
+        private final SonarShardCoordinator.Assignment assignment;
+        private final AtomicBoolean fenced = new AtomicBoolean();
+        private final AtomicInteger total = new AtomicInteger(0);
+        private final AtomicInteger updated = new AtomicInteger(0);
+        private final AtomicInteger disabled = new AtomicInteger(0);
+        private final Set<ObjectId> failed = ConcurrentHashMap.newKeySet();
+        private final Set<ObjectId> notFound = ConcurrentHashMap.newKeySet();
+
+        private RefreshRun(SonarClient sonarClient, Map<ObjectId, Long> latestTimestamps, SonarBulkWriter writer,
+                           Timer refreshTimer, SonarRunCheckpoint checkpoint, SonarAnalysisClaims.Refresh claims,
+                           SonarShardCoordinator.Assignment assignment) {
+            this.sonarClient = sonarClient;
+            this.latestTimestamps = latestTimestamps;
+            this.writer = writer;
+            this.refreshTimer = refreshTimer;
+            this.checkpoint = checkpoint;
+            this.claims = claims;
+            this.assignment = assignment;
+        }
+    }
 }
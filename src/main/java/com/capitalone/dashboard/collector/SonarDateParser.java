@@ -0,0 +1,125 @@
+package com.capitalone.dashboard.collector;
+
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.DateTimeParseException;
+import java.time.format.ResolverStyle;
+import java.util.Locale;
+
+/**
+ * Parses the dates of the Sonar web services, e.g. {@code 2015-02-23T17:58:39+0100}, into epoch milliseconds.
+ * Dates in exactly that layout are read field by field; anything else goes through a shared
+ * {@link DateTimeFormatter}, which also takes fractions of seconds and {@code +01:00} or {@code Z} offsets.
+ */
+final class SonarDateParser {
+    // layout of the dates of the Sonar web services, in SimpleDateFormat patterns
+    static final String DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ssZ";
+
+    private static final DateTimeFormatter FORMATTER = new DateTimeFormatterBuilder()
+            .append(DateTimeFormatter.ISO_LOCAL_DATE_TIME)
+            .appendPattern("[XXX][XX]")
+            .toFormatter(Locale.ROOT)
+            .withResolverStyle(ResolverStyle.STRICT);
+
+    private static final int FIXED_LENGTH = "2015-02-23T17:58:39+0100".length();
+    // earlier dates are Julian for SimpleDateFormat and proleptic Gregorian for java.time, leave them to the formatter
+    private static final int MIN_FAST_YEAR = 1600;
+    private static final int MAX_OFFSET_HOURS = 18;
+    private static final long MILLIS_PER_SECOND = 1000L;
+    private static final int SECONDS_PER_DAY = 86400;
+    // days from 0000-03-01 to 1970-01-01
+    private static final int DAYS_0000_TO_1970 = 719468;
+
+    private SonarDateParser() {
+    }
+
+    /**
+     * @throws DateTimeParseException when the date is not a valid date with an offset
+     */
+    static long parse(String date) {
+        if (date.length() == FIXED_LENGTH) {
+            long millis = parseFixed(date);
+            if (millis != Long.MIN_VALUE) {
+                return millis;
+            }
+        }
+        return FORMATTER.parse(date, Instant::from).toEpochMilli();
+    }
+
+    /**
+     * @return the epoch milliseconds, or {@code Long.MIN_VALUE} when the date is not a valid date in the fixed layout
+     */
+    private static long parseFixed(String date) {
+        if (date.charAt(4) != '-' || date.charAt(7) != '-' || date.charAt(10) != 'T' || date.charAt(13) != ':'
+                || date.charAt(16) != ':') {
+            return Long.MIN_VALUE;
+        }
+        char sign = date.charAt(19);
+        if (sign != '+' && sign != '-') {
+            return Long.MIN_VALUE;
+        }
+        int year = digits(date, 0, 4);
+        int month = digits(date, 5, 2);
+        int day = digits(date, 8, 2);
+        int hour = digits(date, 11, 2);
+        int minute = digits(date, 14, 2);
+        int second = digits(date, 17, 2);
+        int offsetHours = digits(date, 20, 2);
+        int offsetMinutes = digits(date, 22, 2);
+        if (year < MIN_FAST_YEAR || month < 1 || month > 12 || day < 1 || day > lengthOfMonth(year, month)
+                || hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59
+                || offsetHours < 0 || offsetHours > MAX_OFFSET_HOURS || offsetMinutes < 0 || offsetMinutes > 59) {
+            return Long.MIN_VALUE;
+        }
+        int offsetSeconds = (offsetHours * 60 + offsetMinutes) * 60;
+        long seconds = epochDay(year, month, day) * SECONDS_PER_DAY + (hour * 60 + minute) * 60 + second
+                - (sign == '+' ? offsetSeconds : -offsetSeconds);
+        return seconds * MILLIS_PER_SECOND;
+    }
+
+    /**
+     * @return the number in ASCII digits, or -1 when there is any other character
+     */
+    private static int digits(String date, int start, int length) {
+        int value = 0;
+        for (int i = start; i < start + length; i++) {
+            char c = date.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static int lengthOfMonth(int year, int month) {
+        switch (month) {
+            case 2:
+                return isLeapYear(year) ? 29 : 28;
+            case 4:
+            case 6:
+            case 9:
+            case 11:
+                return 30;
+            default:
+                return 31;
+        }
+    }
+
+    private static boolean isLeapYear(int year) {
+        return (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+    }
+
+    /**
+     * Days since 1970-01-01 of a Gregorian date, counting years from March so February ends the year.
+     */
+    private static long epochDay(int year, int month, int day) {
+        int marchYear = month <= 2 ? year - 1 : year;
+        int era = marchYear / 400;
+        int yearOfEra = marchYear - era * 400;
+        int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return (long) era * 146097 + dayOfEra - DAYS_0000_TO_1970;
+    }
+}
@@ -0,0 +1,397 @@
+package com.capitalone.dashboard.collector;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.json.simple.parser.ParseException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Reads the fields the collector needs straight off sonar responses with a streaming parser,
+ * skipping everything else instead of building a json tree of the whole body.
+ */
+final class SonarJsonReader {
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private static final String PAGING = "paging";
+    private static final String TOTAL = "total";
+    private static final String ANALYSES = "analyses";
+    private static final String EVENTS = "events";
+    private static final String CATEGORY = "category";
+    private static final String CATEGORY_VERSION = "VERSION";
+
+    private SonarJsonReader() {
+    }
+
+    /**
+     * Reads a page of a listing, handing every element of {@code arrayField} to {@code consumer}.
+     * A null consumer skips the elements.
+     *
+     * @return the paging total of the page, 0 when the page has none
+     */
+    static long readPage(String body, String arrayField, Consumer<SonarComponent> consumer) throws ParseException {
+        long total = 0;
+        try (JsonParser parser = open(body)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw unexpected(parser);
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if (PAGING.equals(name) && token == JsonToken.START_OBJECT) {
+                    total = readTotal(parser);
+                } else if (arrayField.equals(name) && token == JsonToken.START_ARRAY && consumer != null) {
+                    readComponents(parser, consumer);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        } catch (IOException e) {
+            throw parseException(e);
+        }
+        return total;
+    }
+
+    /**
+     * Reads a body that is a bare array of components, as returned by sonar before 6.3.
+     */
+    static void readArray(String body, Consumer<SonarComponent> consumer) throws ParseException {
+        try (JsonParser parser = open(body)) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw unexpected(parser);
+            }
+            readComponents(parser, consumer);
+        } catch (IOException e) {
+            throw parseException(e);
+        }
+    }
+
+    /**
+     * @return the component held by {@code objectField}, or null when the body has none
+     */
+    static SonarComponent readComponent(String body, String objectField) throws ParseException {
+        try (JsonParser parser = open(body)) {
+            if (seekField(parser, objectField) && parser.currentToken() == JsonToken.START_OBJECT) {
+                return readComponent(parser);
+            }
+            return null;
+        } catch (IOException e) {
+            throw parseException(e);
+        }
+    }
+
+    /**
+     * @return the measures held by {@code arrayField}, empty when the body has none
+     */
+    static List<SonarMeasure> readMeasures(String body, String arrayField) throws ParseException {
+        try (JsonParser parser = open(body)) {
+            if (seekField(parser, arrayField) && parser.currentToken() == JsonToken.START_ARRAY) {
+                return readMeasures(parser);
+            }
+            return Collections.emptyList();
+        } catch (IOException e) {
+            throw parseException(e);
+        }
+    }
+
+    /**
+     * Reads the first, most recent, entry of a project_analyses response and leaves the rest unread.
+     *
+     * @return the latest analysis, or null when the project has none
+     */
+    static SonarAnalysis readLatestAnalysis(String body) throws ParseException {
+        try (JsonParser parser = open(body)) {
+            if (seekField(parser, ANALYSES) && parser.currentToken() == JsonToken.START_ARRAY
+                    && parser.nextToken() == JsonToken.START_OBJECT) {
+                return readAnalysis(parser);
+            }
+            return null;
+        } catch (IOException e) {
+            throw parseException(e);
+        }
+    }
+
+    private static JsonParser open(String body) throws IOException, ParseException {
+        if (body == null) {
+            throw new ParseException(ParseException.ERROR_UNEXPECTED_EXCEPTION, "empty response body");
+        }
+        return JSON_FACTORY.createParser(body);
+    }
+
+    /**
+     * Moves the parser onto the value of a top level field.
+     */
+    private static boolean seekField(JsonParser parser, String field) throws IOException, ParseException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            throw unexpected(parser);
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            parser.nextToken();
+            if (field.equals(name)) {
+                return true;
+            }
+            parser.skipChildren();
+        }
+        return false;
+    }
+
+    private static long readTotal(JsonParser parser) throws IOException {
+        long total = 0;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if (TOTAL.equals(name) && token == JsonToken.VALUE_NUMBER_INT) {
+                total = parser.getLongValue();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return total;
+    }
+
+    private static void readComponents(JsonParser parser, Consumer<SonarComponent> consumer) throws IOException {
+        JsonToken token;
+        while ((token = parser.nextToken()) != JsonToken.END_ARRAY && token != null) {
+            if (token == JsonToken.START_OBJECT) {
+                consumer.accept(readComponent(parser));
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    private static SonarComponent readComponent(JsonParser parser) throws IOException {
+        SonarComponent component = new SonarComponent();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            switch (name) {
+                case "id": component.id = text(parser); break;
+                case "key": component.key = text(parser); break;
+                // "nm" in the /api/projects listing of 5.x
+                case "name":
+                case "nm": component.name = text(parser); break;
+                case "lastAnalysisDate": component.lastAnalysisDate = text(parser); break;
+                case "date": component.date = text(parser); break;
+                case "version": component.version = text(parser); break;
+                case "measures":
+                case "msr":
+                    if (token == JsonToken.START_ARRAY) {
+                        component.measures = readMeasures(parser);
+                    } else {
+                        parser.skipChildren();
+                    }
+                    break;
+                default: parser.skipChildren();
+            }
+        }
+        return component;
+    }
+
+    private static List<SonarMeasure> readMeasures(JsonParser parser) throws IOException {
+        List<SonarMeasure> measures = new ArrayList<>();
+        JsonToken token;
+        while ((token = parser.nextToken()) != JsonToken.END_ARRAY && token != null) {
+            if (token == JsonToken.START_OBJECT) {
+                measures.add(readMeasure(parser));
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return measures;
+    }
+
+    private static SonarMeasure readMeasure(JsonParser parser) throws IOException {
+        SonarMeasure measure = new SonarMeasure();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            parser.nextToken();
+            switch (name) {
+                case "component": measure.component = text(parser); break;
+                // "metric" since 6.3, "key" in the /api/resources measures before
+                case "metric":
+                case "key": measure.metric = text(parser); break;
+                case "value":
+                case "val": measure.value = text(parser); break;
+                case "frmt_val": measure.formattedValue = text(parser); break;
+                case "alert": measure.alert = text(parser); break;
+                case "alert_text": measure.alertText = text(parser); break;
+                default: parser.skipChildren();
+            }
+        }
+        return measure;
+    }
+
+    private static SonarAnalysis readAnalysis(JsonParser parser) throws IOException {
+        SonarAnalysis analysis = new SonarAnalysis();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if ("date".equals(name)) {
+                analysis.date = text(parser);
+            } else if (EVENTS.equals(name) && token == JsonToken.START_ARRAY) {
+                readVersionEvents(parser, analysis);
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return analysis;
+    }
+
+    private static void readVersionEvents(JsonParser parser, SonarAnalysis analysis) throws IOException {
+        JsonToken token;
+        while ((token = parser.nextToken()) != JsonToken.END_ARRAY && token != null) {
+            if (token != JsonToken.START_OBJECT) {
+                parser.skipChildren();
+                continue;
+            }
+            String category = null;
+            String eventName = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                parser.nextToken();
+                if (CATEGORY.equals(name)) {
+                    category = text(parser);
+                } else if ("name".equals(name)) {
+                    eventName = text(parser);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            if (CATEGORY_VERSION.equals(category)) {
+                analysis.version = eventName;
+            }
+        }
+    }
+
+    /**
+     * Text of a scalar value, rendered the way json-simple renders the parsed value. Objects and
+     * arrays are skipped and read as null.
+     */
+    private static String text(JsonParser parser) throws IOException {
+        switch (parser.currentToken()) {
+            case VALUE_STRING:
+            case VALUE_TRUE:
+            case VALUE_FALSE:
+                return parser.getText();
+            case VALUE_NUMBER_INT:
+                return parser.getNumberValue().toString();
+            case VALUE_NUMBER_FLOAT:
+                return String.valueOf(parser.getDoubleValue());
+            case START_OBJECT:
+            case START_ARRAY:
+                parser.skipChildren();
+                return null;
+            default:
+                return null;
+        }
+    }
+
+    private static ParseException unexpected(JsonParser parser) {
+        return new ParseException((int) parser.getCurrentLocation().getCharOffset(),
+                ParseException.ERROR_UNEXPECTED_TOKEN, parser.currentToken());
+    }
+
+    private static ParseException parseException(IOException e) {
+        return new ParseException(ParseException.ERROR_UNEXPECTED_EXCEPTION, e);
+    }
+
+    /**
+     * A project, or component, of a sonar listing or measures response.
+     */
+    static final class SonarComponent {
+        private String id;
+        private String key;
+        private String name;
+        private String lastAnalysisDate;
+        private String date;
+        private String version;
+        private List<SonarMeasure> measures = Collections.emptyList();
+
+        String getId() {
+            return id;
+        }
+
+        String getKey() {
+            return key;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        String getLastAnalysisDate() {
+            return lastAnalysisDate;
+        }
+
+        String getDate() {
+            return date;
+        }
+
+        String getVersion() {
+            return version;
+        }
+
+        List<SonarMeasure> getMeasures() {
+            return measures;
+        }
+    }
+
+    /**
+     * A single measure of a component.
+     */
+    static final class SonarMeasure {
+        private String component;
+        private String metric;
+        private String value;
+        private String formattedValue;
+        private String alert;
+        private String alertText;
+
+        String getComponent() {
+            return component;
+        }
+
+        String getMetric() {
+            return metric;
+        }
+
+        String getValue() {
+            return value;
+        }
+
+        String getFormattedValue() {
+            return formattedValue;
+        }
+
+        String getAlert() {
+            return alert;
+        }
+
+        String getAlertText() {
+            return alertText;
+        }
+    }
+
+    /**
+     * Date and version of the latest analysis of a project.
+     */
+    static final class SonarAnalysis {
+        private String date;
+        private String version;
+
+        String getDate() {
+            return date;
+        }
+
+        String getVersion() {
+            return version;
+        }
+    }
+}
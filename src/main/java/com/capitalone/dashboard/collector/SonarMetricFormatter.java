@@ -0,0 +1,156 @@
+package com.capitalone.dashboard.collector;
+
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.text.NumberFormat;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Formats measure values for display the way {@code String.format} based formatting always did, without
+ * a regular expression, a {@link java.util.Formatter} or boxing per value.
+ */
+final class SonarMetricFormatter {
+    private static final int HOURS_IN_DAY = 8;
+    private static final int MINUTES_IN_HOUR = 60;
+    // grouping of %,d per format locale, checked against String.format before it is used
+    private static final Map<Locale, Grouping> GROUPINGS = new ConcurrentHashMap<>();
+
+    private SonarMetricFormatter() {
+    }
+
+    /**
+     * Decimals get a {@code %} suffix, plain integers are grouped like {@code %,d} in the default format
+     * locale and anything else is kept as is.
+     *
+     * @throws NumberFormatException for digits beyond the int range, as {@code Integer.valueOf} does
+     */
+    static String formatValue(String value) {
+        if (value == null) {
+            return null;
+        }
+        if (value.indexOf('.') > 0) {
+            return value + "%";
+        }
+        if (isDigits(value)) {
+            return formatGrouped(Integer.parseInt(value));
+        }
+        return value;
+    }
+
+    /**
+     * Formats technical debt in minutes as days of 8 hours, hours and minutes, e.g. {@code 1d 2h}.
+     *
+     * @throws NumberFormatException when the duration is not a number
+     */
+    static String formatDuration(String duration) {
+        long durationInMinutes = Long.parseLong(duration);
+        if (durationInMinutes == 0) {
+            return "0";
+        }
+        boolean isNegative = durationInMinutes < 0;
+        long absDuration = Math.abs(durationInMinutes);
+
+        int days = (int) ((double) absDuration / HOURS_IN_DAY / MINUTES_IN_HOUR);
+        long remainingDuration = absDuration - (days * HOURS_IN_DAY * MINUTES_IN_HOUR);
+        int hours = (int) ((double) remainingDuration / MINUTES_IN_HOUR);
+        remainingDuration = remainingDuration - (hours * MINUTES_IN_HOUR);
+        int minutes = (int) remainingDuration;
+
+        StringBuilder message = new StringBuilder(16);
+        if (days > 0) {
+            message.append(isNegative ? (-1 * days) : days).append('d');
+        }
+        if (hours > 0 && days < 10) {
+            addSpaceIfNeeded(message);
+            message.append(isNegative && message.length() == 0 ? (-1 * hours) : hours).append('h');
+        }
+        if (minutes > 0 && hours < 10 && days == 0) {
+            addSpaceIfNeeded(message);
+            message.append(isNegative && message.length() == 0 ? (-1 * minutes) : minutes).append("min");
+        }
+        return message.toString();
+    }
+
+    private static void addSpaceIfNeeded(StringBuilder message) {
+        if (message.length() > 0) {
+            message.append(' ');
+        }
+    }
+
+    /**
+     * Same as matching {@code \d+}, which only takes ASCII digits.
+     */
+    private static boolean isDigits(String value) {
+        if (value.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String formatGrouped(int number) {
+        Locale locale = Locale.getDefault(Locale.Category.FORMAT);
+        return GROUPINGS.computeIfAbsent(locale, Grouping::of).format(locale, number);
+    }
+
+    /**
+     * Separator, group size and digits of {@code %,d} in one locale. A locale whose grouping does not
+     * come out the same as {@code String.format} keeps being formatted by it.
+     */
+    private static final class Grouping {
+        private static final int[] PROBES = {0, 7, 1234, 123456789, Integer.MAX_VALUE};
+        // ten digits of an int and a separator between each
+        private static final int MAX_LENGTH = 19;
+
+        private final char separator;
+        private final int size;
+        private final char zero;
+        private final boolean exact;
+
+        private Grouping(char separator, int size, char zero, boolean exact) {
+            this.separator = separator;
+            this.size = size;
+            this.zero = zero;
+            this.exact = exact;
+        }
+
+        private static Grouping of(Locale locale) {
+            DecimalFormatSymbols symbols = DecimalFormatSymbols.getInstance(locale);
+            NumberFormat integerFormat = NumberFormat.getIntegerInstance(locale);
+            int size = integerFormat instanceof DecimalFormat ? ((DecimalFormat) integerFormat).getGroupingSize() : 3;
+            Grouping grouping = new Grouping(symbols.getGroupingSeparator(), size, symbols.getZeroDigit(), size > 0);
+            for (int probe : PROBES) {
+                if (!grouping.exact || !String.format(locale, "%,d", probe).equals(grouping.format(locale, probe))) {
+                    return new Grouping(symbols.getGroupingSeparator(), size, symbols.getZeroDigit(), false);
+                }
+            }
+            return grouping;
+        }
+
+        private String format(Locale locale, int number) {
+            if (!exact) {
+                return String.format(locale, "%,d", number);
+            }
+            char[] chars = new char[MAX_LENGTH];
+            int start = chars.length;
+            int digits = 0;
+            int remaining = number;
+            do {
+                if (digits > 0 && digits % size == 0) {
+                    chars[--start] = separator;
+                }
+                chars[--start] = (char) (zero + remaining % 10);
+                remaining /= 10;
+                digits++;
+            } while (remaining > 0);
+            return new String(chars, start, chars.length - start);
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package com.capitalone.dashboard.collector;
+
+import com.capitalone.dashboard.model.SonarCollector;
+import com.capitalone.dashboard.model.SonarProject;
+import com.capitalone.dashboard.repository.CodeQualityTimestampRepository;
+import com.capitalone.dashboard.repository.SonarCollectorRepository;
+import com.capitalone.dashboard.repository.SonarProjectRepository;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+
+/**
+ * Polls every enabled project on its own schedule, next to the {@code sonar.cron} collection run, when
+ * {@link SonarSettings#isAdaptivePolling()} is set. The interval of a project is half the time between its
+ * recent analyses, or half the time since its last analysis when that is longer, kept between
+ * {@link SonarSettings#getAdaptivePollingMinMinutes()} and {@link SonarSettings#getAdaptivePollingMaxMinutes()}.
+ * Projects analysed every hour are so polled often and dormant ones rarely. The projects due are refreshed
+ * every minute, except while a collection run is refreshing all of them anyway. A run starting during a poll
+ * does not store an analysis twice, see {@link SonarAnalysisClaims}.
+ */
+@Component
+public class SonarPollingScheduler {
+    private static final Log LOG = LogFactory.getLog(SonarPollingScheduler.class);
+
+    private static final long TICK_SECONDS = 60;
+    // enabled and disabled projects are picked up when the queue is rebuilt
+    private static final long REBUILD_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final long HISTORY_MILLIS = TimeUnit.DAYS.toMillis(30);
+    private static final int HISTORY_SIZE = 10;
+
+    private final SonarSettings settings;
+    private final SonarCollectorTask collectorTask;
+    private final SonarCollectorRepository collectorRepository;
+    private final SonarProjectRepository projectRepository;
+    private final CodeQualityTimestampRepository timestampRepository;
+    private final SonarShardCoordinator shardCoordinator;
+    // next poll of every known project, earliest first
+    private final PriorityQueue<Due> queue = new PriorityQueue<>(Comparator.comparingLong(due -> due.dueAt));
+    private final Map<ObjectId, Due> dues = new HashMap<>();
+    private long nextRebuild;
+    private ScheduledExecutorService poller;
+
+    @Autowired
+    public SonarPollingScheduler(SonarSettings settings, SonarCollectorTask collectorTask,
+                                 SonarCollectorRepository collectorRepository, SonarProjectRepository projectRepository,
+                                 CodeQualityTimestampRepository timestampRepository,
+                                 SonarShardCoordinator shardCoordinator) {
+        this.settings = settings;
+        this.collectorTask = collectorTask;
+        this.collectorRepository = collectorRepository;
+        this.projectRepository = projectRepository;
+        this.timestampRepository = timestampRepository;
+        this.shardCoordinator = shardCoordinator;
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!settings.isAdaptivePolling()) {
+            return;
+        }
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("sonar-polling-");
+        threadFactory.setDaemon(true);
+        poller = Executors.newSingleThreadScheduledExecutor(threadFactory);
+        poller.scheduleWithFixedDelay(() -> {
+            try {
+                poll(System.currentTimeMillis());
+            } catch (RuntimeException e) {
+                LOG.error("SonarPollingScheduler poll failed", e);
+            }
+        }, TICK_SECONDS, TICK_SECONDS, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (poller != null) {
+            poller.shutdownNow();
+        }
+    }
+
+    /**
+     * Refreshes the projects due at {@code now} and schedules their next poll.
+     *
+     * @return the number of projects refreshed
+     */
+    synchronized int poll(long now) {
+        if (collectorTask.isCollecting()) {
+            return 0;
+        }
+        if (now >= nextRebuild) {
+            rebuild(now);
+        }
+        List<ObjectId> dueIds = new ArrayList<>();
+        while (!queue.isEmpty() && queue.peek().dueAt <= now) {
+            Due due = queue.poll();
+            dues.remove(due.projectId);
+            dueIds.add(due.projectId);
+        }
+        if (dueIds.isEmpty()) {
+            return 0;
+        }
+        // reloaded, so projects disabled since are left out and nothing stale is written back
+        SonarShardCoordinator.Assignment assignment = shardCoordinator.hold();
+        List<SonarProject> projects;
+        try {
+            projects = StreamSupport.stream(projectRepository.findAllById(dueIds).spliterator(), false)
+                    .filter(SonarProject::isEnabled)
+                    .filter(assignment::ownsProject)
+                    .collect(Collectors.toList());
+            Map<String, List<SonarProject>> byInstance = projects.stream()
+                    .collect(Collectors.groupingBy(SonarProject::getInstanceUrl, LinkedHashMap::new, Collectors.toList()));
+            for (Map.Entry<String, List<SonarProject>> instance : byInstance.entrySet()) {
+                try {
+                    collectorTask.refreshProjects(instance.getKey(), instance.getValue());
+                } catch (RuntimeException e) {
+                    LOG.error(String.format("SonarPollingScheduler refresh failed, instanceUrl=%s projects=%d: %s",
+                            instance.getKey(), instance.getValue().size(), e.getMessage()));
+                }
+            }
+        } finally {
+            shardCoordinator.release(assignment);
+        }
+        schedule(projects, now, false);
+        LOG.info(String.format("SonarPollingScheduler refreshed=%d scheduled=%d", projects.size(), queue.size()));
+        return projects.size();
+    }
+
+    /**
+     * @param timestamps recent analyses of a project, latest first
+     * @return milliseconds until the project is polled again
+     */
+    static long pollInterval(long[] timestamps, long now, long minMillis, long maxMillis) {
+        if (timestamps.length == 0) {
+            return maxMillis;
+        }
+        long cadence = maxMillis;
+        if (timestamps.length > 1) {
+            long[] gaps = new long[timestamps.length - 1];
+            for (int i = 0; i < gaps.length; i++) {
+                gaps[i] = Math.max(0, timestamps[i] - timestamps[i + 1]);
+            }
+            Arrays.sort(gaps);
+            cadence = gaps[gaps.length / 2];
+        }
+        long sinceLatest = Math.max(0, now - timestamps[0]);
+        return Math.min(maxMillis, Math.max(minMillis, Math.max(cadence, sinceLatest) / 2));
+    }
+
+    /**
+     * Queues the enabled projects not queued yet and drops those no longer enabled. Known projects keep
+     * their next poll; new ones were just collected by a run or are new, so they are first polled after
+     * half to one interval, spread so the projects of a rebuild do not all come due together.
+     */
+    private void rebuild(long now) {
+        nextRebuild = now + REBUILD_MILLIS;
+        SonarCollector collector = collectorRepository.findByName("Sonar");
+        if (collector == null) {
+            return;
+        }
+        SonarShardCoordinator.Assignment assignment = shardCoordinator.assignment();
+        List<SonarProject> enabled = new ArrayList<>();
+        for (String instanceUrl : collector.getSonarServers()) {
+            projectRepository.findEnabledProjects(collector.getId(), instanceUrl).stream()
+                    .filter(assignment::ownsProject)
+                    .forEach(enabled::add);
+        }
+        Set<ObjectId> enabledIds = enabled.stream().map(SonarProject::getId).collect(Collectors.toSet());
+        queue.removeIf(due -> !enabledIds.contains(due.projectId));
+        dues.keySet().retainAll(enabledIds);
+        List<SonarProject> added = enabled.stream()
+                .filter(project -> !dues.containsKey(project.getId()))
+                .collect(Collectors.toList());
+        schedule(added, now, true);
+        LOG.info(String.format("SonarPollingScheduler rebuilt, enabled=%d added=%d", enabled.size(), added.size()));
+    }
+
+    private void schedule(Collection<SonarProject> projects, long now, boolean spread) {
+        if (projects.isEmpty()) {
+            return;
+        }
+        List<ObjectId> ids = projects.stream().map(SonarProject::getId).collect(Collectors.toList());
+        Map<ObjectId, long[]> history = timestampRepository.findRecentTimestamps(ids, now - HISTORY_MILLIS, HISTORY_SIZE);
+        long minMillis = TimeUnit.MINUTES.toMillis(settings.getAdaptivePollingMinMinutes());
+        long maxMillis = Math.max(minMillis, TimeUnit.MINUTES.toMillis(settings.getAdaptivePollingMaxMinutes()));
+        for (SonarProject project : projects) {
+            long interval = pollInterval(history.getOrDefault(project.getId(), new long[0]), now, minMillis, maxMillis);
+            if (spread) {
+                interval -= Math.floorMod(project.getId().hashCode(), interval / 2 + 1);
+            }
+            Due due = new Due(project.getId(), now + interval);
+            dues.put(project.getId(), due);
+            queue.add(due);
+        }
+    }
+
+    /**
+     * @return the next poll of every queued project
+     */
+    synchronized Map<ObjectId, Long> dueTimes() {
+        return Collections.unmodifiableMap(dues.values().stream()
+                .collect(Collectors.toMap(due -> due.projectId, due -> due.dueAt)));
+    }
+
+    private static final class Due {
+        private final ObjectId projectId;
+        private final long dueAt;
+
+        private Due(ObjectId projectId, long dueAt) {
+            this.projectId = projectId;
+            this.dueAt = dueAt;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.capitalone.dashboard.collector;
+
+import com.capitalone.dashboard.model.SonarProject;
+import org.bson.types.ObjectId;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Hash indexes of the stored sonar projects by (instanceUrl, projectName), the identity
+ * {@link SonarProject#equals(Object)} uses, and by (instanceUrl, projectId), so reconciling a listing against
+ * the stored projects takes one lookup per project instead of a scan. The stored projects a listing matched
+ * are marked, those of an instance left unmarked once its listing is done are stale.
+ */
+final class SonarProjectIndex {
+    private final Map<List<String>, List<SonarProject>> projectsByName = new HashMap<>();
+    private final Map<List<String>, List<SonarProject>> projectsById = new HashMap<>();
+    private final Map<String, List<SonarProject>> projectsByInstance = new HashMap<>();
+    // instances are reconciled in parallel
+    private final Set<ObjectId> listed = ConcurrentHashMap.newKeySet();
+    private final int size;
+
+    SonarProjectIndex(Collection<SonarProject> projects) {
+        this.size = projects.size();
+        for (SonarProject project : projects) {
+            projectsByName.computeIfAbsent(key(project), k -> new ArrayList<>(1)).add(project);
+            if (project.getProjectId() != null) {
+                projectsById.computeIfAbsent(idKey(project), k -> new ArrayList<>(1)).add(project);
+            }
+            projectsByInstance.computeIfAbsent(project.getInstanceUrl(), k -> new ArrayList<>()).add(project);
+        }
+    }
+
+    /**
+     * @return every indexed project equal to {@code project}, in indexing order
+     */
+    List<SonarProject> get(SonarProject project) {
+        return projectsByName.getOrDefault(key(project), Collections.emptyList());
+    }
+
+    /**
+     * @return every indexed project of the instance with the project id of {@code project}, in indexing order
+     */
+    List<SonarProject> getById(SonarProject project) {
+        if (project.getProjectId() == null) {
+            return Collections.emptyList();
+        }
+        return projectsById.getOrDefault(idKey(project), Collections.emptyList());
+    }
+
+    boolean contains(SonarProject project) {
+        return projectsByName.containsKey(key(project));
+    }
+
+    /**
+     * Marks stored projects as matched by the listing of their instance.
+     */
+    void markListed(Collection<SonarProject> projects) {
+        for (SonarProject project : projects) {
+            if (project.getId() != null) {
+                listed.add(project.getId());
+            }
+        }
+    }
+
+    /**
+     * @return the stored projects of the instance no listed project matched, in indexing order
+     */
+    List<SonarProject> stale(String instanceUrl) {
+        return projectsByInstance.getOrDefault(instanceUrl, Collections.emptyList()).stream()
+                .filter(project -> project.getId() != null && !listed.contains(project.getId()))
+                .collect(Collectors.toList());
+    }
+
+    int size() {
+        return size;
+    }
+
+    private static List<String> key(SonarProject project) {
+        return Arrays.asList(project.getInstanceUrl(), project.getProjectName());
+    }
+
+    private static List<String> idKey(SonarProject project) {
+        return Arrays.asList(project.getInstanceUrl(), project.getProjectId());
+    }
+}
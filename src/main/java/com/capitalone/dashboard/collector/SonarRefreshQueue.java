@@ -0,0 +1,175 @@
+package com.capitalone.dashboard.collector;
+
+import com.capitalone.dashboard.model.SonarProject;
+import com.capitalone.dashboard.repository.SonarProjectRepository;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs refreshes requested through the api and the webhook in the background, on
+ * {@link SonarSettings#getRefreshQueueThreads()} workers. Every refresh gets a {@link SonarRefreshTicket}
+ * to poll; a refresh requested again while an earlier one of the same project is still queued gets the
+ * ticket of the earlier one, so bursts of requests for a project refresh it once. A project is refreshed
+ * by one worker at a time: a refresh requested while one is running waits for it to finish, and requests
+ * arriving meanwhile share its ticket.
+ */
+@Component
+public class SonarRefreshQueue {
+    private static final Log LOG = LogFactory.getLog(SonarRefreshQueue.class);
+
+    // finished tickets can be polled for an hour
+    private static final long TICKET_RETENTION_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private final SonarCollectorTask collectorTask;
+    private final SonarProjectRepository projectRepository;
+    private final ThreadPoolExecutor executor;
+    // guards queued, running and deferred, so a key is only handed to a worker once its last refresh finished
+    private final Object lock = new Object();
+    // tickets of the refreshes not started yet, by key
+    private final Map<String, SonarRefreshTicket> queued = new HashMap<>();
+    // keys with a refresh running, reserved until it finishes
+    private final Map<String, SonarRefreshTicket> running = new HashMap<>();
+    // refreshes handed to a worker once the running one of their key finishes
+    private final Map<String, Runnable> deferred = new HashMap<>();
+    private final Map<String, SonarRefreshTicket> tickets = new ConcurrentHashMap<>();
+
+    @Autowired
+    public SonarRefreshQueue(SonarSettings settings, SonarCollectorTask collectorTask,
+                             SonarProjectRepository projectRepository) {
+        this.collectorTask = collectorTask;
+        this.projectRepository = projectRepository;
+        int threads = Math.max(1, settings.getRefreshQueueThreads());
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("sonar-refresh-queue-");
+        threadFactory.setDaemon(true);
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(Math.max(1, settings.getRefreshQueueCapacity())), threadFactory);
+    }
+
+    /**
+     * Queues the refresh of a stored project, reloaded when it starts so a project disabled meanwhile
+     * is left alone.
+     *
+     * @return the ticket of the refresh, null when the queue is full
+     */
+    public SonarRefreshTicket enqueue(SonarProject project) {
+        ObjectId id = project.getId();
+        return submit(key(project), () -> {
+            SonarProject current = projectRepository.findById(id).orElse(null);
+            if (current == null || !current.isEnabled()) {
+                return SonarRefreshTicket.Status.NOT_FOUND;
+            }
+            collectorTask.refreshProjects(current.getInstanceUrl(), Collections.singletonList(current));
+            return SonarRefreshTicket.Status.REFRESHED;
+        });
+    }
+
+    /**
+     * @return the key the refreshes of a stored project are queued under, whichever way they were requested
+     */
+    public static String key(SonarProject project) {
+        return "project:" + project.getId();
+    }
+
+    /**
+     * Queues a refresh, unless one with the same key is still queued. While a refresh of the key is
+     * running the new one is held back until it finishes.
+     *
+     * @param key     identifies the project refreshed, see {@link #key(SonarProject)}
+     * @param refresh refreshes it, returning whether the project was found
+     * @return the ticket of the refresh, null when the queue is full
+     */
+    public SonarRefreshTicket submit(String key, Callable<SonarRefreshTicket.Status> refresh) {
+        long now = System.currentTimeMillis();
+        tickets.values().removeIf(ticket -> ticket.getStatus().isFinished()
+                && now - ticket.getFinishedAt() > TICKET_RETENTION_MILLIS);
+        synchronized (lock) {
+            SonarRefreshTicket ticket = queued.get(key);
+            if (ticket != null) {
+                return ticket;
+            }
+            SonarRefreshTicket created = new SonarRefreshTicket(now);
+            Runnable task = () -> run(key, created, refresh);
+            if (running.containsKey(key)) {
+                // the running refresh may have read the project before the analysis this one is for
+                deferred.put(key, task);
+            } else {
+                try {
+                    executor.execute(task);
+                } catch (RejectedExecutionException e) {
+                    LOG.warn("SonarRefreshQueue full, refresh of " + key + " is dropped");
+                    return null;
+                }
+            }
+            queued.put(key, created);
+            tickets.put(created.getId(), created);
+            return created;
+        }
+    }
+
+    /**
+     * @return the ticket, null when it is unknown or finished over an hour ago
+     */
+    public SonarRefreshTicket getTicket(String ticketId) {
+        return tickets.get(ticketId);
+    }
+
+    private void run(String key, SonarRefreshTicket ticket, Callable<SonarRefreshTicket.Status> refresh) {
+        // a refresh requested from now on may see a newer analysis, so it is queued again
+        synchronized (lock) {
+            queued.remove(key, ticket);
+            running.put(key, ticket);
+        }
+        ticket.start(System.currentTimeMillis());
+        try {
+            SonarRefreshTicket.Status status = refresh.call();
+            ticket.finish(status, null, System.currentTimeMillis());
+        } catch (Exception e) {
+            LOG.error(String.format("SonarRefreshQueue refresh of %s failed: %s", key, e.getMessage()));
+            ticket.finish(SonarRefreshTicket.Status.FAILED, e.getMessage(), System.currentTimeMillis());
+        } finally {
+            release(key, ticket);
+        }
+    }
+
+    /**
+     * Frees the key of a finished refresh and hands the refresh held back for it to a worker.
+     */
+    private void release(String key, SonarRefreshTicket ticket) {
+        synchronized (lock) {
+            running.remove(key, ticket);
+            Runnable next = deferred.remove(key);
+            if (next == null) {
+                return;
+            }
+            try {
+                executor.execute(next);
+            } catch (RejectedExecutionException e) {
+                SonarRefreshTicket dropped = queued.remove(key);
+                LOG.warn("SonarRefreshQueue full, refresh of " + key + " is dropped");
+                if (dropped != null) {
+                    dropped.finish(SonarRefreshTicket.Status.FAILED, "refresh queue is full", System.currentTimeMillis());
+                }
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
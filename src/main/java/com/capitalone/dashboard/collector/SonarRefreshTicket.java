@@ -0,0 +1,68 @@
+package com.capitalone.dashboard.collector;
+
+import java.util.UUID;
+
+/**
+ * A refresh handed to the {@link SonarRefreshQueue}, polled by the caller until it is finished.
+ */
+public final class SonarRefreshTicket {
+
+    public enum Status {
+        QUEUED,
+        RUNNING,
+        REFRESHED,
+        // the project is not collected, or no longer exists in Sonar
+        NOT_FOUND,
+        FAILED;
+
+        public boolean isFinished() {
+            return this != QUEUED && this != RUNNING;
+        }
+    }
+
+    private final String id = UUID.randomUUID().toString();
+    private final long createdAt;
+    private volatile Status status = Status.QUEUED;
+    private volatile String message;
+    private volatile long startedAt;
+    private volatile long finishedAt;
+
+    public SonarRefreshTicket(long createdAt) {
+        this.createdAt = createdAt;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    public long getFinishedAt() {
+        return finishedAt;
+    }
+
+    void start(long now) {
+        startedAt = now;
+        status = Status.RUNNING;
+    }
+
+    void finish(Status finished, String finishedMessage, long now) {
+        message = finishedMessage;
+        finishedAt = now;
+        status = finished;
+    }
+}
@@ -0,0 +1,252 @@
+package com.capitalone.dashboard.collector;
+
+import io.micrometer.core.instrument.Gauge;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRequest;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.ClientHttpRequestExecution;
+import org.springframework.http.client.ClientHttpRequestInterceptor;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the calls made to each sonar instance to {@code sonar.maxRequestsPerSecond} and to an in-flight
+ * limit of at most {@code sonar.maxInFlightRequests}. The in-flight limit adapts to the instance: it is
+ * halved on a 429 or 503 response, lowered by calls slower than {@code sonar.slowRequestMillis} and raised
+ * by one call per limit's worth of fast successful calls. A {@code Retry-After} header holds back every
+ * call to the instance until it passes, and the throttled call is sent once more.
+ * <p>
+ * The current limit, calls in flight and calls waiting are published per instance as the
+ * {@code sonar.client.limit}, {@code sonar.client.inflight} and {@code sonar.client.queue} gauges, and every
+ * call is timed through {@link SonarCollectorMetrics#recordRequest}.
+ */
+@Component
+public class SonarRequestLimiter implements ClientHttpRequestInterceptor {
+    private static final Log LOG = LogFactory.getLog(SonarRequestLimiter.class);
+
+    // longest Retry-After honoured before the throttled response is handed back instead
+    private static final long MAX_RETRY_AFTER_SECONDS = 120;
+    private static final double BACKOFF_FACTOR = 0.5;
+    private static final double SLOW_BACKOFF_FACTOR = 0.9;
+
+    private final double maxRequestsPerSecond;
+    private final int maxInFlightRequests;
+    private final long slowRequestNanos;
+    private final SonarCollectorMetrics metrics;
+    private final Map<String, InstanceLimit> limits = new ConcurrentHashMap<>();
+
+    @Autowired
+    public SonarRequestLimiter(SonarSettings settings, SonarCollectorMetrics metrics) {
+        this.maxRequestsPerSecond = settings.getMaxRequestsPerSecond();
+        this.maxInFlightRequests = Math.max(1, settings.getMaxInFlightRequests());
+        this.slowRequestNanos = TimeUnit.MILLISECONDS.toNanos(settings.getSlowRequestMillis());
+        this.metrics = metrics;
+    }
+
+    @Override
+    public ClientHttpResponse intercept(HttpRequest request, byte[] body, ClientHttpRequestExecution execution) throws IOException {
+        InstanceLimit limit = limits.computeIfAbsent(instance(request.getURI()), this::newLimit);
+        ClientHttpResponse response = limit.execute(request, body, execution);
+        if (isThrottled(response) && retryAfterNanos(response.getHeaders(), System.currentTimeMillis()) > 0) {
+            response.close();
+            response = limit.execute(request, body, execution);
+        }
+        return response;
+    }
+
+    /**
+     * @return the limiter of {@code instanceUrl}, or null when no call was made to it yet
+     */
+    InstanceLimit getLimit(String instanceUrl) {
+        return limits.get(instance(URI.create(instanceUrl)));
+    }
+
+    private InstanceLimit newLimit(String instance) {
+        InstanceLimit limit = new InstanceLimit(instance);
+        Gauge.builder("sonar.client.limit", limit, InstanceLimit::getLimit)
+                .description("Calls allowed in flight to the sonar instance").tag("instance", instance).register(metrics.getMeterRegistry());
+        Gauge.builder("sonar.client.inflight", limit, InstanceLimit::getInFlight)
+                .description("Calls in flight to the sonar instance").tag("instance", instance).register(metrics.getMeterRegistry());
+        Gauge.builder("sonar.client.queue", limit, InstanceLimit::getWaiting)
+                .description("Calls waiting for the limit of the sonar instance").tag("instance", instance).register(metrics.getMeterRegistry());
+        return limit;
+    }
+
+    private static String instance(URI uri) {
+        String instance = uri.getScheme() + "://" + uri.getHost();
+        return uri.getPort() == -1 ? instance : instance + ":" + uri.getPort();
+    }
+
+    private static boolean isThrottled(ClientHttpResponse response) throws IOException {
+        int status = response.getRawStatusCode();
+        return status == HttpStatus.TOO_MANY_REQUESTS.value() || status == HttpStatus.SERVICE_UNAVAILABLE.value();
+    }
+
+    /**
+     * @return the wait asked for by a Retry-After header in seconds or as a date, 0 without one
+     */
+    static long retryAfterNanos(HttpHeaders headers, long nowMillis) {
+        String retryAfter = headers.getFirst(HttpHeaders.RETRY_AFTER);
+        if (StringUtils.isBlank(retryAfter)) {
+            return 0;
+        }
+        long millis;
+        if (StringUtils.isNumeric(retryAfter.trim())) {
+            millis = TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.trim()));
+        } else {
+            try {
+                millis = headers.getFirstDate(HttpHeaders.RETRY_AFTER) - nowMillis;
+            } catch (IllegalArgumentException e) {
+                LOG.warn("Ignoring unparsable Retry-After: " + retryAfter);
+                return 0;
+            }
+        }
+        if (millis > TimeUnit.SECONDS.toMillis(MAX_RETRY_AFTER_SECONDS)) {
+            return 0;
+        }
+        return TimeUnit.MILLISECONDS.toNanos(Math.max(millis, 0));
+    }
+
+    /**
+     * Rate and in-flight limit of one sonar instance.
+     */
+    final class InstanceLimit {
+        private final String instance;
+        private final long permitIntervalNanos;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition changed = lock.newCondition();
+        private double limit = maxInFlightRequests;
+        private int inFlight;
+        private int waiting;
+        private long nextPermitNanos = System.nanoTime();
+        private long blockedUntilNanos = System.nanoTime();
+
+        private InstanceLimit(String instance) {
+            this.instance = instance;
+            this.permitIntervalNanos = maxRequestsPerSecond > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / maxRequestsPerSecond) : 0;
+        }
+
+        private ClientHttpResponse execute(HttpRequest request, byte[] body, ClientHttpRequestExecution execution) throws IOException {
+            acquire();
+            long start = System.nanoTime();
+            ClientHttpResponse response = null;
+            try {
+                response = execution.execute(request, body);
+                return response;
+            } finally {
+                long latencyNanos = System.nanoTime() - start;
+                release();
+                // neither may replace the response or the failure of the call
+                try {
+                    adjust(response, latencyNanos);
+                    if (response != null) {
+                        metrics.recordRequest(instance, request.getURI().getPath(), response.getRawStatusCode(), Duration.ofNanos(latencyNanos));
+                    }
+                } catch (IOException | RuntimeException e) {
+                    LOG.warn("Could not adjust the request limit of " + instance, e);
+                }
+            }
+        }
+
+        private void acquire() throws InterruptedIOException {
+            lock.lock();
+            try {
+                waiting++;
+                try {
+                    while (true) {
+                        long now = System.nanoTime();
+                        if (blockedUntilNanos - now > 0) {
+                            changed.awaitNanos(blockedUntilNanos - now);
+                        } else if (inFlight >= (int) limit) {
+                            changed.await();
+                        } else if (nextPermitNanos - now > 0) {
+                            changed.awaitNanos(nextPermitNanos - now);
+                        } else {
+                            nextPermitNanos = now + permitIntervalNanos;
+                            inFlight++;
+                            return;
+                        }
+                    }
+                } finally {
+                    waiting--;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the request limit of " + instance);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void release() {
+            lock.lock();
+            try {
+                inFlight--;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void adjust(ClientHttpResponse response, long latencyNanos) throws IOException {
+            boolean throttled = response != null && isThrottled(response);
+            long retryAfter = throttled ? retryAfterNanos(response.getHeaders(), System.currentTimeMillis()) : 0;
+            lock.lock();
+            try {
+                if (throttled) {
+                    limit = Math.max(1, limit * BACKOFF_FACTOR);
+                    blockedUntilNanos = Math.max(blockedUntilNanos, System.nanoTime() + retryAfter);
+                    LOG.warn(String.format("Sonar instance %s throttled a call, limit lowered to %d calls in flight", instance, (int) limit));
+                } else if (response != null && slowRequestNanos > 0 && latencyNanos > slowRequestNanos) {
+                    limit = Math.max(1, limit * SLOW_BACKOFF_FACTOR);
+                } else if (response != null) {
+                    limit = Math.min(maxInFlightRequests, limit + 1 / limit);
+                }
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int getLimit() {
+            lock.lock();
+            try {
+                return (int) limit;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int getInFlight() {
+            lock.lock();
+            try {
+                return inFlight;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int getWaiting() {
+            lock.lock();
+            try {
+                return waiting;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.capitalone.dashboard.collector;
+
+import com.capitalone.dashboard.client.RestOperationsSupplier;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Primary;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.RestOperations;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.web.util.DefaultUriBuilderFactory;
+import org.springframework.web.util.UriTemplateHandler;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shared http transport of the sonar clients and {@link SonarClientSelector}. Connections are pooled
+ * per host and kept alive between requests, so a collection run pays the TLS handshake once per
+ * connection rather than once per call. Responses are requested with {@code Accept-Encoding: gzip}
+ * and decompressed transparently. Every call passes the {@link SonarRequestLimiter} of its instance.
+ * Urls the clients have encoded already are sent as they are instead of being encoded a second time.
+ */
+@Component
+@Primary
+public class SonarRestOperationsSupplier implements RestOperationsSupplier {
+    private static final Log LOG = LogFactory.getLog(SonarRestOperationsSupplier.class);
+
+    // idle pooled connections are closed after this long, before the server drops them
+    private static final long IDLE_CONNECTION_SECONDS = 30;
+    // pooled connections idle for longer than this are checked before they are reused
+    private static final int VALIDATE_AFTER_INACTIVITY_MILLIS = 2000;
+
+    private final CloseableHttpClient httpClient;
+    private final RestTemplate restTemplate;
+
+    @Autowired
+    public SonarRestOperationsSupplier(SonarSettings settings, SonarRequestLimiter requestLimiter) {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(Math.max(1, settings.getMaxConnections()));
+        connectionManager.setDefaultMaxPerRoute(Math.max(1, settings.getMaxConnectionsPerHost()));
+        connectionManager.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY_MILLIS);
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(settings.getRequestConnectTimeout())
+                .setConnectionRequestTimeout(settings.getRequestConnectTimeout())
+                .setSocketTimeout(settings.getRequestReadTimeout())
+                .build();
+
+        // content compression is on by default: Accept-Encoding: gzip,deflate and transparent decoding
+        this.httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setKeepAliveStrategy(DefaultConnectionKeepAliveStrategy.INSTANCE)
+                .evictIdleConnections(IDLE_CONNECTION_SECONDS, TimeUnit.SECONDS)
+                .evictExpiredConnections()
+                .setDefaultRequestConfig(requestConfig)
+                .build();
+        this.restTemplate = new RestTemplate(new HttpComponentsClientHttpRequestFactory(httpClient));
+        this.restTemplate.getInterceptors().add(requestLimiter);
+        this.restTemplate.setUriTemplateHandler(new EncodedUriTemplateHandler());
+    }
+
+    @Override
+    public RestOperations get() {
+        return restTemplate;
+    }
+
+    /**
+     * Expands urls without variables that already form a valid uri as they are, so an encoded
+     * project key is not encoded again. Any other url is encoded by the default handler.
+     */
+    static class EncodedUriTemplateHandler implements UriTemplateHandler {
+        private final UriTemplateHandler defaultHandler = new DefaultUriBuilderFactory();
+
+        @Override
+        public URI expand(String uriTemplate, Map<String, ?> uriVariables) {
+            return uriVariables.isEmpty() ? parse(uriTemplate) : defaultHandler.expand(uriTemplate, uriVariables);
+        }
+
+        @Override
+        public URI expand(String uriTemplate, Object... uriVariables) {
+            return uriVariables.length == 0 ? parse(uriTemplate) : defaultHandler.expand(uriTemplate, uriVariables);
+        }
+
+        private URI parse(String uriTemplate) {
+            try {
+                return new URI(uriTemplate);
+            } catch (URISyntaxException e) {
+                return defaultHandler.expand(uriTemplate);
+            }
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        try {
+            httpClient.close();
+        } catch (IOException e) {
+            LOG.warn("Could not close sonar http client: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package com.capitalone.dashboard.collector;
+
+import com.capitalone.dashboard.model.SonarCollectionRun;
+import com.capitalone.dashboard.model.SonarProject;
+import com.capitalone.dashboard.repository.SonarCollectionRunRepository;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.bson.types.ObjectId;
+import org.springframework.dao.DataAccessException;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Tracks the refresh of one sonar instance in its {@link SonarCollectionRun}, so a run that was interrupted
+ * can be continued where it stopped. Projects are refreshed in chunks in the order of their ids; the record
+ * keeps the id up to which every chunk is done as cursor and the projects of the chunks done beyond it.
+ * <p>
+ * A chunk only counts as done once its writes are in Mongo: {@link #snapshot()} is taken by the
+ * {@link com.capitalone.dashboard.repository.SonarBulkWriter} together with the writes it flushes, and
+ * saved after them. The record is saved when the run starts, and the writer is flushed as chunks end once
+ * {@link #isSnapshotDue(long)}, so a run that queues no writes is checkpointed too. A chunk with a project that failed to refresh or to be written is never recorded, so a
+ * resumed run refreshes it again; the run still completes once every chunk was attempted.
+ */
+final class SonarRunCheckpoint {
+    private static final Log LOG = LogFactory.getLog(SonarRunCheckpoint.class);
+
+    static final Comparator<SonarProject> BY_ID =
+            Comparator.comparing(SonarProject::getId, Comparator.nullsFirst(Comparator.naturalOrder()));
+
+    private final SonarCollectionRunRepository repository;
+    private final SonarCollectionRun run;
+    private final boolean resumed;
+    // progress recorded before this run, every snapshot is worked out from it again
+    private final ObjectId startCursor;
+    private final List<ObjectId> startProcessed;
+    private final int startProcessedCount;
+    private List<List<SonarProject>> chunks = new ArrayList<>();
+    private Map<ObjectId, Integer> chunkOfProject = new HashMap<>();
+    private boolean[] done = new boolean[0];
+    private boolean[] failed = new boolean[0];
+
+    private SonarRunCheckpoint(SonarCollectionRunRepository repository, SonarCollectionRun run, boolean resumed) {
+        this.repository = repository;
+        this.run = run;
+        this.resumed = resumed;
+        this.startCursor = run.getCursor();
+        this.startProcessed = new ArrayList<>(run.getProcessed());
+        this.startProcessedCount = run.getProcessedCount();
+    }
+
+    /**
+     * Continues the run recorded under {@code runId} when it did not complete and was last saved within
+     * {@code windowMillis}, otherwise starts a new one.
+     */
+    static SonarRunCheckpoint open(SonarCollectionRunRepository repository, String runId, String instanceUrl,
+                                   long windowMillis) {
+        long now = System.currentTimeMillis();
+        SonarCollectionRun previous = repository.findById(runId).orElse(null);
+        if (previous != null && !previous.isCompleted() && now - previous.getUpdatedAt() <= windowMillis) {
+            LOG.info(String.format("SonarRunCheckpoint resuming run of instanceUrl=%s started=%d processed=%d",
+                    instanceUrl, previous.getStartedAt(), previous.getProcessedCount()));
+            return new SonarRunCheckpoint(repository, previous, true);
+        }
+        return new SonarRunCheckpoint(repository, new SonarCollectionRun(runId, instanceUrl, now), false);
+    }
+
+    boolean isResumed() {
+        return resumed;
+    }
+
+    /**
+     * @return the projects, in the order of their ids, the run has not refreshed yet
+     */
+    List<SonarProject> remaining(List<SonarProject> projects) {
+        ObjectId cursor = run.getCursor();
+        Set<ObjectId> processed = new HashSet<>(run.getProcessed());
+        return projects.stream()
+                .filter(project -> project.getId() == null
+                        || (isAfter(project.getId(), cursor) && !processed.contains(project.getId())))
+                .sorted(BY_ID)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Sets the chunks the remaining projects are refreshed in and saves the record of the run.
+     */
+    void start(List<List<SonarProject>> chunks) {
+        SonarCollectionRun started;
+        synchronized (this) {
+            this.chunks = chunks;
+            this.chunkOfProject = new HashMap<>();
+            for (int i = 0; i < chunks.size(); i++) {
+                for (SonarProject project : chunks.get(i)) {
+                    if (project.getId() != null) {
+                        chunkOfProject.put(project.getId(), i);
+                    }
+                }
+            }
+            this.done = new boolean[chunks.size()];
+            this.failed = new boolean[chunks.size()];
+            run.setUpdatedAt(System.currentTimeMillis());
+            started = copy(run);
+        }
+        save(started);
+    }
+
+    /**
+     * @return whether the last snapshot was taken {@code intervalMillis} or longer ago
+     */
+    synchronized boolean isSnapshotDue(long intervalMillis) {
+        return System.currentTimeMillis() - run.getUpdatedAt() >= intervalMillis;
+    }
+
+    synchronized void chunkDone(int index) {
+        done[index] = !failed[index];
+    }
+
+    /**
+     * Keeps the chunk from being recorded, also when it was done before its writes failed.
+     */
+    synchronized void chunkFailed(int index) {
+        failed[index] = true;
+        done[index] = false;
+    }
+
+    /**
+     * Keeps the chunk of a project whose writes failed from being recorded.
+     */
+    synchronized void projectFailed(ObjectId projectId) {
+        Integer index = chunkOfProject.get(projectId);
+        if (index != null) {
+            chunkFailed(index);
+        }
+    }
+
+    /**
+     * @return whether every chunk is done or failed
+     */
+    synchronized boolean isFinished() {
+        for (int i = 0; i < done.length; i++) {
+            if (!done[i] && !failed[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Captures the chunks done so far. Must be called once their writes are handed over to be written.
+     *
+     * @return saves the captured progress
+     */
+    synchronized Runnable snapshot() {
+        int prefix = 0;
+        while (prefix < done.length && done[prefix]) {
+            prefix++;
+        }
+        ObjectId cursor = startCursor;
+        if (prefix > 0) {
+            List<SonarProject> last = chunks.get(prefix - 1);
+            ObjectId lastId = last.get(last.size() - 1).getId();
+            if (lastId != null && isAfter(lastId, cursor)) {
+                cursor = lastId;
+            }
+        }
+        Set<ObjectId> processed = new LinkedHashSet<>();
+        for (ObjectId id : startProcessed) {
+            if (isAfter(id, cursor)) {
+                processed.add(id);
+            }
+        }
+        int processedCount = startProcessedCount;
+        for (int i = 0; i < done.length; i++) {
+            if (!done[i]) {
+                continue;
+            }
+            for (SonarProject project : chunks.get(i)) {
+                if (project.getId() != null && isAfter(project.getId(), cursor)) {
+                    processed.add(project.getId());
+                }
+            }
+            processedCount += chunks.get(i).size();
+        }
+        run.setCursor(cursor);
+        run.setProcessed(new ArrayList<>(processed));
+        run.setProcessedCount(processedCount);
+        run.setUpdatedAt(System.currentTimeMillis());
+        SonarCollectionRun saved = copy(run);
+        return () -> save(saved);
+    }
+
+    /**
+     * Records the run as completed, the next run starts over.
+     */
+    void complete() {
+        SonarCollectionRun completed;
+        synchronized (this) {
+            run.setCompleted(true);
+            run.setCursor(null);
+            run.setProcessed(new ArrayList<>());
+            run.setUpdatedAt(System.currentTimeMillis());
+            completed = copy(run);
+        }
+        save(completed);
+    }
+
+    private void save(SonarCollectionRun saved) {
+        try {
+            repository.save(saved);
+        } catch (DataAccessException e) {
+            LOG.warn("SonarRunCheckpoint could not save the run of " + saved.getInstanceUrl() + ": " + e.getMessage());
+        }
+    }
+
+    private static boolean isAfter(ObjectId id, ObjectId cursor) {
+        return cursor == null || id.compareTo(cursor) > 0;
+    }
+
+    private static SonarCollectionRun copy(SonarCollectionRun run) {
+        SonarCollectionRun copy = new SonarCollectionRun(run.getId(), run.getInstanceUrl(), run.getStartedAt());
+        copy.setUpdatedAt(run.getUpdatedAt());
+        copy.setCompleted(run.isCompleted());
+        copy.setCursor(run.getCursor());
+        copy.setProcessed(new ArrayList<>(run.getProcessed()));
+        copy.setProcessedCount(run.getProcessedCount());
+        return copy;
+    }
+}
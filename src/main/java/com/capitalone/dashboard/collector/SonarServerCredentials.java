@@ -0,0 +1,58 @@
+package com.capitalone.dashboard.collector;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable credentials of one Sonar server. Snapshots of the credentials of every server are swapped
+ * in whole, so a session opened while the configuration is reloaded gets the old or the new credentials
+ * of its server, never those of another.
+ */
+public final class SonarServerCredentials {
+    static final SonarServerCredentials NONE = new SonarServerCredentials(null, null, null);
+
+    private final String username;
+    private final String password;
+    private final String token;
+
+    public SonarServerCredentials(String username, String password, String token) {
+        this.username = username;
+        this.password = password;
+        this.token = token;
+    }
+
+    /**
+     * Pairs the servers with the credentials at the same index; the first of servers listed twice wins.
+     *
+     * @return an unmodifiable snapshot of the credentials by server url
+     */
+    public static Map<String, SonarServerCredentials> byServer(List<String> servers, List<String> usernames,
+                                                               List<String> passwords, List<String> tokens) {
+        Map<String, SonarServerCredentials> byServer = new LinkedHashMap<>();
+        if (servers != null) {
+            for (int i = 0; i < servers.size(); i++) {
+                byServer.putIfAbsent(servers.get(i), new SonarServerCredentials(get(usernames, i), get(passwords, i),
+                        get(tokens, i)));
+            }
+        }
+        return Collections.unmodifiableMap(byServer);
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getPassword() {
+        return password;
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    private static String get(List<String> values, int index) {
+        return values == null || values.size() <= index ? null : values.get(index);
+    }
+}
@@ -0,0 +1,30 @@
+package com.capitalone.dashboard.collector;
+
+/**
+ * Immutable binding of one Sonar server to the client that talks to it.
+ * The client carries the server credentials, so a session can be used from
+ * any thread without affecting collection of other servers.
+ */
+public final class SonarServerSession {
+    private final String instanceUrl;
+    private final SonarVersion version;
+    private final SonarClient client;
+
+    public SonarServerSession(String instanceUrl, SonarVersion version, SonarClient client) {
+        this.instanceUrl = instanceUrl;
+        this.version = version;
+        this.client = client;
+    }
+
+    public String getInstanceUrl() {
+        return instanceUrl;
+    }
+
+    public SonarVersion getVersion() {
+        return version;
+    }
+
+    public SonarClient getClient() {
+        return client;
+    }
+}
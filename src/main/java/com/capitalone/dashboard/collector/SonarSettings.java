@@ -22,9 +22,126 @@ public class SonarSettings {
     private String metrics63andAbove; // 6.3 is the sonar version
     private String metricsBefore63;
 
+    // milliseconds to wait for data on an open connection to sonar
     @Value("${sonar.requestReadTimeout:20000}")
     private int requestReadTimeout;
 
+    // milliseconds to wait for a connection to sonar, or for a free one from the pool
+    @Value("${sonar.requestConnectTimeout:10000}")
+    private int requestConnectTimeout;
+
+    // pooled connections kept open to one sonar instance
+    @Value("${sonar.maxConnectionsPerHost:20}")
+    private int maxConnectionsPerHost;
+
+    // pooled connections kept open to all sonar instances together
+    @Value("${sonar.maxConnections:100}")
+    private int maxConnections;
+
+    // number of projects refreshed in parallel per sonar instance, 1 keeps the sequential refresh
+    @Value("${sonar.refreshThreads:1}")
+    private int refreshThreads;
+
+    // number of projects whose measures are fetched with one /api/measures/search call, 1 disables batching
+    @Value("${sonar.measuresBatchSize:100}")
+    private int measuresBatchSize;
+
+    // only refresh projects the project listing reports a new analysis for
+    @Value("${sonar.incrementalCollection:false}")
+    private boolean incrementalCollection;
+
+    // delete stored projects the project listing of their instance no longer reports
+    @Value("${sonar.deleteStaleProjects:false}")
+    private boolean deleteStaleProjects;
+
+    // number of project listing pages fetched in parallel per sonar instance, 1 fetches one page after another
+    @Value("${sonar.pageFetchThreads:1}")
+    private int pageFetchThreads;
+
+    // list servers with more projects than a search pages through with the database backed project search
+    @Value("${sonar.partitionedDiscovery:false}")
+    private boolean partitionedDiscovery;
+
+    // number of sonar instances collected in parallel, 1 keeps the sequential collection
+    @Value("${sonar.serverThreads:1}")
+    private int serverThreads;
+
+    // time budget for one sonar instance when collected in parallel, 0 waits without limit
+    @Value("${sonar.serverTimeoutSeconds:0}")
+    private long serverTimeoutSeconds;
+
+    // number of buffered project updates written to mongo as one bulk operation
+    @Value("${sonar.writeBatchSize:500}")
+    private int writeBatchSize;
+
+    // longest time in milliseconds a buffered write waits for its batch to fill, 0 only flushes full batches
+    @Value("${sonar.writeFlushIntervalMillis:5000}")
+    private long writeFlushIntervalMillis;
+
+    // seconds a detected server version is used before it is detected again in the background
+    @Value("${sonar.versionCacheTtlSeconds:3600}")
+    private long versionCacheTtlSeconds;
+
+    // requests per second sent to one sonar instance, 0 does not limit the rate
+    @Value("${sonar.maxRequestsPerSecond:0}")
+    private double maxRequestsPerSecond;
+
+    // most calls in flight to one sonar instance, the limit adapts between 1 and this
+    @Value("${sonar.maxInFlightRequests:20}")
+    private int maxInFlightRequests;
+
+    // calls slower than this lower the in-flight limit of their sonar instance, 0 only backs off on 429 and 503
+    @Value("${sonar.slowRequestMillis:5000}")
+    private long slowRequestMillis;
+
+    // partitions the enabled projects are split into between collector replicas, 0 collects everything here
+    @Value("${sonar.shardCount:0}")
+    private int shardCount;
+
+    // partition projects by "project" id or by sonar "instance"
+    @Value("${sonar.shardBy:project}")
+    private String shardBy;
+
+    // seconds a replica holds its partitions without renewing them, they are renewed every third of it
+    @Value("${sonar.shardLeaseSeconds:60}")
+    private long shardLeaseSeconds;
+
+    // name of this replica in the partition leases, defaults to the host name and process id
+    @Value("${sonar.replicaId:}")
+    private String replicaId;
+
+    // continue the refresh of an instance that was interrupted instead of starting it over
+    @Value("${sonar.resumeRuns:false}")
+    private boolean resumeRuns;
+
+    // minutes an interrupted refresh can be continued after its last checkpoint, older ones start over
+    @Value("${sonar.resumeWindowMinutes:1440}")
+    private long resumeWindowMinutes;
+
+    // poll every enabled project on an interval learnt from its analyses, next to the cron run
+    @Value("${sonar.adaptivePolling:false}")
+    private boolean adaptivePolling;
+
+    // shortest interval in minutes a project is polled at
+    @Value("${sonar.adaptivePollingMinMinutes:15}")
+    private long adaptivePollingMinMinutes;
+
+    // longest interval in minutes a project is polled at
+    @Value("${sonar.adaptivePollingMaxMinutes:1440}")
+    private long adaptivePollingMaxMinutes;
+
+    // secret the Sonar webhooks sign their payloads with, webhooks are refused without it
+    @Value("${sonar.webhookSecret:}")
+    private String webhookSecret;
+
+    // number of refreshes requested through the api or a webhook run in parallel
+    @Value("${sonar.refreshQueueThreads:2}")
+    private int refreshQueueThreads;
+
+    // refreshes waiting for a worker, further requests are refused
+    @Value("${sonar.refreshQueueCapacity:1000}")
+    private int refreshQueueCapacity;
+
     public String getCron() {
         return cron;
     }
@@ -97,4 +214,236 @@ public class SonarSettings {
         this.requestReadTimeout = requestReadTimeout;
     }
 
+    public int getRefreshThreads() {
+        return refreshThreads;
+    }
+
+    public void setRefreshThreads(int refreshThreads) {
+        this.refreshThreads = refreshThreads;
+    }
+
+    public int getMeasuresBatchSize() {
+        return measuresBatchSize;
+    }
+
+    public void setMeasuresBatchSize(int measuresBatchSize) {
+        this.measuresBatchSize = measuresBatchSize;
+    }
+
+    public boolean isIncrementalCollection() {
+        return incrementalCollection;
+    }
+
+    public void setIncrementalCollection(boolean incrementalCollection) {
+        this.incrementalCollection = incrementalCollection;
+    }
+
+    public boolean isDeleteStaleProjects() {
+        return deleteStaleProjects;
+    }
+
+    public void setDeleteStaleProjects(boolean deleteStaleProjects) {
+        this.deleteStaleProjects = deleteStaleProjects;
+    }
+
+    public int getServerThreads() {
+        return serverThreads;
+    }
+
+    public void setServerThreads(int serverThreads) {
+        this.serverThreads = serverThreads;
+    }
+
+    public long getServerTimeoutSeconds() {
+        return serverTimeoutSeconds;
+    }
+
+    public void setServerTimeoutSeconds(long serverTimeoutSeconds) {
+        this.serverTimeoutSeconds = serverTimeoutSeconds;
+    }
+
+    public int getWriteBatchSize() {
+        return writeBatchSize;
+    }
+
+    public void setWriteBatchSize(int writeBatchSize) {
+        this.writeBatchSize = writeBatchSize;
+    }
+
+    public long getWriteFlushIntervalMillis() {
+        return writeFlushIntervalMillis;
+    }
+
+    public void setWriteFlushIntervalMillis(long writeFlushIntervalMillis) {
+        this.writeFlushIntervalMillis = writeFlushIntervalMillis;
+    }
+
+    public long getVersionCacheTtlSeconds() {
+        return versionCacheTtlSeconds;
+    }
+
+    public void setVersionCacheTtlSeconds(long versionCacheTtlSeconds) {
+        this.versionCacheTtlSeconds = versionCacheTtlSeconds;
+    }
+
+    public int getRequestConnectTimeout() {
+        return requestConnectTimeout;
+    }
+
+    public void setRequestConnectTimeout(int requestConnectTimeout) {
+        this.requestConnectTimeout = requestConnectTimeout;
+    }
+
+    public int getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+
+    public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public int getPageFetchThreads() {
+        return pageFetchThreads;
+    }
+
+    public void setPageFetchThreads(int pageFetchThreads) {
+        this.pageFetchThreads = pageFetchThreads;
+    }
+
+    public boolean isPartitionedDiscovery() {
+        return partitionedDiscovery;
+    }
+
+    public void setPartitionedDiscovery(boolean partitionedDiscovery) {
+        this.partitionedDiscovery = partitionedDiscovery;
+    }
+
+    public double getMaxRequestsPerSecond() {
+        return maxRequestsPerSecond;
+    }
+
+    public void setMaxRequestsPerSecond(double maxRequestsPerSecond) {
+        this.maxRequestsPerSecond = maxRequestsPerSecond;
+    }
+
+    public int getMaxInFlightRequests() {
+        return maxInFlightRequests;
+    }
+
+    public void setMaxInFlightRequests(int maxInFlightRequests) {
+        this.maxInFlightRequests = maxInFlightRequests;
+    }
+
+    public long getSlowRequestMillis() {
+        return slowRequestMillis;
+    }
+
+    public void setSlowRequestMillis(long slowRequestMillis) {
+        this.slowRequestMillis = slowRequestMillis;
+    }
+
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    public void setShardCount(int shardCount) {
+        this.shardCount = shardCount;
+    }
+
+    public String getShardBy() {
+        return shardBy;
+    }
+
+    public void setShardBy(String shardBy) {
+        this.shardBy = shardBy;
+    }
+
+    public long getShardLeaseSeconds() {
+        return shardLeaseSeconds;
+    }
+
+    public void setShardLeaseSeconds(long shardLeaseSeconds) {
+        this.shardLeaseSeconds = shardLeaseSeconds;
+    }
+
+    public String getReplicaId() {
+        return replicaId;
+    }
+
+    public void setReplicaId(String replicaId) {
+        this.replicaId = replicaId;
+    }
+
+    public boolean isResumeRuns() {
+        return resumeRuns;
+    }
+
+    public void setResumeRuns(boolean resumeRuns) {
+        this.resumeRuns = resumeRuns;
+    }
+
+    public long getResumeWindowMinutes() {
+        return resumeWindowMinutes;
+    }
+
+    public void setResumeWindowMinutes(long resumeWindowMinutes) {
+        this.resumeWindowMinutes = resumeWindowMinutes;
+    }
+
+    public boolean isAdaptivePolling() {
+        return adaptivePolling;
+    }
+
+    public void setAdaptivePolling(boolean adaptivePolling) {
+        this.adaptivePolling = adaptivePolling;
+    }
+
+    public long getAdaptivePollingMinMinutes() {
+        return adaptivePollingMinMinutes;
+    }
+
+    public void setAdaptivePollingMinMinutes(long adaptivePollingMinMinutes) {
+        this.adaptivePollingMinMinutes = adaptivePollingMinMinutes;
+    }
+
+    public long getAdaptivePollingMaxMinutes() {
+        return adaptivePollingMaxMinutes;
+    }
+
+    public void setAdaptivePollingMaxMinutes(long adaptivePollingMaxMinutes) {
+        this.adaptivePollingMaxMinutes = adaptivePollingMaxMinutes;
+    }
+
+    public String getWebhookSecret() {
+        return webhookSecret;
+    }
+
+    public void setWebhookSecret(String webhookSecret) {
+        this.webhookSecret = webhookSecret;
+    }
+
+    public int getRefreshQueueThreads() {
+        return refreshQueueThreads;
+    }
+
+    public void setRefreshQueueThreads(int refreshQueueThreads) {
+        this.refreshQueueThreads = refreshQueueThreads;
+    }
+
+    public int getRefreshQueueCapacity() {
+        return refreshQueueCapacity;
+    }
+
+    public void setRefreshQueueCapacity(int refreshQueueCapacity) {
+        this.refreshQueueCapacity = refreshQueueCapacity;
+    }
+
 }
@@ -0,0 +1,254 @@
+package com.capitalone.dashboard.collector;
+
+import com.capitalone.dashboard.model.SonarProject;
+import com.capitalone.dashboard.repository.SonarShardLeaseRepository;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataAccessException;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shares the enabled projects out between collector replicas when {@link SonarSettings#getShardCount()}
+ * is set. Projects are hashed into partitions by project id or by instance url, and every replica leases
+ * an even share of the partitions in Mongo. Leases are renewed in the background every third of
+ * {@link SonarSettings#getShardLeaseSeconds()}; those of a replica that stops renewing expire and are
+ * claimed by the replicas still alive. The partitions held by a run in progress are kept until it ends,
+ * so the renewer does not hand them to another replica while the run still collects them. A run whose
+ * leases could not be renewed before they expired stops collecting, see {@link #holds(Assignment)}.
+ */
+@Component
+public class SonarShardCoordinator {
+    private static final Log LOG = LogFactory.getLog(SonarShardCoordinator.class);
+
+    static final String SHARD_BY_INSTANCE = "instance";
+
+    private final SonarSettings settings;
+    private final SonarShardLeaseRepository leaseRepository;
+    private final String replicaId;
+    // partitions held by the runs in progress, by the number of runs holding them
+    private final Map<Integer, Integer> held = new HashMap<>();
+    // partitions leased by the last successful renewal and when those leases expire
+    private volatile Set<Integer> leased = Collections.emptySet();
+    private volatile long leasedUntil;
+    private ScheduledExecutorService renewer;
+
+    @Autowired
+    public SonarShardCoordinator(SonarSettings settings, SonarShardLeaseRepository leaseRepository) {
+        this.settings = settings;
+        this.leaseRepository = leaseRepository;
+        this.replicaId = StringUtils.defaultIfBlank(settings.getReplicaId(), defaultReplicaId());
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!isEnabled()) {
+            return;
+        }
+        long period = Math.max(1, TimeUnit.SECONDS.toMillis(settings.getShardLeaseSeconds()) / 3);
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("sonar-lease-");
+        threadFactory.setDaemon(true);
+        renewer = Executors.newSingleThreadScheduledExecutor(threadFactory);
+        renewer.scheduleAtFixedRate(this::rebalance, 0, period, TimeUnit.MILLISECONDS);
+        LOG.info(String.format("SonarShardCoordinator started, replicaId=%s shardCount=%d shardBy=%s",
+                replicaId, settings.getShardCount(), settings.getShardBy()));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (renewer == null) {
+            return;
+        }
+        renewer.shutdownNow();
+        try {
+            leaseRepository.releaseAll(replicaId);
+        } catch (DataAccessException e) {
+            LOG.warn("SonarShardCoordinator could not release the leases of " + replicaId + ": " + e.getMessage());
+        }
+    }
+
+    public boolean isEnabled() {
+        return settings.getShardCount() > 0;
+    }
+
+    public String getReplicaId() {
+        return replicaId;
+    }
+
+    /**
+     * Renews and balances the leases of this replica.
+     *
+     * @return the partitions to collect in this run, all of them when sharding is off
+     */
+    public Assignment assignment() {
+        return isEnabled() ? rebalance() : Assignment.ALL;
+    }
+
+    /**
+     * Like {@link #assignment()}, but keeps the partitions of the assignment until it is released with
+     * {@link #release(Assignment)}, so they are not rebalanced away while a run collects them.
+     */
+    public Assignment hold() {
+        if (!isEnabled()) {
+            return Assignment.ALL;
+        }
+        synchronized (this) {
+            Assignment assignment = rebalance();
+            assignment.getPartitions().forEach(partition -> held.merge(partition, 1, Integer::sum));
+            return assignment;
+        }
+    }
+
+    /**
+     * Releases an assignment taken with {@link #hold()}; partitions beyond the share are given up by the
+     * next rebalance.
+     */
+    public synchronized void release(Assignment assignment) {
+        assignment.getPartitions().forEach(partition ->
+                held.computeIfPresent(partition, (key, runs) -> runs > 1 ? runs - 1 : null));
+    }
+
+    /**
+     * Whether the partitions of the assignment are still leased to this replica: the last renewal kept them
+     * and its leases have not expired. Past that point another replica may have claimed them, so a run
+     * stops collecting once this turns false. Assignments without partitions, such as
+     * {@link Assignment#ALL} for refreshes outside of a run, lease nothing and always hold.
+     */
+    public boolean holds(Assignment assignment) {
+        return holds(assignment, System.currentTimeMillis());
+    }
+
+    boolean holds(Assignment assignment, long now) {
+        if (!isEnabled() || assignment.getPartitions().isEmpty()) {
+            return true;
+        }
+        return now < leasedUntil && leased.containsAll(assignment.getPartitions());
+    }
+
+    /**
+     * Renews the leases held, then releases the partitions beyond an even share of the live replicas or
+     * claims free and expired ones up to it. Partitions held by a run in progress are kept whatever the
+     * share. When Mongo can not be reached nothing is owned, so no project is collected twice.
+     */
+    synchronized Assignment rebalance() {
+        int shardCount = settings.getShardCount();
+        boolean byInstance = SHARD_BY_INSTANCE.equalsIgnoreCase(settings.getShardBy());
+        long now = System.currentTimeMillis();
+        long expiresAt = now + TimeUnit.SECONDS.toMillis(settings.getShardLeaseSeconds());
+        Set<Integer> owned = new TreeSet<>();
+        try {
+            leaseRepository.heartbeat(replicaId, expiresAt);
+            long replicas = Math.max(1, leaseRepository.countLiveReplicas(now));
+            int share = (int) ((shardCount + replicas - 1) / replicas);
+            List<Integer> renewed = leaseRepository.renew(replicaId, expiresAt);
+            for (Integer partition : renewed) {
+                if (partition != null && partition < shardCount && held.containsKey(partition)) {
+                    owned.add(partition);
+                }
+            }
+            for (Integer partition : renewed) {
+                if (partition == null || owned.contains(partition)) {
+                    continue;
+                }
+                if (partition < shardCount && owned.size() < share) {
+                    owned.add(partition);
+                } else {
+                    leaseRepository.release(partition, replicaId);
+                }
+            }
+            for (int partition = 0; partition < shardCount && owned.size() < share; partition++) {
+                if (!owned.contains(partition) && leaseRepository.claim(partition, replicaId, now, expiresAt)) {
+                    owned.add(partition);
+                }
+            }
+            leased = Collections.unmodifiableSet(new TreeSet<>(owned));
+            leasedUntil = expiresAt;
+            LOG.debug(String.format("SonarShardCoordinator replicaId=%s replicas=%d partitions=%s",
+                    replicaId, replicas, owned));
+        } catch (DataAccessException e) {
+            // the leases renewed last stay good until they expire, runs holding them go on until then
+            LOG.error("SonarShardCoordinator could not renew the leases of " + replicaId + ": " + e.getMessage());
+            owned.clear();
+        }
+        return new Assignment(shardCount, byInstance, owned);
+    }
+
+    private static String defaultReplicaId() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            host = "sonar-collector";
+        }
+        return host + "-" + ProcessHandle.current().pid();
+    }
+
+    /**
+     * The partitions a replica owns for one run.
+     */
+    public static final class Assignment {
+        static final Assignment ALL = new Assignment(0, false, Collections.emptySet());
+
+        private final int shardCount;
+        private final boolean byInstance;
+        private final Set<Integer> partitions;
+
+        Assignment(int shardCount, boolean byInstance, Set<Integer> partitions) {
+            this.shardCount = shardCount;
+            this.byInstance = byInstance;
+            this.partitions = Collections.unmodifiableSet(new TreeSet<>(partitions));
+        }
+
+        /**
+         * Whether this replica lists the projects of the instance and imports its quality profile changes.
+         */
+        public boolean ownsInstance(String instanceUrl) {
+            return shardCount <= 0 || partitions.contains(partition(instanceUrl));
+        }
+
+        /**
+         * Whether this replica refreshes any project of the instance.
+         */
+        public boolean collectsInstance(String instanceUrl) {
+            return !byInstance || ownsInstance(instanceUrl);
+        }
+
+        /**
+         * Whether this replica refreshes the project.
+         */
+        public boolean ownsProject(SonarProject project) {
+            if (shardCount <= 0) {
+                return true;
+            }
+            if (byInstance) {
+                return ownsInstance(project.getInstanceUrl());
+            }
+            return project.getId() != null && partitions.contains(partition(project.getId().toHexString()));
+        }
+
+        public Set<Integer> getPartitions() {
+            return partitions;
+        }
+
+        // String.hashCode is specified, so every replica puts a key in the same partition
+        private int partition(String key) {
+            return Math.floorMod(StringUtils.defaultString(key).hashCode(), shardCount);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.capitalone.dashboard.collector;
+
+import java.util.Arrays;
+
+/**
+ * Version reported by a sonar server, e.g. {@code 8.9.1.44547}, compared part by part.
+ */
+public final class SonarVersion implements Comparable<SonarVersion> {
+    private final String text;
+    private final int[] parts;
+
+    private SonarVersion(String text, int[] parts) {
+        this.text = text;
+        this.parts = parts;
+    }
+
+    /**
+     * @param text dotted version, suffixes such as {@code -SNAPSHOT} or build labels are ignored
+     * @throws IllegalArgumentException when the text does not start with a number
+     */
+    public static SonarVersion parse(String text) {
+        String trimmed = text == null ? "" : text.trim();
+        String[] tokens = trimmed.split("\\.");
+        int[] parts = new int[tokens.length];
+        int count = 0;
+        for (String token : tokens) {
+            int end = 0;
+            while (end < token.length() && Character.isDigit(token.charAt(end))) {
+                end++;
+            }
+            if (end == 0) {
+                break;
+            }
+            parts[count++] = Integer.parseInt(token.substring(0, end));
+            if (end < token.length()) {
+                break;
+            }
+        }
+        if (count == 0) {
+            throw new IllegalArgumentException("Not a sonar version: " + text);
+        }
+        return new SonarVersion(trimmed, Arrays.copyOf(parts, count));
+    }
+
+    public int getMajor() {
+        return parts[0];
+    }
+
+    public int getMinor() {
+        return parts.length > 1 ? parts[1] : 0;
+    }
+
+    public boolean isAtLeast(int major, int minor) {
+        return getMajor() != major ? getMajor() > major : getMinor() >= minor;
+    }
+
+    @Override
+    public int compareTo(SonarVersion other) {
+        for (int i = 0; i < Math.max(parts.length, other.parts.length); i++) {
+            int part = i < parts.length ? parts[i] : 0;
+            int otherPart = i < other.parts.length ? other.parts[i] : 0;
+            if (part != otherPart) {
+                return Integer.compare(part, otherPart);
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        return compareTo((SonarVersion) o) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        int[] significant = parts;
+        int length = significant.length;
+        while (length > 1 && significant[length - 1] == 0) {
+            length--;
+        }
+        return Arrays.hashCode(Arrays.copyOf(significant, length));
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+}
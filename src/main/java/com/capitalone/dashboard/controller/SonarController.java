@@ -2,6 +2,9 @@ package com.capitalone.dashboard.controller;
 
 import com.capitalone.dashboard.collector.SonarClient;
 import com.capitalone.dashboard.collector.SonarClientSelector;
+import com.capitalone.dashboard.collector.SonarCollectorTask;
+import com.capitalone.dashboard.collector.SonarRefreshQueue;
+import com.capitalone.dashboard.collector.SonarRefreshTicket;
 import com.capitalone.dashboard.model.Collector;
 import com.capitalone.dashboard.model.SonarProject;
 import com.capitalone.dashboard.repository.CodeQualityRepository;
@@ -9,90 +12,336 @@ import com.capitalone.dashboard.repository.CollectorRepository;
 import com.capitalone.dashboard.repository.SonarProjectRepository;
 import com.capitalone.dashboard.util.SonarCollectorUtil;
 import org.apache.commons.collections4.CollectionUtils;
+import org.apache.commons.collections4.ListUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.bson.types.ObjectId;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.ResponseEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.http.HttpStatus;
 import org.springframework.validation.annotation.Validated;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.client.RestClientException;
 
 import javax.validation.Valid;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.stream.Collectors;
 
 import static org.springframework.http.MediaType.APPLICATION_JSON_VALUE;
 import static org.springframework.web.bind.annotation.RequestMethod.GET;
+import static org.springframework.web.bind.annotation.RequestMethod.POST;
 
 @RestController
 @Validated
 public class SonarController {
+    private static final Log LOG = LogFactory.getLog(SonarController.class);
+
+    private static final int MAX_BULK_REFRESH = 1000;
 
     private final SonarProjectRepository sonarProjectRepository;
     private final CodeQualityRepository codeQualityRepository;
     private final CollectorRepository collectorRepository;
     private SonarClientSelector sonarClientSelector;
+    private final SonarRefreshQueue refreshQueue;
+    private final SonarCollectorTask collectorTask;
 
     @Autowired
     public SonarController(SonarProjectRepository sonarProjectRepository,
                            CodeQualityRepository codeQualityRepository,
                            CollectorRepository collectorRepository,
-                           SonarClientSelector sonarClientSelector) {
+                           SonarClientSelector sonarClientSelector,
+                           SonarRefreshQueue refreshQueue,
+                           SonarCollectorTask collectorTask) {
         this.sonarProjectRepository = sonarProjectRepository;
         this.codeQualityRepository = codeQualityRepository;
         this.collectorRepository = collectorRepository;
         this.sonarClientSelector = sonarClientSelector;
+        this.refreshQueue = refreshQueue;
+        this.collectorTask = collectorTask;
     }
 
+    /**
+     * Queues the refresh of a project and answers with the ticket to poll on {@code /refresh/{ticketId}}.
+     * The project is looked up in Sonar and refreshed by a worker of the {@link SonarRefreshQueue}. A stored
+     * project is queued under the same key as the webhook refreshes it with, so the two are not run twice.
+     */
     @RequestMapping(value = "/refresh", method = GET, produces = APPLICATION_JSON_VALUE)
     public ResponseEntity<String> refresh(@Valid String projectName, @Valid String projectKey, @Valid String instanceUrl) {
 
-        if (Objects.nonNull(instanceUrl)) {
-            SonarClient sonarClient = this.sonarClientSelector.getSonarClient(this.sonarClientSelector.getSonarVersion(instanceUrl));
-            Collector collector = collectorRepository.findByName("Sonar");
-
-            SonarProject projectToRefresh;
-            if (Objects.nonNull(collector)) {
-                if ((Objects.nonNull(projectName) &&
-                        Objects.nonNull(projectToRefresh = getExistingProject(collector.getId(),
-                                instanceUrl, projectName, projectKey, sonarClient)))) {
-                    SonarCollectorUtil.updateCodeQualityData(collector, sonarClient, projectToRefresh);
-                    return sendResponse("successfully refreshed sonar project");
-                }
-                return sendResponse("unable to refresh sonar project");
-            }
+        if (Objects.isNull(instanceUrl)) {
+            return sendResponse("sonar instance url is invalid");
+        }
+        if (Objects.isNull(projectName) || Objects.isNull(projectKey)) {
+            return sendResponse("unable to refresh sonar project");
+        }
+        SonarProject stored = findStoredProject(instanceUrl, projectName, projectKey);
+        String key = Objects.nonNull(stored)
+                ? SonarRefreshQueue.key(stored) : String.join("|", instanceUrl, projectKey, projectName);
+        SonarRefreshTicket ticket = refreshQueue.submit(key, () -> refreshProject(projectName, projectKey, instanceUrl));
+        if (Objects.isNull(ticket)) {
+            return sendResponse("refresh queue is full", HttpStatus.SERVICE_UNAVAILABLE);
+        }
+        HttpHeaders httpHeaders = new HttpHeaders();
+        httpHeaders.setContentType(MediaType.APPLICATION_JSON);
+        httpHeaders.setLocation(URI.create("/refresh/" + ticket.getId()));
+        return new ResponseEntity<>(toJson(ticket), httpHeaders, HttpStatus.ACCEPTED);
+    }
+
+    @RequestMapping(value = "/refresh/{ticketId}", method = GET, produces = APPLICATION_JSON_VALUE)
+    public ResponseEntity<String> refreshStatus(@PathVariable String ticketId) {
+        SonarRefreshTicket ticket = refreshQueue.getTicket(ticketId);
+        if (Objects.isNull(ticket)) {
+            return sendResponse("refresh ticket not found", HttpStatus.NOT_FOUND);
+        }
+        return sendResponse(toJson(ticket));
+    }
+
+    SonarRefreshTicket.Status refreshProject(String projectName, String projectKey, String instanceUrl) {
+        SonarClient sonarClient;
+        try {
+            sonarClient = this.sonarClientSelector.openSession(instanceUrl).getClient();
+        } catch (RestClientException e) {
+            throw new IllegalStateException("unable to detect sonar version of instance", e);
+        }
+        Collector collector = collectorRepository.findByName("Sonar");
+        if (Objects.isNull(collector)) {
+            return SonarRefreshTicket.Status.NOT_FOUND;
+        }
+        SonarProject projectToRefresh = findProject(collector.getId(), instanceUrl, projectName, projectKey, sonarClient);
+        if (Objects.isNull(projectToRefresh)) {
+            return SonarRefreshTicket.Status.NOT_FOUND;
+        }
+        return SonarCollectorUtil.updateCodeQualityData(collector, sonarClient, projectToRefresh)
+                ? SonarRefreshTicket.Status.REFRESHED : SonarRefreshTicket.Status.FAILED;
+    }
+
+    /**
+     * Refreshes many projects at once and answers with the outcome of each, in the order requested. The
+     * projects of an instance are refreshed together the way a collection run refreshes them: measures are
+     * fetched in batches and analyses are claimed, so one stored already or being stored by the collector
+     * is not stored twice.
+     */
+    @RequestMapping(value = "/refresh/bulk", method = POST, consumes = APPLICATION_JSON_VALUE, produces = APPLICATION_JSON_VALUE)
+    public ResponseEntity<String> bulkRefresh(@RequestBody List<SonarRefreshRequest> requests) {
+        if (CollectionUtils.isEmpty(requests) || requests.size() > MAX_BULK_REFRESH) {
+            return sendResponse("between 1 and " + MAX_BULK_REFRESH + " projects can be refreshed at once",
+                    HttpStatus.BAD_REQUEST);
+        }
+        Collector collector = collectorRepository.findByName("Sonar");
+        if (Objects.isNull(collector)) {
             return sendResponse("sonar collector not found");
         }
-        return sendResponse("sonar instance url is invalid");
+        JSONObject[] outcomes = new JSONObject[requests.size()];
+        Map<String, List<Integer>> byInstance = new LinkedHashMap<>();
+        for (int i = 0; i < requests.size(); i++) {
+            SonarRefreshRequest request = requests.get(i);
+            if (Objects.isNull(request) || Objects.isNull(request.getInstanceUrl())
+                    || Objects.isNull(request.getProjectName()) || Objects.isNull(request.getProjectKey())) {
+                outcomes[i] = outcome(request, SonarRefreshTicket.Status.FAILED,
+                        "instanceUrl, projectName and projectKey are required");
+            } else {
+                byInstance.computeIfAbsent(request.getInstanceUrl(), url -> new ArrayList<>()).add(i);
+            }
+        }
+        for (Map.Entry<String, List<Integer>> instance : byInstance.entrySet()) {
+            refreshInstance(collector, instance.getKey(), requests, instance.getValue(), outcomes);
+        }
+        JSONArray json = new JSONArray();
+        json.addAll(Arrays.asList(outcomes));
+        return sendResponse(json.toJSONString());
+    }
+
+    private void refreshInstance(Collector collector, String instanceUrl, List<SonarRefreshRequest> requests,
+                                 List<Integer> indexes, JSONObject[] outcomes) {
+        SonarClient sonarClient;
+        try {
+            sonarClient = this.sonarClientSelector.openSession(instanceUrl).getClient();
+        } catch (RestClientException e) {
+            indexes.forEach(i -> outcomes[i] = outcome(requests.get(i), SonarRefreshTicket.Status.FAILED,
+                    "unable to detect sonar version of instance"));
+            return;
+        }
+        // a project requested twice is refreshed once
+        Map<Integer, SonarProject> found = new LinkedHashMap<>();
+        Map<ObjectId, SonarProject> projects = new LinkedHashMap<>();
+        List<Integer> unresolved = new ArrayList<>();
+        for (int i : indexes) {
+            SonarRefreshRequest request = requests.get(i);
+            SonarProject stored = findStoredProject(collector.getId(), instanceUrl, request.getProjectName(),
+                    request.getProjectKey());
+            if (Objects.isNull(stored)) {
+                unresolved.add(i);
+            } else {
+                found.put(i, projects.computeIfAbsent(stored.getId(), id -> stored));
+            }
+        }
+        Map<String, SonarProject> inSonar;
+        try {
+            inSonar = findInSonar(instanceUrl, requests, unresolved, sonarClient);
+        } catch (RestClientException e) {
+            unresolved.forEach(i -> outcomes[i] = outcome(requests.get(i), SonarRefreshTicket.Status.FAILED, e.getMessage()));
+            unresolved.clear();
+            inSonar = Collections.emptyMap();
+        }
+        List<SonarProject> matched = new ArrayList<>();
+        for (int i : unresolved) {
+            SonarRefreshRequest request = requests.get(i);
+            SonarProject project = matchStoredProject(collector.getId(), instanceUrl, request.getProjectName(),
+                    inSonar.get(request.getProjectKey()));
+            if (Objects.isNull(project)) {
+                outcomes[i] = outcome(request, SonarRefreshTicket.Status.NOT_FOUND, "unable to refresh sonar project");
+            } else {
+                found.put(i, projects.computeIfAbsent(project.getId(), id -> {
+                    matched.add(project);
+                    return project;
+                }));
+            }
+        }
+        if (projects.isEmpty()) {
+            return;
+        }
+        Map<ObjectId, SonarRefreshTicket.Status> refreshed;
+        String message = null;
+        try {
+            // projects matched through Sonar are stored with the id they have there before they are refreshed
+            if (!matched.isEmpty()) {
+                sonarProjectRepository.saveAll(matched);
+            }
+            refreshed = collectorTask.refreshProjects(instanceUrl, new ArrayList<>(projects.values()));
+        } catch (RuntimeException e) {
+            refreshed = Collections.emptyMap();
+            message = e.getMessage();
+        }
+        for (Map.Entry<Integer, SonarProject> entry : found.entrySet()) {
+            SonarRefreshTicket.Status status = refreshed.getOrDefault(entry.getValue().getId(),
+                    SonarRefreshTicket.Status.FAILED);
+            outcomes[entry.getKey()] = outcome(requests.get(entry.getKey()), status, message);
+        }
+        LOG.info(String.format("Bulk refresh of instanceUrl=%s requested=%d found=%d",
+                instanceUrl, indexes.size(), projects.size()));
+    }
+
+    /**
+     * Looks the projects not stored under their key up in Sonar by key, in batches of
+     * {@link SonarClient#MAX_MEASURES_BATCH_SIZE}.
+     *
+     * @return the projects found by key
+     */
+    private static Map<String, SonarProject> findInSonar(String instanceUrl, List<SonarRefreshRequest> requests,
+                                                         List<Integer> indexes, SonarClient sonarClient) {
+        Map<String, SonarProject> inSonar = new HashMap<>();
+        List<String> projectKeys = indexes.stream().map(i -> requests.get(i).getProjectKey()).distinct()
+                .collect(Collectors.toList());
+        for (List<String> batch : ListUtils.partition(projectKeys, SonarClient.MAX_MEASURES_BATCH_SIZE)) {
+            inSonar.putAll(sonarClient.getProjectsByKey(instanceUrl, batch));
+        }
+        return inSonar;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static JSONObject outcome(SonarRefreshRequest request, SonarRefreshTicket.Status status, String message) {
+        JSONObject json = new JSONObject();
+        if (Objects.nonNull(request)) {
+            json.put("instanceUrl", request.getInstanceUrl());
+            json.put("projectName", request.getProjectName());
+            json.put("projectKey", request.getProjectKey());
+        }
+        json.put("status", status.name());
+        json.put("message", message);
+        return json;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static String toJson(SonarRefreshTicket ticket) {
+        JSONObject json = new JSONObject();
+        json.put("ticketId", ticket.getId());
+        json.put("status", ticket.getStatus().name());
+        json.put("message", ticket.getMessage());
+        json.put("createdAt", ticket.getCreatedAt());
+        json.put("startedAt", ticket.getStartedAt());
+        json.put("finishedAt", ticket.getFinishedAt());
+        return json.toJSONString();
     }
 
     private ResponseEntity<String> sendResponse(String message) {
+        return sendResponse(message, HttpStatus.OK);
+    }
+
+    private ResponseEntity<String> sendResponse(String message, HttpStatus status) {
         HttpHeaders httpHeaders = new HttpHeaders();
         httpHeaders.setContentType(MediaType.APPLICATION_JSON);
-        return new ResponseEntity<>(message, httpHeaders, HttpStatus.OK);
+        return new ResponseEntity<>(message, httpHeaders, status);
+    }
+
+    /**
+     * Projects are found by their key without asking Sonar, those stored before their key was collected
+     * are looked up in Sonar first.
+     */
+    private SonarProject findProject(ObjectId collectorId, String instanceUrl, String projectName,
+                                     String projectKey, SonarClient sonarClient) {
+        SonarProject stored = findStoredProject(collectorId, instanceUrl, projectName, projectKey);
+        if (Objects.nonNull(stored)) {
+            return stored;
+        }
+        return getExistingProject(collectorId, instanceUrl, projectName, projectKey, sonarClient);
+    }
+
+    private SonarProject findStoredProject(String instanceUrl, String projectName, String projectKey) {
+        Collector collector = collectorRepository.findByName("Sonar");
+        return Objects.isNull(collector) ? null : findStoredProject(collector.getId(), instanceUrl, projectName, projectKey);
+    }
+
+    /**
+     * Sonar 8 projects are stored under their key as project id, older ones keep it apart from their id.
+     */
+    private SonarProject findStoredProject(ObjectId collectorId, String instanceUrl, String projectName, String projectKey) {
+        SonarProject stored = sonarProjectRepository.findSonarProject(collectorId, instanceUrl, projectKey);
+        if (Objects.isNull(stored)) {
+            stored = sonarProjectRepository.findSonarProjectByKey(collectorId, instanceUrl, projectKey);
+        }
+        return Objects.nonNull(stored) && projectName.equals(stored.getProjectName()) ? stored : null;
     }
 
     private SonarProject getExistingProject(ObjectId collectorId, String instanceUrl, String projectName,
                                             String projectKey, SonarClient sonarClient) {
         if (Objects.nonNull(projectKey)) {
-            SonarProject project = sonarClient.getProject(projectKey, instanceUrl);
-            if (Objects.nonNull(project)) {
-                List<SonarProject> sonarProjects = sonarProjectRepository.
-                        findSonarProjectsByProjectName(collectorId, instanceUrl, projectName);
-                if (CollectionUtils.isNotEmpty(sonarProjects)) {
-                    sonarProjects = sonarProjects.stream().filter(p -> p.getProjectId()==null || project.getProjectId().equals(p.getProjectId())).collect(Collectors.toList());
-                }
-                if (CollectionUtils.isNotEmpty(sonarProjects)) {
-                    Collections.sort(sonarProjects, Comparator.comparing(SonarProject::getLastUpdated).reversed());
-                    SonarProject existingProject = sonarProjects.get(0);
-                    existingProject.setProjectId(project.getProjectId());
-                    return existingProject;
-                }
+            return matchStoredProject(collectorId, instanceUrl, projectName, sonarClient.getProject(projectKey, instanceUrl));
+        }
+        return null;
+    }
+
+    /**
+     * The stored project of the name a project found in Sonar was collected as, with the id it has in Sonar.
+     */
+    private SonarProject matchStoredProject(ObjectId collectorId, String instanceUrl, String projectName,
+                                            SonarProject project) {
+        if (Objects.nonNull(project)) {
+            List<SonarProject> sonarProjects = sonarProjectRepository.
+                    findSonarProjectsByProjectName(collectorId, instanceUrl, projectName);
+            if (CollectionUtils.isNotEmpty(sonarProjects)) {
+                sonarProjects = sonarProjects.stream().filter(p -> p.getProjectId()==null || project.getProjectId().equals(p.getProjectId())).collect(Collectors.toList());
+            }
+            if (CollectionUtils.isNotEmpty(sonarProjects)) {
+                Collections.sort(sonarProjects, Comparator.comparing(SonarProject::getLastUpdated).reversed());
+                SonarProject existingProject = sonarProjects.get(0);
+                existingProject.setProjectId(project.getProjectId());
+                return existingProject;
             }
         }
         return null;
@@ -0,0 +1,43 @@
+package com.capitalone.dashboard.controller;
+
+/**
+ * A project to refresh, named as on {@code /refresh}.
+ */
+public class SonarRefreshRequest {
+    private String instanceUrl;
+    private String projectName;
+    private String projectKey;
+
+    public SonarRefreshRequest() {
+    }
+
+    public SonarRefreshRequest(String instanceUrl, String projectName, String projectKey) {
+        this.instanceUrl = instanceUrl;
+        this.projectName = projectName;
+        this.projectKey = projectKey;
+    }
+
+    public String getInstanceUrl() {
+        return instanceUrl;
+    }
+
+    public void setInstanceUrl(String instanceUrl) {
+        this.instanceUrl = instanceUrl;
+    }
+
+    public String getProjectName() {
+        return projectName;
+    }
+
+    public void setProjectName(String projectName) {
+        this.projectName = projectName;
+    }
+
+    public String getProjectKey() {
+        return projectKey;
+    }
+
+    public void setProjectKey(String projectKey) {
+        this.projectKey = projectKey;
+    }
+}
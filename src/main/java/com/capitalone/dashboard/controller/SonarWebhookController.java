@@ -0,0 +1,158 @@
+package com.capitalone.dashboard.controller;
+
+import com.capitalone.dashboard.collector.SonarRefreshQueue;
+import com.capitalone.dashboard.collector.SonarRefreshTicket;
+import com.capitalone.dashboard.collector.SonarSettings;
+import com.capitalone.dashboard.model.SonarCollector;
+import com.capitalone.dashboard.model.SonarProject;
+import com.capitalone.dashboard.repository.SonarCollectorRepository;
+import com.capitalone.dashboard.repository.SonarProjectRepository;
+import com.capitalone.dashboard.util.SonarWebhookSignature;
+import org.apache.commons.collections4.CollectionUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Objects;
+
+import static org.springframework.http.MediaType.APPLICATION_JSON_VALUE;
+import static org.springframework.web.bind.annotation.RequestMethod.POST;
+
+/**
+ * Receives the webhook Sonar posts when the analysis of a project completes, and queues the refresh of
+ * that project. Payloads must be signed with {@link SonarSettings#getWebhookSecret()}.
+ */
+@RestController
+public class SonarWebhookController {
+    private static final Log LOG = LogFactory.getLog(SonarWebhookController.class);
+
+    private static final String SUCCESS = "SUCCESS";
+
+    private final SonarSettings sonarSettings;
+    private final SonarCollectorRepository sonarCollectorRepository;
+    private final SonarProjectRepository sonarProjectRepository;
+    private final SonarRefreshQueue refreshQueue;
+
+    @Autowired
+    public SonarWebhookController(SonarSettings sonarSettings,
+                                  SonarCollectorRepository sonarCollectorRepository,
+                                  SonarProjectRepository sonarProjectRepository,
+                                  SonarRefreshQueue refreshQueue) {
+        this.sonarSettings = sonarSettings;
+        this.sonarCollectorRepository = sonarCollectorRepository;
+        this.sonarProjectRepository = sonarProjectRepository;
+        this.refreshQueue = refreshQueue;
+    }
+
+    /**
+     * @param instanceUrl the server in {@code sonar.servers} the webhook comes from, when the
+     *                    {@code serverUrl} Sonar reports differs from it
+     */
+    @RequestMapping(value = "/webhook", method = POST, consumes = APPLICATION_JSON_VALUE, produces = APPLICATION_JSON_VALUE)
+    public ResponseEntity<String> webhook(@RequestBody byte[] payload,
+                                          @RequestHeader(value = SonarWebhookSignature.HEADER, required = false) String signature,
+                                          @RequestParam(value = "instanceUrl", required = false) String instanceUrl) {
+        if (!SonarWebhookSignature.isValid(sonarSettings.getWebhookSecret(), payload, signature)) {
+            return sendResponse("invalid webhook signature", HttpStatus.FORBIDDEN);
+        }
+        JSONObject analysis;
+        try {
+            analysis = (JSONObject) new JSONParser().parse(new String(payload, StandardCharsets.UTF_8));
+        } catch (ParseException | ClassCastException e) {
+            return sendResponse("invalid webhook payload", HttpStatus.BAD_REQUEST);
+        }
+        JSONObject project = obj(analysis, "project");
+        String projectKey = project == null ? null : str(project, "key");
+        if (StringUtils.isEmpty(projectKey)) {
+            return sendResponse("invalid webhook payload", HttpStatus.BAD_REQUEST);
+        }
+        if (!SUCCESS.equals(str(analysis, "status"))) {
+            return sendResponse("analysis did not succeed", HttpStatus.OK);
+        }
+        // only the main branch is collected
+        JSONObject branch = obj(analysis, "branch");
+        if (branch != null && Boolean.FALSE.equals(branch.get("isMain"))) {
+            return sendResponse("branch is not collected", HttpStatus.OK);
+        }
+
+        SonarCollector collector = sonarCollectorRepository.findByName("Sonar");
+        if (Objects.isNull(collector)) {
+            return sendResponse("sonar collector not found", HttpStatus.OK);
+        }
+        String server = findServer(collector.getSonarServers(),
+                StringUtils.defaultIfEmpty(instanceUrl, str(analysis, "serverUrl")));
+        if (Objects.isNull(server)) {
+            return sendResponse("sonar instance is not collected", HttpStatus.OK);
+        }
+        SonarProject projectToRefresh = getExistingProject(collector, server, projectKey);
+        if (Objects.isNull(projectToRefresh)) {
+            return sendResponse("sonar project is not collected", HttpStatus.OK);
+        }
+        SonarRefreshTicket ticket = refreshQueue.enqueue(projectToRefresh);
+        if (Objects.isNull(ticket)) {
+            return sendResponse("refresh queue is full", HttpStatus.SERVICE_UNAVAILABLE);
+        }
+        LOG.info(String.format("Webhook queued refresh of projectName=%s instanceUrl=%s ticketId=%s",
+                projectToRefresh.getProjectName(), server, ticket.getId()));
+        return sendResponse("sonar project refresh queued, ticketId=" + ticket.getId(), HttpStatus.ACCEPTED);
+    }
+
+    /**
+     * @return the configured server the url points at, or the only one configured when the url is unknown
+     */
+    private static String findServer(List<String> servers, String url) {
+        if (CollectionUtils.isEmpty(servers)) {
+            return null;
+        }
+        String normalized = StringUtils.removeEnd(StringUtils.trimToEmpty(url), "/");
+        for (String server : servers) {
+            if (StringUtils.removeEnd(server, "/").equalsIgnoreCase(normalized)) {
+                return server;
+            }
+        }
+        return StringUtils.isEmpty(normalized) && servers.size() == 1 ? servers.get(0) : null;
+    }
+
+    /**
+     * Sonar 8 projects are stored under their key as project id, older ones keep it apart from their
+     * component id. Names are not unique on a server, so projects are not looked up by name.
+     */
+    private SonarProject getExistingProject(SonarCollector collector, String instanceUrl, String projectKey) {
+        SonarProject project = sonarProjectRepository.findSonarProject(collector.getId(), instanceUrl, projectKey);
+        if (Objects.isNull(project)) {
+            project = sonarProjectRepository.findSonarProjectByKey(collector.getId(), instanceUrl, projectKey);
+        }
+        return Objects.nonNull(project) && project.isEnabled() ? project : null;
+    }
+
+    private static JSONObject obj(JSONObject json, String key) {
+        Object value = json.get(key);
+        return value instanceof JSONObject ? (JSONObject) value : null;
+    }
+
+    private static String str(JSONObject json, String key) {
+        Object value = json.get(key);
+        return value == null ? null : value.toString();
+    }
+
+    private ResponseEntity<String> sendResponse(String message, HttpStatus status) {
+        HttpHeaders httpHeaders = new HttpHeaders();
+        httpHeaders.setContentType(MediaType.APPLICATION_JSON);
+        return new ResponseEntity<>(message, httpHeaders, status);
+    }
+}
@@ -0,0 +1,99 @@
+package com.capitalone.dashboard.model;
+
+import org.bson.types.ObjectId;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Progress of the refresh of one sonar instance. The enabled projects are refreshed in the order of their
+ * ids: every project up to {@code cursor} and those in {@code processed} are done.
+ */
+@Document(collection = "sonar_collection_runs")
+public class SonarCollectionRun {
+    @Id
+    private String id;
+    private String instanceUrl;
+    private long startedAt;
+    private long updatedAt;
+    private boolean completed;
+    private ObjectId cursor;
+    private List<ObjectId> processed = new ArrayList<>();
+    private int processedCount;
+
+    public SonarCollectionRun() {
+    }
+
+    public SonarCollectionRun(String id, String instanceUrl, long startedAt) {
+        this.id = id;
+        this.instanceUrl = instanceUrl;
+        this.startedAt = startedAt;
+        this.updatedAt = startedAt;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getInstanceUrl() {
+        return instanceUrl;
+    }
+
+    public void setInstanceUrl(String instanceUrl) {
+        this.instanceUrl = instanceUrl;
+    }
+
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    public void setStartedAt(long startedAt) {
+        this.startedAt = startedAt;
+    }
+
+    public long getUpdatedAt() {
+        return updatedAt;
+    }
+
+    public void setUpdatedAt(long updatedAt) {
+        this.updatedAt = updatedAt;
+    }
+
+    public boolean isCompleted() {
+        return completed;
+    }
+
+    public void setCompleted(boolean completed) {
+        this.completed = completed;
+    }
+
+    public ObjectId getCursor() {
+        return cursor;
+    }
+
+    public void setCursor(ObjectId cursor) {
+        this.cursor = cursor;
+    }
+
+    public List<ObjectId> getProcessed() {
+        return processed;
+    }
+
+    public void setProcessed(List<ObjectId> processed) {
+        this.processed = processed;
+    }
+
+    public int getProcessedCount() {
+        return processedCount;
+    }
+
+    public void setProcessedCount(int processedCount) {
+        this.processedCount = processedCount;
+    }
+}
@@ -1,5 +1,7 @@
 package com.capitalone.dashboard.model;
 
+import org.springframework.data.annotation.Transient;
+
 import java.util.Objects;
 
 public class SonarProject extends CollectorItem {
@@ -7,6 +9,16 @@ public class SonarProject extends CollectorItem {
     protected static final String PROJECT_NAME = "projectName";
     protected static final String PROJECT_ID = "projectId";
 
+    // key of the project in sonar, the id of 6.x servers is not accepted where a key is expected
+    private String projectKey;
+
+    // timestamp of the latest analysis collected for this project
+    private long lastAnalysisTimestamp;
+
+    // last analysis date reported by the sonar project listing, 0 when the listing does not report it
+    @Transient
+    private long lastAnalysisDate;
+
     public String getInstanceUrl() {
         return (String) getOptions().get(INSTANCE_URL);
     }
@@ -31,6 +43,30 @@ public class SonarProject extends CollectorItem {
         getOptions().put(PROJECT_NAME, name);
     }
 
+    public String getProjectKey() {
+        return projectKey;
+    }
+
+    public void setProjectKey(String projectKey) {
+        this.projectKey = projectKey;
+    }
+
+    public long getLastAnalysisTimestamp() {
+        return lastAnalysisTimestamp;
+    }
+
+    public void setLastAnalysisTimestamp(long lastAnalysisTimestamp) {
+        this.lastAnalysisTimestamp = lastAnalysisTimestamp;
+    }
+
+    public long getLastAnalysisDate() {
+        return lastAnalysisDate;
+    }
+
+    public void setLastAnalysisDate(long lastAnalysisDate) {
+        this.lastAnalysisDate = lastAnalysisDate;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
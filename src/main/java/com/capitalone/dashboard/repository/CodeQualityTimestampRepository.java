@@ -0,0 +1,124 @@
+package com.capitalone.dashboard.repository;
+
+import com.capitalone.dashboard.model.CodeQuality;
+import org.apache.commons.collections4.ListUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.stereotype.Repository;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.group;
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.match;
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.project;
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.sort;
+
+/**
+ * Reads the latest code quality timestamps of many collector items in one aggregation.
+ */
+@Repository
+public class CodeQualityTimestampRepository {
+    private static final Log LOG = LogFactory.getLog(CodeQualityTimestampRepository.class);
+
+    static final String INDEX_NAME = "collectorItemId_timestamp";
+    private static final String ID = "_id";
+    private static final String COLLECTOR_ITEM_ID = "collectorItemId";
+    private static final String TIMESTAMP = "timestamp";
+    private static final String TIMESTAMPS = "timestamps";
+    // collector items whose recent timestamps are grouped in one aggregation
+    private static final int RECENT_TIMESTAMPS_BATCH_SIZE = 500;
+
+    private final MongoOperations mongoOperations;
+
+    @Autowired
+    public CodeQualityTimestampRepository(MongoOperations mongoOperations) {
+        this.mongoOperations = mongoOperations;
+    }
+
+    /**
+     * Creates the (collectorItemId, timestamp) index the aggregation walks instead of scanning code_quality.
+     */
+    @PostConstruct
+    public void ensureIndex() {
+        try {
+            mongoOperations.indexOps(CodeQuality.class).ensureIndex(new Index()
+                    .on(COLLECTOR_ITEM_ID, Sort.Direction.ASC)
+                    .on(TIMESTAMP, Sort.Direction.DESC)
+                    .named(INDEX_NAME));
+        } catch (DataAccessException e) {
+            LOG.warn("Could not create index " + INDEX_NAME + " on code_quality: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @param collectorItemIds ids of the collector items to look up
+     * @return latest stored timestamp keyed by collector item id, items without code quality are absent
+     */
+    public Map<ObjectId, Long> findLatestTimestamps(Collection<ObjectId> collectorItemIds) {
+        Map<ObjectId, Long> timestamps = new HashMap<>();
+        if (collectorItemIds.isEmpty()) {
+            return timestamps;
+        }
+        Aggregation aggregation = Aggregation.newAggregation(
+                match(Criteria.where(COLLECTOR_ITEM_ID).in(collectorItemIds)),
+                sort(Sort.by(Sort.Order.asc(COLLECTOR_ITEM_ID), Sort.Order.desc(TIMESTAMP))),
+                group(COLLECTOR_ITEM_ID).first(TIMESTAMP).as(TIMESTAMP));
+        for (Document document : mongoOperations.aggregate(aggregation, CodeQuality.class, Document.class)) {
+            Number timestamp = (Number) document.get(TIMESTAMP);
+            if (timestamp != null) {
+                timestamps.put(document.getObjectId(ID), timestamp.longValue());
+            }
+        }
+        return timestamps;
+    }
+
+    /**
+     * Every timestamp since {@code since} is grouped before the list of an item is cut to {@code limit}, so
+     * the items are read in batches and the group may spill to disk.
+     *
+     * @param collectorItemIds ids of the collector items to look up
+     * @param since            earliest timestamp to read
+     * @param limit            most timestamps read per item
+     * @return timestamps since {@code since}, latest first, keyed by collector item id; items without any are absent
+     */
+    public Map<ObjectId, long[]> findRecentTimestamps(Collection<ObjectId> collectorItemIds, long since, int limit) {
+        Map<ObjectId, long[]> timestamps = new HashMap<>();
+        if (collectorItemIds.isEmpty()) {
+            return timestamps;
+        }
+        for (List<ObjectId> batch : ListUtils.partition(new ArrayList<>(collectorItemIds), RECENT_TIMESTAMPS_BATCH_SIZE)) {
+            Aggregation aggregation = Aggregation.newAggregation(
+                    match(Criteria.where(COLLECTOR_ITEM_ID).in(batch).and(TIMESTAMP).gte(since)),
+                    sort(Sort.by(Sort.Order.asc(COLLECTOR_ITEM_ID), Sort.Order.desc(TIMESTAMP))),
+                    group(COLLECTOR_ITEM_ID).push(TIMESTAMP).as(TIMESTAMPS),
+                    project().and(TIMESTAMPS).slice(limit))
+                    .withOptions(Aggregation.newAggregationOptions().allowDiskUse(true).build());
+            for (Document document : mongoOperations.aggregate(aggregation, CodeQuality.class, Document.class)) {
+                List<?> values = document.get(TIMESTAMPS, List.class);
+                if (values == null || values.isEmpty()) {
+                    continue;
+                }
+                long[] itemTimestamps = new long[values.size()];
+                for (int i = 0; i < itemTimestamps.length; i++) {
+                    itemTimestamps[i] = ((Number) values.get(i)).longValue();
+                }
+                timestamps.put(document.getObjectId(ID), itemTimestamps);
+            }
+        }
+        return timestamps;
+    }
+}
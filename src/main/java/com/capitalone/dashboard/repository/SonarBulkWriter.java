@@ -0,0 +1,224 @@
+package com.capitalone.dashboard.repository;
+
+import com.capitalone.dashboard.model.CodeQuality;
+import com.capitalone.dashboard.model.SonarProject;
+import io.micrometer.core.instrument.Timer;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.bson.types.ObjectId;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Buffers the project updates and code quality inserts of a refresh and writes them as unordered
+ * bulk operations. The buffer is flushed once it holds {@code maxSize} writes or its oldest write is
+ * older than {@code maxAgeMillis}, and on {@link #flush()}. Every flush is timed by {@code writeTimer}.
+ * Safe for use by several refresh workers; flushes are written one after another.
+ * <p>
+ * The code qualities are inserted first and a project is only updated once its code quality was, so a
+ * failed insert leaves the project to be collected again. A flush that fails as a whole puts its writes
+ * back into the buffer and rethrows; the code qualities keep the ids given on the first attempt, so the
+ * inserts a failed flush did apply are not duplicated by the next one.
+ */
+public class SonarBulkWriter {
+    private static final Log LOG = LogFactory.getLog(SonarBulkWriter.class);
+
+    private static final String ID = "_id";
+    private static final String LAST_UPDATED = "lastUpdated";
+    private static final String LAST_ANALYSIS_TIMESTAMP = "lastAnalysisTimestamp";
+    private static final int DUPLICATE_KEY = 11000;
+
+    private final MongoOperations mongoOperations;
+    private final int maxSize;
+    private final long maxAgeMillis;
+    private final Timer writeTimer;
+    private final Object flushLock = new Object();
+    private Supplier<Runnable> checkpoint = () -> null;
+    private Consumer<ObjectId> failedWrite = id -> { };
+
+    private List<PendingWrite> pendingWrites = new ArrayList<>();
+    private long oldestWrite;
+
+    public SonarBulkWriter(MongoOperations mongoOperations, int maxSize, long maxAgeMillis, Timer writeTimer) {
+        this.mongoOperations = mongoOperations;
+        this.maxSize = Math.max(1, maxSize);
+        this.maxAgeMillis = maxAgeMillis;
+        this.writeTimer = writeTimer;
+    }
+
+    /**
+     * Queues a {@code $set} of lastUpdated and lastAnalysisTimestamp for the project and the insert of its
+     * new code quality.
+     */
+    public void saveCodeQuality(SonarProject project, CodeQuality codeQuality) {
+        codeQuality.setCollectorItemId(project.getId());
+        add(new PendingWrite(project, true, codeQuality));
+    }
+
+    /**
+     * Queues a {@code $set} of lastAnalysisTimestamp for a project whose analysis was already collected.
+     */
+    public void saveLastAnalysisTimestamp(SonarProject project) {
+        add(new PendingWrite(project, false, null));
+    }
+
+    /**
+     * Takes a checkpoint of the refresh with every flush. The supplier is called together with taking the
+     * buffered writes, so it covers no more than what was buffered, and the {@code Runnable} it returns is
+     * run once they are written. It is not run when a write of the flush failed.
+     */
+    public void onFlush(Supplier<Runnable> checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+
+    /**
+     * Reports the id of every project with a write that failed, before the checkpoint of its flush is dropped.
+     */
+    public void onFailedWrite(Consumer<ObjectId> failedWrite) {
+        this.failedWrite = failedWrite;
+    }
+
+    /**
+     * Writes everything buffered so far.
+     *
+     * @throws DataAccessException when the writes could not be sent, they are buffered again
+     */
+    public void flush() {
+        synchronized (flushLock) {
+            List<PendingWrite> pending;
+            Runnable written;
+            synchronized (this) {
+                pending = pendingWrites;
+                pendingWrites = new ArrayList<>();
+                oldestWrite = 0;
+                written = checkpoint.get();
+            }
+            Set<ObjectId> failedProjects = new HashSet<>();
+            if (!pending.isEmpty()) {
+                try {
+                    writeTimer.record(() -> failedProjects.addAll(write(pending)));
+                } catch (DataAccessException e) {
+                    requeue(pending);
+                    throw e;
+                }
+            }
+            failedProjects.forEach(failedWrite);
+            if (written != null && failedProjects.isEmpty()) {
+                written.run();
+            }
+        }
+    }
+
+    /**
+     * @return the ids of the projects with a write that failed
+     */
+    private Set<ObjectId> write(List<PendingWrite> pending) {
+        List<PendingWrite> inserts = new ArrayList<>();
+        List<CodeQuality> pendingCodeQualities = new ArrayList<>();
+        for (PendingWrite write : pending) {
+            if (write.codeQuality != null) {
+                if (write.codeQuality.getId() == null) {
+                    write.codeQuality.setId(ObjectId.get());
+                }
+                inserts.add(write);
+                pendingCodeQualities.add(write.codeQuality);
+            }
+        }
+        Set<PendingWrite> failed = new HashSet<>();
+        if (!pendingCodeQualities.isEmpty()) {
+            BulkOperations operations = mongoOperations.bulkOps(BulkOperations.BulkMode.UNORDERED, CodeQuality.class);
+            operations.insert(pendingCodeQualities);
+            for (int index : execute(operations, pendingCodeQualities.size(), "code_quality")) {
+                failed.add(inserts.get(index));
+            }
+        }
+        List<PendingWrite> projectUpdates = new ArrayList<>(pending.size());
+        for (PendingWrite write : pending) {
+            if (!failed.contains(write)) {
+                projectUpdates.add(write);
+            }
+        }
+        if (!projectUpdates.isEmpty()) {
+            BulkOperations operations = mongoOperations.bulkOps(BulkOperations.BulkMode.UNORDERED, SonarProject.class);
+            for (PendingWrite write : projectUpdates) {
+                operations.updateOne(Query.query(Criteria.where(ID).is(write.id)), write.update);
+            }
+            for (int index : execute(operations, projectUpdates.size(), "collector_items")) {
+                failed.add(projectUpdates.get(index));
+            }
+        }
+        Set<ObjectId> failedProjects = new HashSet<>();
+        for (PendingWrite write : failed) {
+            failedProjects.add(write.id);
+        }
+        return failedProjects;
+    }
+
+    private void add(PendingWrite write) {
+        boolean full;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (oldestWrite == 0) {
+                oldestWrite = now;
+            }
+            pendingWrites.add(write);
+            full = pendingWrites.size() >= maxSize || (maxAgeMillis > 0 && now - oldestWrite >= maxAgeMillis);
+        }
+        if (full) {
+            flush();
+        }
+    }
+
+    private synchronized void requeue(List<PendingWrite> pending) {
+        pending.addAll(pendingWrites);
+        pendingWrites = pending;
+        oldestWrite = System.currentTimeMillis();
+    }
+
+    /**
+     * @return the indexes of the writes that failed, a duplicate key is an insert applied by an earlier flush
+     */
+    private Set<Integer> execute(BulkOperations operations, int count, String collection) {
+        Set<Integer> failed = new HashSet<>();
+        try {
+            operations.execute();
+        } catch (BulkOperationException e) {
+            // unordered, so every write that did not fail has been applied
+            e.getErrors().stream()
+                    .filter(error -> error.getCode() != DUPLICATE_KEY)
+                    .forEach(error -> failed.add(error.getIndex()));
+            if (!failed.isEmpty()) {
+                LOG.error(String.format("SonarBulkWriter:flush() %d of %d writes to %s failed: %s",
+                        failed.size(), count, collection, e.getMessage()));
+            }
+        }
+        return failed;
+    }
+
+    private static final class PendingWrite {
+        private final ObjectId id;
+        private final Update update;
+        private final CodeQuality codeQuality;
+
+        private PendingWrite(SonarProject project, boolean updated, CodeQuality codeQuality) {
+            this.id = project.getId();
+            this.update = Update.update(LAST_ANALYSIS_TIMESTAMP, project.getLastAnalysisTimestamp());
+            if (updated) {
+                update.set(LAST_UPDATED, project.getLastUpdated());
+            }
+            this.codeQuality = codeQuality;
+        }
+    }
+}
@@ -0,0 +1,7 @@
+package com.capitalone.dashboard.repository;
+
+import com.capitalone.dashboard.model.SonarCollectionRun;
+import org.springframework.data.repository.CrudRepository;
+
+public interface SonarCollectionRunRepository extends CrudRepository<SonarCollectionRun, String> {
+}
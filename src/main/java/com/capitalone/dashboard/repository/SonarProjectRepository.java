@@ -11,6 +11,9 @@ public interface SonarProjectRepository extends BaseCollectorItemRepository<Sona
     @Query(value="{ 'collectorId' : ?0, 'options.instanceUrl' : ?1, 'options.projectId' : ?2}")
     SonarProject findSonarProject(ObjectId collectorId, String instanceUrl, String projectId);
 
+    @Query(value="{ 'collectorId' : ?0, 'options.instanceUrl' : ?1, 'projectKey' : ?2}")
+    SonarProject findSonarProjectByKey(ObjectId collectorId, String instanceUrl, String projectKey);
+
     @Query(value="{ 'collectorId' : ?0, 'options.instanceUrl' : ?1, 'options.projectName' : ?2}")
     List<SonarProject> findSonarProjectsByProjectName(ObjectId collectorId, String instanceUrl, String projectName);
 
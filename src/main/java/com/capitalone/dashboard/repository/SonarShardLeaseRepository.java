@@ -0,0 +1,97 @@
+package com.capitalone.dashboard.repository;
+
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Leases on the partitions of a sharded collection, one document per partition holding its owner and
+ * when the lease expires, next to a heartbeat document per live replica.
+ */
+@Repository
+public class SonarShardLeaseRepository {
+    static final String LEASES = "sonar_shard_leases";
+    static final String REPLICAS = "sonar_shard_replicas";
+    private static final String ID = "_id";
+    private static final String OWNER = "owner";
+    private static final String EXPIRES_AT = "expiresAt";
+
+    private final MongoOperations mongoOperations;
+
+    @Autowired
+    public SonarShardLeaseRepository(MongoOperations mongoOperations) {
+        this.mongoOperations = mongoOperations;
+    }
+
+    /**
+     * Marks the replica alive until {@code expiresAt}.
+     */
+    public void heartbeat(String replicaId, long expiresAt) {
+        mongoOperations.upsert(Query.query(Criteria.where(ID).is(replicaId)), Update.update(EXPIRES_AT, expiresAt), REPLICAS);
+    }
+
+    /**
+     * @return the number of replicas whose heartbeat has not expired at {@code now}
+     */
+    public long countLiveReplicas(long now) {
+        return mongoOperations.count(Query.query(Criteria.where(EXPIRES_AT).gt(now)), REPLICAS);
+    }
+
+    /**
+     * Extends every lease the replica still owns until {@code expiresAt}.
+     *
+     * @return the partitions the replica owns
+     */
+    public List<Integer> renew(String replicaId, long expiresAt) {
+        Query owned = Query.query(Criteria.where(OWNER).is(replicaId));
+        mongoOperations.updateMulti(owned, Update.update(EXPIRES_AT, expiresAt), LEASES);
+        return mongoOperations.find(owned, Document.class, LEASES).stream()
+                .map(lease -> lease.getInteger(ID))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Takes the lease of a partition that has none yet, whose lease expired or that the replica owns already.
+     *
+     * @return whether the replica owns the partition until {@code expiresAt}
+     */
+    public boolean claim(int partition, String replicaId, long now, long expiresAt) {
+        Query claimable = Query.query(Criteria.where(ID).is(partition)
+                .orOperator(Criteria.where(OWNER).is(replicaId), Criteria.where(EXPIRES_AT).lte(now)));
+        try {
+            mongoOperations.upsert(claimable, new Update().set(OWNER, replicaId).set(EXPIRES_AT, expiresAt), LEASES);
+            return true;
+        } catch (DuplicateKeyException e) {
+            // the partition exists and another replica holds it
+            return false;
+        }
+    }
+
+    /**
+     * Gives up the lease of a partition if the replica still owns it.
+     */
+    public void release(int partition, String replicaId) {
+        mongoOperations.updateFirst(Query.query(Criteria.where(ID).is(partition).and(OWNER).is(replicaId)),
+                released(), LEASES);
+    }
+
+    /**
+     * Gives up every lease of the replica and its heartbeat.
+     */
+    public void releaseAll(String replicaId) {
+        mongoOperations.updateMulti(Query.query(Criteria.where(OWNER).is(replicaId)), released(), LEASES);
+        mongoOperations.remove(Query.query(Criteria.where(ID).is(replicaId)), REPLICAS);
+    }
+
+    private static Update released() {
+        return new Update().unset(OWNER).set(EXPIRES_AT, 0L);
+    }
+}
@@ -28,16 +28,23 @@ public class SonarCollectorUtil {
     }
 
 
-    public static void updateCodeQualityData(Collector sonarCollector, SonarClient sonarClient, SonarProject project) {
+    /**
+     * Saves the current code quality of the project.
+     *
+     * @return whether the code quality was saved
+     */
+    public static boolean updateCodeQualityData(Collector sonarCollector, SonarClient sonarClient, SonarProject project) {
         try {
             CodeQuality codeQuality = sonarClient.currentCodeQuality(project);
             if (codeQuality != null) {
                 project.setLastUpdated(System.currentTimeMillis());
+                project.setLastAnalysisTimestamp(codeQuality.getTimestamp());
                 project.setCollectorId(sonarCollector.getId());
                 sonarProjectRepository.save(project);
                 codeQuality.setCollectorItemId(project.getId());
                 codeQuality.setTimestamp(System.currentTimeMillis());
                 codeQualityRepository.save(codeQuality);
+                return true;
             }
         } catch (HttpClientErrorException e) {
             if (e.getStatusCode() == HttpStatus.NOT_FOUND) {
@@ -57,5 +64,6 @@ public class SonarCollectorUtil {
             sonarProjectRepository.save(project);
             LOG.error(parseEx);
         }
+        return false;
     }
 }
@@ -0,0 +1,51 @@
+package com.capitalone.dashboard.util;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.lang3.StringUtils;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Locale;
+
+/**
+ * Checks the {@code X-Sonar-Webhook-HMAC-SHA256} header SonarQube signs webhook payloads with: the hex
+ * HMAC-SHA256 of the raw body, keyed with the secret of the webhook.
+ */
+public final class SonarWebhookSignature {
+    public static final String HEADER = "X-Sonar-Webhook-HMAC-SHA256";
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private SonarWebhookSignature() {
+    }
+
+    public static String sign(String secret, String body) {
+        return sign(secret, body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static String sign(String secret, byte[] body) {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), ALGORITHM));
+            return Hex.encodeHexString(mac.doFinal(body));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        }
+    }
+
+    /**
+     * @param body the body as received, not decoded, so the bytes signed are the bytes checked
+     * @return whether the signature was made with the secret over the body, false without a secret
+     */
+    public static boolean isValid(String secret, byte[] body, String signature) {
+        if (StringUtils.isEmpty(secret) || StringUtils.isEmpty(signature) || body == null) {
+            return false;
+        }
+        byte[] expected = sign(secret, body).getBytes(StandardCharsets.US_ASCII);
+        byte[] actual = signature.trim().toLowerCase(Locale.ROOT).getBytes(StandardCharsets.US_ASCII);
+        // constant time, so the signature can not be guessed byte by byte
+        return MessageDigest.isEqual(expected, actual);
+    }
+}
@@ -1,15 +1,23 @@
 package com.capitalone.dashboard.collector;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.when;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.io.IOUtils;
 import org.junit.jupiter.api.BeforeEach;
@@ -21,6 +29,7 @@ import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestOperations;
 
 import com.capitalone.dashboard.client.RestClient;
@@ -42,6 +51,7 @@ public class DefaultSonar6ClientTest {
     private DefaultSonar6Client defaultSonar6Client;
 
     private static final String URL_RESOURCES = "/api/components/search?qualifiers=TRK&ps=500";
+    private static final String URL_RESOURCES_AUTHENTICATED = "/api/projects/search?ps=500";
     private static final String URL_RESOURCE_DETAILS = "/api/measures/component?format=json&componentId=%s&metricKeys=%s&includealerts=true";
     private static final String URL_PROJECT_ANALYSES = "/api/project_analyses/search?project=%s";
     private static final String SONAR_URL = "http://sonar.com";
@@ -58,17 +68,31 @@ public class DefaultSonar6ClientTest {
     public void getProjects() throws Exception {
         String projectJson = getJson("sonar6projects.json");
         String projectsUrl = SONAR_URL + URL_RESOURCES;
-        defaultSonar6Client.setServerCredentials("username", "password", "token");
+        SonarClient sonarClient = defaultSonar6Client.withServerCredentials("username", "password", "token");
         doReturn(new ResponseEntity<>(projectJson, HttpStatus.OK)).when(rest).exchange(eq(projectsUrl), eq(HttpMethod.GET), any(HttpEntity.class), eq(String.class));
-        List<SonarProject> projects = defaultSonar6Client.getProjects(SONAR_URL);
+        List<SonarProject> projects = sonarClient.getProjects(SONAR_URL);
         assertEquals(projects.size(), 2);
         
         assertThat(projects.get(0).getProjectName()).isEqualTo("com.capitalone.test:TestProject");
         assertThat(projects.get(1).getProjectName()).isEqualTo("com.capitalone.test:AnotherTestProject");
+        assertThat(projects.get(0).getProjectKey()).isNotNull();
         assertThat(projects.get(0).getProjectId()).isEqualTo("AVu3b-MAphY78UZXuYHp");
         assertThat(projects.get(1).getProjectId()).isEqualTo("BVx3b-MAphY78UZXuYHp");
     }
 
+    @Test
+    public void withServerCredentialsLeavesSharedClientUntouched() throws Exception {
+        String projectJson = getJson("sonar6projects.json");
+        doReturn(new ResponseEntity<>(projectJson, HttpStatus.OK)).when(rest).exchange(eq(SONAR_URL + URL_RESOURCES_AUTHENTICATED), eq(HttpMethod.GET), any(HttpEntity.class), eq(String.class));
+        doReturn(new ResponseEntity<>(projectJson, HttpStatus.OK)).when(rest).exchange(eq(SONAR_URL + URL_RESOURCES), eq(HttpMethod.GET), isNull(), eq(String.class));
+
+        SonarClient tokenClient = defaultSonar6Client.withServerCredentials(null, null, "token");
+
+        assertThat(tokenClient).isNotSameAs(defaultSonar6Client);
+        assertEquals(2, tokenClient.getProjects(SONAR_URL).size());
+        assertEquals(2, defaultSonar6Client.getProjects(SONAR_URL).size());
+    }
+
     @Test
     public void getProjects500() throws Exception {
         String projectJson500 = getJson("sonar6projects500.json");
@@ -81,7 +105,7 @@ public class DefaultSonar6ClientTest {
         String projectsUrl3 = SONAR_URL + URL_RESOURCES+"&p=3";
         String projectsUrl4 = SONAR_URL + URL_RESOURCES+"&p=4";
         
-        defaultSonar6Client.setServerCredentials("username", "password", "token");
+        SonarClient sonarClient = defaultSonar6Client.withServerCredentials("username", "password", "token");
         
         doReturn(new ResponseEntity<>(projectJson500, HttpStatus.OK)).when(rest).exchange(eq(projectsUrl), eq(HttpMethod.GET), any(HttpEntity.class), eq(String.class));
         doReturn(new ResponseEntity<>(projectJson500, HttpStatus.OK)).when(rest).exchange(eq(projectsUrl1), eq(HttpMethod.GET), any(HttpEntity.class), eq(String.class));
@@ -89,23 +113,101 @@ public class DefaultSonar6ClientTest {
         doReturn(new ResponseEntity<>(projectJson1500, HttpStatus.OK)).when(rest).exchange(eq(projectsUrl3), eq(HttpMethod.GET), any(HttpEntity.class), eq(String.class));
         doReturn(new ResponseEntity<>(projectJson2000, HttpStatus.OK)).when(rest).exchange(eq(projectsUrl4), eq(HttpMethod.GET), any(HttpEntity.class), eq(String.class));
 
-        List<SonarProject> projects = defaultSonar6Client.getProjects(SONAR_URL);
+        List<SonarProject> projects = sonarClient.getProjects(SONAR_URL);
         assertEquals(projects.size(), 2000);
     }
 
+    @Test
+    public void forEachProjectPageHandsOverEveryPage() throws Exception {
+        String projectsUrl = SONAR_URL + URL_RESOURCES;
+        doReturn(new ResponseEntity<>(getJson("sonar6projects500.json"), HttpStatus.OK)).when(rest).exchange(eq(projectsUrl), eq(HttpMethod.GET), any(HttpEntity.class), eq(String.class));
+        doReturn(new ResponseEntity<>(getJson("sonar6projects500.json"), HttpStatus.OK)).when(rest).exchange(eq(projectsUrl + "&p=1"), eq(HttpMethod.GET), any(HttpEntity.class), eq(String.class));
+        doReturn(new ResponseEntity<>(getJson("sonar6projects1000.json"), HttpStatus.OK)).when(rest).exchange(eq(projectsUrl + "&p=2"), eq(HttpMethod.GET), any(HttpEntity.class), eq(String.class));
+        doReturn(new ResponseEntity<>(getJson("sonar6projects1500.json"), HttpStatus.OK)).when(rest).exchange(eq(projectsUrl + "&p=3"), eq(HttpMethod.GET), any(HttpEntity.class), eq(String.class));
+        doReturn(new ResponseEntity<>(getJson("sonar6projects2000.json"), HttpStatus.OK)).when(rest).exchange(eq(projectsUrl + "&p=4"), eq(HttpMethod.GET), any(HttpEntity.class), eq(String.class));
+        List<Integer> pageSizes = new ArrayList<>();
+
+        defaultSonar6Client.withServerCredentials("username", "password", "token")
+                .forEachProjectPage(SONAR_URL, page -> pageSizes.add(page.size()));
+
+        assertThat(pageSizes).containsExactly(500, 500, 500, 500);
+    }
+
+    @Test
+    public void forEachProjectPageFetchesPagesInParallelInOrder() throws Exception {
+        settings.setPageFetchThreads(3);
+        DefaultSonar6Client parallelClient = new DefaultSonar6Client(new RestClient(restOperationsSupplier), settings);
+        String projectsUrl = SONAR_URL + URL_RESOURCES;
+        doReturn(new ResponseEntity<>(projectPage(0), HttpStatus.OK)).when(rest).exchange(eq(projectsUrl), eq(HttpMethod.GET), isNull(), eq(String.class));
+        doAnswer(invocation -> {
+            // the first page arrives last
+            Thread.sleep(300);
+            return new ResponseEntity<>(projectPage(1), HttpStatus.OK);
+        }).when(rest).exchange(eq(projectsUrl + "&p=1"), eq(HttpMethod.GET), isNull(), eq(String.class));
+        for (int page = 2; page <= 4; page++) {
+            doReturn(new ResponseEntity<>(projectPage(page), HttpStatus.OK)).when(rest).exchange(eq(projectsUrl + "&p=" + page), eq(HttpMethod.GET), isNull(), eq(String.class));
+        }
+
+        List<SonarProject> projects = parallelClient.getProjects(SONAR_URL);
+
+        assertThat(projects).extracting(SonarProject::getProjectName).containsExactly("page1", "page2", "page3", "page4");
+    }
+
+    @Test
+    public void forEachProjectPageKeepsUnauthenticatedPageCap() throws Exception {
+        settings.setPageFetchThreads(4);
+        DefaultSonar6Client parallelClient = new DefaultSonar6Client(new RestClient(restOperationsSupplier), settings);
+        String projectsUrl = SONAR_URL + URL_RESOURCES;
+        String page = projectPage(1).replace("\"total\":2000", "\"total\":15000");
+        doReturn(new ResponseEntity<>(page, HttpStatus.OK)).when(rest).exchange(startsWith(projectsUrl), eq(HttpMethod.GET), isNull(), eq(String.class));
+
+        assertThat(parallelClient.getProjects(SONAR_URL)).hasSize(20);
+    }
+
+    @Test
+    public void forEachProjectPageListsCatalogueBeyondSearchCeilingFromDatabase() throws Exception {
+        settings.setPageFetchThreads(4);
+        settings.setPartitionedDiscovery(true);
+        SonarClient partitioningClient = new DefaultSonar6Client(new RestClient(restOperationsSupplier), settings)
+                .withServerCredentials("username", "password", null);
+        String page = projectPage(1).replace("\"total\":2000", "\"total\":12001");
+        doReturn(new ResponseEntity<>(page, HttpStatus.OK)).when(rest).exchange(eq(SONAR_URL + URL_RESOURCES), eq(HttpMethod.GET), any(HttpEntity.class), eq(String.class));
+        doReturn(new ResponseEntity<>(page, HttpStatus.OK)).when(rest).exchange(startsWith(SONAR_URL + URL_RESOURCES_AUTHENTICATED), eq(HttpMethod.GET), any(HttpEntity.class), eq(String.class));
+
+        // 25 pages of the database backed search, past the 20 pages of the search index
+        assertThat(partitioningClient.getProjects(SONAR_URL)).hasSize(25);
+    }
+
+    @Test
+    public void forEachProjectPageFailsListingBeyondSearchCeilingWhenPageFails() throws Exception {
+        settings.setPartitionedDiscovery(true);
+        SonarClient partitioningClient = new DefaultSonar6Client(new RestClient(restOperationsSupplier), settings)
+                .withServerCredentials("username", "password", null);
+        String page = projectPage(1).replace("\"total\":2000", "\"total\":12001");
+        doReturn(new ResponseEntity<>(page, HttpStatus.OK)).when(rest).exchange(startsWith(SONAR_URL), eq(HttpMethod.GET), any(HttpEntity.class), eq(String.class));
+        doThrow(new RestClientException("timeout")).when(rest).exchange(eq(SONAR_URL + URL_RESOURCES_AUTHENTICATED + "&p=7"), eq(HttpMethod.GET), any(HttpEntity.class), eq(String.class));
+
+        assertThatThrownBy(() -> partitioningClient.getProjects(SONAR_URL)).isInstanceOf(IllegalStateException.class);
+    }
+
+    private static String projectPage(int page) {
+        return "{\"paging\":{\"pageIndex\":" + page + ",\"pageSize\":500,\"total\":2000},"
+                + "\"components\":[{\"id\":\"" + page + "\",\"key\":\"page" + page + "\",\"name\":\"page" + page + "\"}]}";
+    }
+
     @Test
     public void currentCodeQuality() throws Exception {
         String measureJson = getJson("sonar6measures.json");
         String analysesJson = getJson("sonar6analyses.json");
         SonarProject project = getProject();
         String measureUrl = String.format(SONAR_URL + URL_RESOURCE_DETAILS,project.getProjectId(),METRICS);
-        String analysesUrl = String.format(SONAR_URL + URL_PROJECT_ANALYSES,project.getProjectName());
+        String analysesUrl = String.format(SONAR_URL + URL_PROJECT_ANALYSES, DefaultSonar6Client.encode(project.getProjectName()));
         
-        defaultSonar6Client.setServerCredentials("username", "password", "token");
+        SonarClient sonarClient = defaultSonar6Client.withServerCredentials("username", "password", "token");
        
         doReturn(new ResponseEntity<>(measureJson, HttpStatus.OK)).when(rest).exchange(eq(measureUrl), eq(HttpMethod.GET), any(HttpEntity.class), eq(String.class));
         doReturn(new ResponseEntity<>(analysesJson, HttpStatus.OK)).when(rest).exchange(eq(analysesUrl), eq(HttpMethod.GET), any(HttpEntity.class), eq(String.class));
-        CodeQuality quality = defaultSonar6Client.currentCodeQuality(getProject());
+        CodeQuality quality = sonarClient.currentCodeQuality(getProject());
         assertEquals(quality.getMetrics().size(), 15);
         
         assertThat(quality.getType().name()).isEqualTo(CodeQualityType.StaticAnalysis.name());
@@ -114,21 +216,45 @@ public class DefaultSonar6ClientTest {
     }
 
 
+    @Test
+    public void currentCodeQualitiesLooksProjectsUpByEncodedKey() throws Exception {
+        String analysesJson = getJson("sonar6analyses.json");
+        SonarProject project = getProject();
+        project.setProjectName("Test Project");
+        project.setProjectKey("com.capitalone.test:TestProject");
+        SonarProject withoutKey = getProject();
+        withoutKey.setProjectName("Stored Before Keys");
+        String measuresJson = "{\"measures\":[{\"metric\":\"ncloc\",\"value\":\"5\",\"component\":\"com.capitalone.test:TestProject\"}]}";
+        String measuresUrl = String.format(SONAR_URL + DefaultSonar6Client.URL_MEASURES_SEARCH, "com.capitalone.test%3ATestProject", METRICS);
+        String analysesUrl = String.format(SONAR_URL + URL_PROJECT_ANALYSES, "com.capitalone.test%3ATestProject");
+        String analysisDatesUrl = String.format(SONAR_URL + DefaultSonar6Client.URL_ANALYSIS_DATES, "com.capitalone.test%3ATestProject");
+        SonarClient sonarClient = defaultSonar6Client.withServerCredentials("username", "password", null);
+        doReturn(new ResponseEntity<>("{\"components\":[]}", HttpStatus.OK)).when(rest).exchange(eq(analysisDatesUrl), eq(HttpMethod.GET), any(HttpEntity.class), eq(String.class));
+        doReturn(new ResponseEntity<>(measuresJson, HttpStatus.OK)).when(rest).exchange(eq(measuresUrl), eq(HttpMethod.GET), any(HttpEntity.class), eq(String.class));
+        doReturn(new ResponseEntity<>(analysesJson, HttpStatus.OK)).when(rest).exchange(eq(analysesUrl), eq(HttpMethod.GET), any(HttpEntity.class), eq(String.class));
+
+        Map<String, CodeQuality> qualities = sonarClient.currentCodeQualities(Arrays.asList(project, withoutKey));
+
+        assertThat(qualities).containsOnlyKeys(project.getProjectId());
+        assertThat(qualities.get(project.getProjectId()).getName()).isEqualTo("Test Project");
+        assertThat(qualities.get(project.getProjectId()).getVersion()).isEqualTo("2.0.0");
+    }
+
     @Test
     public void currentCodeQualityForNullProjectData() throws Exception {
         String measureJson = getJson("sonar6measures.json");
         String analysesJson = getJson("sonar6analysesNull.json");
         SonarProject project = getProject();
         String measureUrl = String.format(SONAR_URL + URL_RESOURCE_DETAILS,project.getProjectId(),METRICS);
-        String analysesUrl = String.format(SONAR_URL + URL_PROJECT_ANALYSES,project.getProjectName());
+        String analysesUrl = String.format(SONAR_URL + URL_PROJECT_ANALYSES, DefaultSonar6Client.encode(project.getProjectName()));
         
-        defaultSonar6Client.setServerCredentials("username", "password", "token");
+        SonarClient sonarClient = defaultSonar6Client.withServerCredentials("username", "password", "token");
         doReturn(new ResponseEntity<>(measureJson, HttpStatus.OK)).when(rest).exchange(eq(measureUrl), eq(HttpMethod.GET), any(HttpEntity.class), eq(String.class));
         doReturn(new ResponseEntity<>(analysesJson, HttpStatus.OK)).when(rest).exchange(eq(analysesUrl), eq(HttpMethod.GET), any(HttpEntity.class), eq(String.class));
         
         //when(restClient.makeRestCallGet(anyString(),any(HttpHeaders.class))).thenReturn(new ResponseEntity<>(measureJson, HttpStatus.OK));
         
-        CodeQuality quality = defaultSonar6Client.currentCodeQuality(getProject());
+        CodeQuality quality = sonarClient.currentCodeQuality(getProject());
         assertEquals(quality.getMetrics().size(), 15);
         
         assertThat(quality.getType().name()).isEqualTo(CodeQualityType.StaticAnalysis.name());
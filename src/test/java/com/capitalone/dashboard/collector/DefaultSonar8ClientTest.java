@@ -5,6 +5,7 @@ import com.capitalone.dashboard.client.RestOperationsSupplier;
 import com.capitalone.dashboard.model.CodeQuality;
 import com.capitalone.dashboard.model.CodeQualityType;
 import com.capitalone.dashboard.model.SonarProject;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.apache.commons.io.IOUtils;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
@@ -22,15 +23,21 @@ import org.springframework.web.client.RestOperations;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
 import static com.capitalone.dashboard.collector.DefaultSonar6Client.URL_PROJECT_ANALYSES;
 import static com.capitalone.dashboard.collector.DefaultSonar6ClientTest.METRICS;
 import static com.capitalone.dashboard.collector.DefaultSonar8Client.URL_RESOURCE_DETAILS;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @ExtendWith(MockitoExtension.class)
@@ -62,9 +69,9 @@ public class DefaultSonar8ClientTest {
         qualityProfile.put("language", "java");
         String changeLogJson = getJson("sonar83changelog.json");
         String changelogUrl = String.format(SONAR_URL + DefaultSonar8Client.URL_QUALITY_PROFILE_CHANGES,"name","java");
-        defaultSonar8Client.setServerCredentials("username", "password", "token");
+        SonarClient sonarClient = defaultSonar8Client.withServerCredentials("username", "password", "token");
         doReturn(new ResponseEntity<>(changeLogJson, HttpStatus.OK)).when(rest).exchange(eq(changelogUrl), eq(HttpMethod.GET), any(HttpEntity.class), eq(String.class));
-        JSONArray events = defaultSonar8Client.getQualityProfileConfigurationChanges(SONAR_URL,qualityProfile);
+        JSONArray events = sonarClient.getQualityProfileConfigurationChanges(SONAR_URL,qualityProfile);
         assertEquals(events.size(), 3);
     }
 
@@ -72,14 +79,16 @@ public class DefaultSonar8ClientTest {
     public void getProjects() throws Exception {
         String projectJson = getJson("sonar8projects.json");
         String projectsUrl = SONAR_URL + URL_RESOURCES;
-        defaultSonar8Client.setServerCredentials("username", "password", "token");
+        SonarClient sonarClient = defaultSonar8Client.withServerCredentials("username", "password", "token");
         doReturn(new ResponseEntity<>(projectJson, HttpStatus.OK)).when(rest).exchange(eq(projectsUrl), eq(HttpMethod.GET), any(HttpEntity.class), eq(String.class));
-        List<SonarProject> projects = defaultSonar8Client.getProjects(SONAR_URL);
+        List<SonarProject> projects = sonarClient.getProjects(SONAR_URL);
         assertEquals(projects.size(), 2);
         assertEquals(projects.get(0).getProjectName(), "Project Name");
         assertEquals(projects.get(1).getProjectName(), "Project Name 2");
         assertEquals(projects.get(0).getProjectId(), "project-key");
         assertEquals(projects.get(1).getProjectId(), "project-key-2");
+        assertEquals(projects.get(0).getLastAnalysisDate(), 1592971777000L);
+        assertEquals(projects.get(1).getLastAnalysisDate(), 0L);
     }
 
     @Test
@@ -89,16 +98,96 @@ public class DefaultSonar8ClientTest {
         SonarProject project = getProject();
         String measureUrl = String.format(SONAR_URL + URL_RESOURCE_DETAILS,project.getProjectId(),METRICS);
         String analysesUrl = String.format(SONAR_URL + URL_PROJECT_ANALYSES,project.getProjectName());
-        defaultSonar8Client.setServerCredentials("username", "password", "token");
+        SonarClient sonarClient = defaultSonar8Client.withServerCredentials("username", "password", "token");
         doReturn(new ResponseEntity<>(measureJson, HttpStatus.OK)).when(rest).exchange(eq(measureUrl), eq(HttpMethod.GET), any(HttpEntity.class), eq(String.class));
         doReturn(new ResponseEntity<>(analysesJson, HttpStatus.OK)).when(rest).exchange(eq(analysesUrl), eq(HttpMethod.GET), any(HttpEntity.class), eq(String.class));
-        CodeQuality quality = defaultSonar8Client.currentCodeQuality(getProject());
+        CodeQuality quality = sonarClient.currentCodeQuality(getProject());
         assertEquals(quality.getMetrics().size(), 11);
         assertEquals(quality.getType(), CodeQualityType.StaticAnalysis);
         assertEquals(quality.getName(), "test");
         assertEquals(quality.getVersion(), "1.0");
     }
 
+    @Test
+    public void currentCodeQualities() throws Exception {
+        String measuresJson = getJson("sonar8measuressearch.json");
+        String analysesJson = getJson("sonar8analyses.json");
+        SonarProject test = getProject("test");
+        SonarProject test2 = getProject("test2");
+        SonarProject missing = getProject("missing");
+        long collected = SonarDateParser.parse("2020-06-24T04:09:37+0000");
+        test.setLastAnalysisTimestamp(collected);
+        test2.setLastAnalysisTimestamp(collected);
+        String analysisDatesJson = "{\"paging\":{\"pageIndex\":1,\"pageSize\":500,\"total\":2},\"components\":["
+                + "{\"key\":\"test\",\"lastAnalysisDate\":\"2020-06-24T04:09:37+0000\"},"
+                + "{\"key\":\"test2\",\"lastAnalysisDate\":\"2020-06-25T04:09:37+0000\"}]}";
+        String measuresUrl = String.format(SONAR_URL + DefaultSonar6Client.URL_MEASURES_SEARCH, "test,test2,missing", METRICS);
+        String analysisDatesUrl = String.format(SONAR_URL + DefaultSonar6Client.URL_ANALYSIS_DATES, "test,test2,missing");
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        SonarClient sonarClient = new DefaultSonar8Client(new RestClient(restOperationsSupplier), settings,
+                new SonarCollectorMetrics(meterRegistry)).withServerCredentials("username", "password", "token");
+        doReturn(new ResponseEntity<>(measuresJson, HttpStatus.OK)).when(rest).exchange(eq(measuresUrl), eq(HttpMethod.GET), any(HttpEntity.class), eq(String.class));
+        doReturn(new ResponseEntity<>(analysisDatesJson, HttpStatus.OK)).when(rest).exchange(eq(analysisDatesUrl), eq(HttpMethod.GET), any(HttpEntity.class), eq(String.class));
+        doReturn(new ResponseEntity<>(analysesJson, HttpStatus.OK)).when(rest).exchange(eq(String.format(SONAR_URL + URL_PROJECT_ANALYSES, "test2")), eq(HttpMethod.GET), any(HttpEntity.class), eq(String.class));
+
+        Map<String, CodeQuality> qualities = sonarClient.currentCodeQualities(Arrays.asList(test, test2, missing));
+
+        assertEquals(2, qualities.size());
+        assertEquals(2, qualities.get("test2").getMetrics().size());
+        assertEquals("test2", qualities.get("test2").getName());
+        assertEquals("1.0", qualities.get("test2").getVersion());
+        assertEquals(CodeQualityType.StaticAnalysis, qualities.get("test2").getType());
+        // the analysis of test is stored already, no document without a version is built for it
+        assertTrue(qualities.containsKey("test"));
+        assertNull(qualities.get("test"));
+        verify(rest, never()).exchange(eq(String.format(SONAR_URL + URL_PROJECT_ANALYSES, "test")), eq(HttpMethod.GET), any(HttpEntity.class), eq(String.class));
+        // one measures search, the analysis dates of the batch and the analyses of test2
+        assertEquals(1, meterRegistry.get("sonar.collector.phase").tags("phase", "measures", "instance", SONAR_URL).timer().count());
+        assertEquals(2, meterRegistry.get("sonar.collector.phase").tags("phase", "analyses", "instance", SONAR_URL).timer().count());
+    }
+
+    @Test
+    public void getProjectsByKeySearchesTheKeysAtOnce() {
+        String searchJson = "{\"paging\":{\"pageIndex\":1,\"pageSize\":500,\"total\":2},\"components\":["
+                + "{\"key\":\"test\",\"name\":\"Test\",\"lastAnalysisDate\":\"2020-06-24T04:09:37+0000\"},"
+                + "{\"key\":\"test2\",\"name\":\"Test 2\"}]}";
+        String searchUrl = String.format(SONAR_URL + DefaultSonar6Client.URL_PROJECTS_BY_KEY, "test,test2,missing");
+        SonarClient sonarClient = defaultSonar8Client.withServerCredentials("username", "password", "token");
+        doReturn(new ResponseEntity<>(searchJson, HttpStatus.OK)).when(rest).exchange(eq(searchUrl), eq(HttpMethod.GET), any(HttpEntity.class), eq(String.class));
+
+        Map<String, SonarProject> projects = sonarClient.getProjectsByKey(SONAR_URL, Arrays.asList("test", "test2", "missing"));
+
+        assertEquals(2, projects.size());
+        assertEquals("test", projects.get("test").getProjectId());
+        assertEquals("Test 2", projects.get("test2").getProjectName());
+        assertEquals(SonarDateParser.parse("2020-06-24T04:09:37+0000"), projects.get("test").getLastAnalysisDate());
+        verify(rest).exchange(any(String.class), eq(HttpMethod.GET), any(HttpEntity.class), eq(String.class));
+    }
+
+    @Test
+    public void getProjectsByKeyLooksEachKeyUpWithoutCredentials() {
+        String componentUrl = SONAR_URL + "/api/components/show?component=";
+        doReturn(new ResponseEntity<>("{\"component\":{\"key\":\"test\",\"name\":\"Test\"}}", HttpStatus.OK))
+                .when(rest).exchange(eq(componentUrl + "test"), eq(HttpMethod.GET), any(), eq(String.class));
+        doReturn(new ResponseEntity<>("{\"component\":{\"key\":\"test2\",\"name\":\"Test 2\"}}", HttpStatus.OK))
+                .when(rest).exchange(eq(componentUrl + "test2"), eq(HttpMethod.GET), any(), eq(String.class));
+
+        Map<String, SonarProject> projects = defaultSonar8Client.getProjectsByKey(SONAR_URL, Arrays.asList("test", "test2"));
+
+        assertEquals(2, projects.size());
+        assertEquals("Test 2", projects.get("test2").getProjectName());
+        verify(rest, never()).exchange(eq(String.format(SONAR_URL + DefaultSonar6Client.URL_PROJECTS_BY_KEY, "test,test2")),
+                eq(HttpMethod.GET), any(), eq(String.class));
+    }
+
+    private SonarProject getProject(String key) {
+        SonarProject project = new SonarProject();
+        project.setInstanceUrl(SONAR_URL);
+        project.setProjectName(key);
+        project.setProjectId(key);
+        return project;
+    }
+
     private SonarProject getProject() {
         SonarProject project = new SonarProject();
         project.setInstanceUrl(SONAR_URL);
@@ -0,0 +1,51 @@
+package com.capitalone.dashboard.collector;
+
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SonarAnalysisClaimsTest {
+    private final SonarAnalysisClaims claims = new SonarAnalysisClaims();
+    private final ObjectId project = new ObjectId();
+
+    @Test
+    public void handsAnAnalysisToOneOfTwoRefreshesRunningSideBySide() {
+        SonarAnalysisClaims.Refresh run = claims.begin();
+        SonarAnalysisClaims.Refresh poll = claims.begin();
+
+        assertThat(claims.claim(run, project, 200, 100L)).isTrue();
+        // the poll loaded its timestamps before the run stored the analysis
+        assertThat(claims.claim(poll, project, 200, 100L)).isFalse();
+        assertThat(claims.claim(poll, project, 300, 100L)).isTrue();
+        assertThat(claims.claim(run, project, 100, null)).isFalse();
+    }
+
+    @Test
+    public void releasesAnalysisThatCouldNotBeWritten() {
+        SonarAnalysisClaims.Refresh run = claims.begin();
+        SonarAnalysisClaims.Refresh poll = claims.begin();
+        claims.claim(run, project, 200, null);
+
+        claims.release(run, project);
+
+        assertThat(claims.claim(poll, project, 200, null)).isTrue();
+    }
+
+    @Test
+    public void keepsClaimsOfEndedRefreshWhileOneThatBeganBeforeItsEndRuns() {
+        SonarAnalysisClaims.Refresh run = claims.begin();
+        SonarAnalysisClaims.Refresh poll = claims.begin();
+        claims.claim(run, project, 200, null);
+        claims.end(run);
+
+        assertThat(claims.claim(poll, project, 200, null)).isFalse();
+        claims.end(poll);
+        assertThat(claims.size()).isZero();
+
+        // a refresh beginning now loads the stored analysis instead
+        SonarAnalysisClaims.Refresh next = claims.begin();
+        assertThat(claims.claim(next, project, 200, 200L)).isFalse();
+        assertThat(claims.claim(next, project, 300, 200L)).isTrue();
+    }
+}
@@ -6,14 +6,38 @@ import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestOperations;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
 
 import static org.hamcrest.Matchers.instanceOf;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.when;
 
 
 @ExtendWith(MockitoExtension.class)
 public class SonarClientSelectorTest {
 
+    private static final String SERVER1 = "http://sonar1.com";
+    private static final String SERVER2 = "http://sonar2.com";
+
     @InjectMocks
     private SonarClientSelector selector;
     @Mock
@@ -26,6 +50,10 @@ public class SonarClientSelectorTest {
     private DefaultSonar8Client defaultSonar8Client;
     @Mock
     private RestOperationsSupplier restOperationsSupplier;
+    @Mock
+    private RestOperations rest;
+    @Mock
+    private SonarSettings settings;
 
     @Test
     public void getSonarClient4() throws Exception {
@@ -41,7 +69,7 @@ public class SonarClientSelectorTest {
 
     @Test
     public void getSonarClientNull() throws Exception {
-        SonarClient sonarClient = selector.getSonarClient(null);
+        SonarClient sonarClient = selector.getSonarClient((SonarVersion) null);
         assertThat(sonarClient).isInstanceOf(DefaultSonarClient.class);
     }
 
@@ -63,4 +91,89 @@ public class SonarClientSelectorTest {
         assertThat(sonarClient).isInstanceOf(DefaultSonar8Client.class);
     }
 
+    @Test
+    public void openSessionBindsConfiguredCredentials() throws Exception {
+        when(restOperationsSupplier.get()).thenReturn(rest);
+        doReturn(new ResponseEntity<>("8.9.1.44547", HttpStatus.OK)).when(rest).exchange(eq(URI.create(SERVER2 + "/api/server/version")), eq(HttpMethod.GET), any(HttpEntity.class), eq(String.class));
+        when(settings.getServers()).thenReturn(Arrays.asList(SERVER1, SERVER2));
+        when(settings.getUsernames()).thenReturn(Collections.emptyList());
+        when(settings.getPasswords()).thenReturn(Collections.emptyList());
+        when(settings.getTokens()).thenReturn(Arrays.asList("token1", "token2"));
+        DefaultSonar8Client boundClient = mock(DefaultSonar8Client.class);
+        doReturn(boundClient).when(defaultSonar8Client).withServerCredentials(null, null, "token2");
+        SonarClientSelector sonarClientSelector = new SonarClientSelector(defaultSonar8Client, defaultSonar6Client,
+                defaultSonar56Client, defaultSonarClient, restOperationsSupplier, settings);
+
+        SonarServerSession session = sonarClientSelector.openSession(SERVER2);
+
+        assertThat(session.getInstanceUrl()).isEqualTo(SERVER2);
+        assertThat(session.getVersion()).isEqualTo(SonarVersion.parse("8.9.1.44547"));
+        assertThat(session.getClient()).isSameAs(boundClient);
+    }
+
+    @Test
+    public void openSessionReadsLatestCredentialsSnapshot() throws Exception {
+        when(restOperationsSupplier.get()).thenReturn(rest);
+        doReturn(new ResponseEntity<>("8.9.1.44547", HttpStatus.OK)).when(rest).exchange(eq(URI.create(SERVER2 + "/api/server/version")), eq(HttpMethod.GET), any(HttpEntity.class), eq(String.class));
+        DefaultSonar8Client boundClient = mock(DefaultSonar8Client.class);
+        doReturn(boundClient).when(defaultSonar8Client).withServerCredentials("bob", "l", null);
+        SonarClientSelector sonarClientSelector = new SonarClientSelector(defaultSonar8Client, defaultSonar6Client,
+                defaultSonar56Client, defaultSonarClient, restOperationsSupplier, settings);
+
+        sonarClientSelector.setCredentials(SonarServerCredentials.byServer(Arrays.asList(SERVER1, SERVER2),
+                Arrays.asList("alice", "bob"), Arrays.asList("k", "l"), Collections.emptyList()));
+
+        assertThat(sonarClientSelector.openSession(SERVER2).getClient()).isSameAs(boundClient);
+        assertThat(sonarClientSelector.getCredentials("http://unknown").getUsername()).isNull();
+        verify(settings, never()).getServers();
+        verify(settings, never()).getUsernames();
+    }
+
+    @Test
+    public void getSonarClientUsesFullVersion() throws Exception {
+        assertThat(selector.getSonarClient(SonarVersion.parse("5.6.7.22152"))).isInstanceOf(DefaultSonar56Client.class);
+        assertThat(selector.getSonarClient(SonarVersion.parse("6.2.1"))).isInstanceOf(DefaultSonarClient.class);
+        assertThat(selector.getSonarClient(SonarVersion.parse("6.7.7.38951"))).isInstanceOf(DefaultSonar6Client.class);
+        assertThat(selector.getSonarClient(SonarVersion.parse("10.1.0.73491"))).isInstanceOf(DefaultSonar8Client.class);
+    }
+
+    @Test
+    public void getSonarVersionIsCachedPerInstance() throws Exception {
+        when(restOperationsSupplier.get()).thenReturn(rest);
+        when(settings.getVersionCacheTtlSeconds()).thenReturn(3600L);
+        doReturn(new ResponseEntity<>("6.7.7.38951", HttpStatus.OK)).when(rest).exchange(eq(URI.create(SERVER1 + "/api/server/version")), eq(HttpMethod.GET), any(HttpEntity.class), eq(String.class));
+        SonarClientSelector sonarClientSelector = new SonarClientSelector(defaultSonar8Client, defaultSonar6Client,
+                defaultSonar56Client, defaultSonarClient, restOperationsSupplier, settings);
+
+        assertThat(sonarClientSelector.getSonarVersion(SERVER1).toString()).isEqualTo("6.7.7.38951");
+        assertThat(sonarClientSelector.getSonarVersion(SERVER1).toString()).isEqualTo("6.7.7.38951");
+
+        verify(rest, times(1)).exchange(any(URI.class), eq(HttpMethod.GET), any(HttpEntity.class), eq(String.class));
+    }
+
+    @Test
+    public void getSonarVersionKeepsLastKnownVersionOnFailure() throws Exception {
+        when(restOperationsSupplier.get()).thenReturn(rest);
+        doReturn(new ResponseEntity<>("6.7.7.38951", HttpStatus.OK))
+                .doThrow(new ResourceAccessException("connection reset"))
+                .when(rest).exchange(eq(URI.create(SERVER1 + "/api/server/version")), eq(HttpMethod.GET), any(HttpEntity.class), eq(String.class));
+        SonarClientSelector sonarClientSelector = new SonarClientSelector(defaultSonar8Client, defaultSonar6Client,
+                defaultSonar56Client, defaultSonarClient, restOperationsSupplier, settings);
+
+        sonarClientSelector.getSonarVersion(SERVER1);
+
+        assertThat(sonarClientSelector.getSonarVersion(SERVER1)).isEqualTo(SonarVersion.parse("6.7.7.38951"));
+    }
+
+    @Test
+    public void getSonarVersionFailsWithoutKnownVersion() throws Exception {
+        when(restOperationsSupplier.get()).thenReturn(rest);
+        doThrow(new ResourceAccessException("connection refused"))
+                .when(rest).exchange(eq(URI.create(SERVER1 + "/api/server/version")), eq(HttpMethod.GET), any(HttpEntity.class), eq(String.class));
+        SonarClientSelector sonarClientSelector = new SonarClientSelector(defaultSonar8Client, defaultSonar6Client,
+                defaultSonar56Client, defaultSonarClient, restOperationsSupplier, settings);
+
+        assertThrows(RestClientException.class, () -> sonarClientSelector.getSonarVersion(SERVER1));
+    }
+
 }
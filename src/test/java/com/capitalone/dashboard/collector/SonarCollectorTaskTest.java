@@ -1,13 +1,22 @@
 package com.capitalone.dashboard.collector;
 
+import com.capitalone.dashboard.model.CodeQuality;
+import com.capitalone.dashboard.model.CollectorType;
 import com.capitalone.dashboard.model.Component;
 import com.capitalone.dashboard.model.ConfigHistOperationType;
+import com.capitalone.dashboard.model.Configuration;
+import com.capitalone.dashboard.model.SonarCollectionRun;
 import com.capitalone.dashboard.model.SonarCollector;
-import com.capitalone.dashboard.repository.CodeQualityRepository;
+import com.capitalone.dashboard.model.SonarProject;
+import com.capitalone.dashboard.repository.CodeQualityTimestampRepository;
+import com.capitalone.dashboard.repository.SonarCollectionRunRepository;
 import com.capitalone.dashboard.repository.ComponentRepository;
+import com.capitalone.dashboard.repository.ConfigurationRepository;
 import com.capitalone.dashboard.repository.SonarCollectorRepository;
 import com.capitalone.dashboard.repository.SonarProfileRepostory;
 import com.capitalone.dashboard.repository.SonarProjectRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.commons.collections4.ListUtils;
 import org.bson.types.ObjectId;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
@@ -15,15 +24,39 @@ import org.json.simple.parser.ParseException;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.Mockito;
+import org.mockito.Spy;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.client.HttpClientErrorException;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.same;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.verifyZeroInteractions;
@@ -31,15 +64,23 @@ import static org.mockito.Mockito.when;
 
 @ExtendWith(MockitoExtension.class)
 public class SonarCollectorTaskTest {
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
 
     @InjectMocks private SonarCollectorTask task;
     @Mock private SonarCollectorRepository sonarCollectorRepository;
     @Mock private SonarProjectRepository sonarProjectRepository;
-    @Mock private CodeQualityRepository codeQualityRepository;
+    @Mock private CodeQualityTimestampRepository codeQualityTimestampRepository;
+    @Mock private SonarCollectionRunRepository collectionRunRepository;
+    @Mock private MongoOperations mongoOperations;
+    @Mock private BulkOperations projectWrites;
+    @Mock private BulkOperations codeQualityWrites;
     @Mock private SonarProfileRepostory sonarProfileRepostory;
+    @Spy private SonarCollectorMetrics metrics = new SonarCollectorMetrics(meterRegistry);
+    @Spy private SonarShardCoordinator shardCoordinator = new SonarShardCoordinator(new SonarSettings(), null);
 
     @Mock private SonarSettings sonarSettings;
     @Mock private ComponentRepository dbComponentRepository;
+    @Mock private ConfigurationRepository configurationRepository;
     @Mock private SonarClientSelector sonarClientSelector;
     @Mock private DefaultSonarClient defaultSonarClient;
     @Mock private DefaultSonar6Client defaultSonar6Client;
@@ -49,10 +90,10 @@ public class SonarCollectorTaskTest {
     private static final String SERVER2 = "server2";
     private static final String METRICS1 = "nloc";
     private static final String METRICS2 = "nloc,violations";
-    private static final Double VERSION43 = 4.3;
-    private static final Double VERSION54 = 5.4;
-    private static final Double VERSION63 = 6.3;
-    private static final Double VERSION83 = 8.3;
+    private static final SonarVersion VERSION43 = SonarVersion.parse("4.3");
+    private static final SonarVersion VERSION54 = SonarVersion.parse("5.4");
+    private static final SonarVersion VERSION63 = SonarVersion.parse("6.3");
+    private static final SonarVersion VERSION83 = SonarVersion.parse("8.3.1.34397");
     private static final String NICENAME1 = "niceName1";
     private static final String NICENAME2 = "niceName2";
     private static final String QUALITYPROFILE = "cs-default-donotmodify-89073";
@@ -67,6 +108,7 @@ public class SonarCollectorTaskTest {
     
     @BeforeEach
     public void setup() throws ParseException{
+        lenient().when(sonarClientSelector.getCredentials(any())).thenReturn(SonarServerCredentials.NONE);
     	qualityProfile.put("key", QUALITYPROFILE);
     	qualityProfile.put("name", "Default-DoNotModify");
     	qualityProfiles.add(qualityProfile);
@@ -103,38 +145,55 @@ public class SonarCollectorTaskTest {
     public void collectEmpty() throws Exception {
         //when(dbComponentRepository.findAll()).thenReturn(components());
         task.collect(new SonarCollector());
-        verifyNoInteractions(sonarClientSelector, codeQualityRepository);
+        verifyNoInteractions(sonarClientSelector, mongoOperations);
+    }
+
+    @Test
+    public void getCollectorSwapsInCredentialsOfConfiguredServers() {
+        Configuration config = Mockito.mock(Configuration.class);
+        Map<String, String> server = new HashMap<>();
+        server.put("url", SERVER2);
+        server.put("userName", "bob");
+        server.put("password", "l");
+        when(config.getInfo()).thenReturn(Collections.singleton(server));
+        when(configurationRepository.findByCollectorName("Sonar")).thenReturn(config);
+
+        SonarCollector collector = task.getCollector();
+
+        assertThat(collector.getSonarServers()).containsExactly(SERVER2);
+        ArgumentCaptor<Map<String, SonarServerCredentials>> credentials = ArgumentCaptor.forClass(Map.class);
+        verify(sonarClientSelector).setCredentials(credentials.capture());
+        assertThat(credentials.getValue()).containsOnlyKeys(SERVER2);
+        assertThat(credentials.getValue().get(SERVER2).getUsername()).isEqualTo("bob");
+        assertThat(credentials.getValue().get(SERVER2).getPassword()).isEqualTo("l");
     }
 
     @Test
     public void collectOneServer43() throws Exception {
 //    	when(dbComponentRepository.findAll()).thenReturn(components());
-        when(sonarClientSelector.getSonarVersion(SERVER1)).thenReturn(VERSION43);
 //        when(sonarSettings.getServers()).thenReturn(Arrays.asList(SERVER1));
-        when(sonarSettings.getUsernames()).thenReturn(Arrays.asList("bob"));
-        when(sonarSettings.getPasswords()).thenReturn(Arrays.asList("matrix"));
+        when(sonarClientSelector.getCredentials(SERVER1)).thenReturn(new SonarServerCredentials("bob", "matrix", null));
 
-        when(sonarClientSelector.getSonarClient(VERSION43)).thenReturn(defaultSonarClient);
+        when(sonarClientSelector.openSession(SERVER1, "bob", "matrix", null))
+                .thenReturn(new SonarServerSession(SERVER1, VERSION43, defaultSonarClient));
 
         task.collect(collectorWithOneServer());
 
-        verify(sonarClientSelector).getSonarClient(VERSION43);
+        verify(sonarClientSelector).openSession(SERVER1, "bob", "matrix", null);
     }
 
     @Test
     public void collectOneServer54() throws Exception {
 //        when(dbComponentRepository.findAll()).thenReturn(components());
-        when(sonarClientSelector.getSonarVersion(SERVER1)).thenReturn(VERSION54);
-
 //        when(sonarSettings.getServers()).thenReturn(Arrays.asList(SERVER1));
-        when(sonarSettings.getUsernames()).thenReturn(Arrays.asList("robert"));
-        when(sonarSettings.getPasswords()).thenReturn(Arrays.asList("k"));
+        when(sonarClientSelector.getCredentials(SERVER1)).thenReturn(new SonarServerCredentials("robert", "k", null));
 
-        when(sonarClientSelector.getSonarClient(VERSION54)).thenReturn(defaultSonar6Client);
+        when(sonarClientSelector.openSession(SERVER1, "robert", "k", null))
+                .thenReturn(new SonarServerSession(SERVER1, VERSION54, defaultSonar6Client));
 
         task.collect(collectorWithOneServer());
 
-        verify(sonarClientSelector).getSonarClient(VERSION54);
+        verify(sonarClientSelector).openSession(SERVER1, "robert", "k", null);
         verify(defaultSonar6Client).getQualityProfiles(SERVER1);
 //        verify(defaultSonar6Client).retrieveProfileAndProjectAssociation(SERVER1, qualityProfile);
 //        verify(defaultSonar6Client).getQualityProfileConfigurationChanges(SERVER1, qualityProfile);
@@ -143,19 +202,18 @@ public class SonarCollectorTaskTest {
     @Test
     public void collectOneServer63() throws Exception {
 //        when(dbComponentRepository.findAll()).thenReturn(components());
-        when(sonarClientSelector.getSonarVersion(SERVER1)).thenReturn(VERSION63);
 
 //        when(sonarSettings.getServers())
 //            .thenReturn(Arrays.asList(SERVER1))
 //            .thenReturn(Arrays.asList(SERVER1));
-        when(sonarSettings.getUsernames()).thenReturn(Arrays.asList("yes"));
-        when(sonarSettings.getPasswords()).thenReturn(Arrays.asList("4kkpt"));
+        when(sonarClientSelector.getCredentials(SERVER1)).thenReturn(new SonarServerCredentials("yes", "4kkpt", null));
 
-        when(sonarClientSelector.getSonarClient(VERSION63)).thenReturn(defaultSonar6Client);
+        when(sonarClientSelector.openSession(SERVER1, "yes", "4kkpt", null))
+                .thenReturn(new SonarServerSession(SERVER1, VERSION63, defaultSonar6Client));
 
         task.collect(collectorWithOneServer());
 
-        verify(sonarClientSelector).getSonarClient(VERSION63);
+        verify(sonarClientSelector).openSession(SERVER1, "yes", "4kkpt", null);
         verify(defaultSonar6Client).getQualityProfiles(SERVER1);
 //        verify(defaultSonar6Client).retrieveProfileAndProjectAssociation(SERVER1, qualityProfile);
 //        verify(defaultSonar6Client).getQualityProfileConfigurationChanges(SERVER1, qualityProfile);
@@ -164,19 +222,17 @@ public class SonarCollectorTaskTest {
     @Test
     public void collectOneServer83() throws Exception {
         //when(dbComponentRepository.findAll()).thenReturn(components());
-        when(sonarClientSelector.getSonarVersion(SERVER1)).thenReturn(VERSION83);
-
 //        when(sonarSettings.getServers())
 //                .thenReturn(Arrays.asList(SERVER1))
 //                .thenReturn(Arrays.asList(SERVER1));
-        when(sonarSettings.getUsernames()).thenReturn(Arrays.asList("yes"));
-        when(sonarSettings.getPasswords()).thenReturn(Arrays.asList("4kkpt"));
+        when(sonarClientSelector.getCredentials(SERVER1)).thenReturn(new SonarServerCredentials("yes", "4kkpt", null));
 
-        when(sonarClientSelector.getSonarClient(VERSION83)).thenReturn(defaultSonar8Client);
+        when(sonarClientSelector.openSession(SERVER1, "yes", "4kkpt", null))
+                .thenReturn(new SonarServerSession(SERVER1, VERSION83, defaultSonar8Client));
 
         task.collect(collectorWithOneServer());
 
-        verify(sonarClientSelector).getSonarClient(VERSION83);
+        verify(sonarClientSelector).openSession(SERVER1, "yes", "4kkpt", null);
         verify(defaultSonar8Client).getQualityProfiles(SERVER1);
         //verify(defaultSonar8Client).retrieveProfileAndProjectAssociation(SERVER1, qualityProfile83);
         //verify(defaultSonar8Client).getQualityProfileConfigurationChanges(SERVER1, qualityProfile83);
@@ -185,18 +241,18 @@ public class SonarCollectorTaskTest {
     @Test
     public void collectTwoServer43And54() throws Exception {
 //        when(dbComponentRepository.findAll()).thenReturn(components());
-        when(sonarClientSelector.getSonarVersion(SERVER1)).thenReturn(VERSION43);
-        when(sonarClientSelector.getSonarVersion(SERVER2)).thenReturn(VERSION54);
 //        when(sonarSettings.getServers()).thenReturn(Arrays.asList(SERVER1, SERVER2));
-        when(sonarSettings.getUsernames()).thenReturn(Arrays.asList("bob", "bob"));
-        when(sonarSettings.getPasswords()).thenReturn(Arrays.asList("k", "l"));
-        when(sonarClientSelector.getSonarClient(VERSION54)).thenReturn(defaultSonar6Client);
-        when(sonarClientSelector.getSonarClient(VERSION43)).thenReturn(defaultSonarClient);
+        when(sonarClientSelector.getCredentials(SERVER1)).thenReturn(new SonarServerCredentials("bob", "k", null));
+        when(sonarClientSelector.getCredentials(SERVER2)).thenReturn(new SonarServerCredentials("bob", "l", null));
+        when(sonarClientSelector.openSession(SERVER1, "bob", "k", null))
+                .thenReturn(new SonarServerSession(SERVER1, VERSION43, defaultSonarClient));
+        when(sonarClientSelector.openSession(SERVER2, "bob", "l", null))
+                .thenReturn(new SonarServerSession(SERVER2, VERSION54, defaultSonar6Client));
 
         task.collect(collectorWithOnTwoServers());
 
-        verify(sonarClientSelector).getSonarClient(VERSION43);
-        verify(sonarClientSelector).getSonarClient(VERSION54);
+        verify(sonarClientSelector).openSession(SERVER1, "bob", "k", null);
+        verify(sonarClientSelector).openSession(SERVER2, "bob", "l", null);
         
         verify(defaultSonar6Client).getQualityProfiles(SERVER2);
 //        verify(defaultSonar6Client).retrieveProfileAndProjectAssociation(SERVER2, qualityProfile);
@@ -204,6 +260,533 @@ public class SonarCollectorTaskTest {
         
     }
 
+    @Test
+    public void collectRefreshesProjectsInParallel() throws Exception {
+        when(sonarClientSelector.openSession(SERVER1, null, null, null))
+                .thenReturn(new SonarServerSession(SERVER1, VERSION83, defaultSonar8Client));
+        when(sonarSettings.getRefreshThreads()).thenReturn(4);
+
+        SonarProject updated = sonarProject("updated");
+        SonarProject removed = sonarProject("removed");
+        SonarProject broken = sonarProject("broken");
+        when(sonarProjectRepository.findEnabledProjects(any(), eq(SERVER1))).thenReturn(Arrays.asList(updated, removed, broken));
+        CodeQuality updatedQuality = new CodeQuality();
+        when(defaultSonar8Client.currentCodeQuality(updated)).thenReturn(updatedQuality);
+        stubBulkWrites();
+        when(defaultSonar8Client.currentCodeQuality(removed)).thenThrow(new HttpClientErrorException(HttpStatus.NOT_FOUND));
+        when(defaultSonar8Client.currentCodeQuality(broken)).thenThrow(new ParseException(ParseException.ERROR_UNEXPECTED_TOKEN));
+
+        task.collect(collectorWithOneServer());
+
+        verify(codeQualityWrites).insert(Collections.singletonList(updatedQuality));
+        verify(projectWrites).updateOne(any(Query.class), any(Update.class));
+        verify(sonarProjectRepository, never()).save(updated);
+        verify(sonarProjectRepository).save(removed);
+        verify(sonarProjectRepository).save(broken);
+        assertThat(removed.isEnabled()).isFalse();
+        assertThat(removed.getErrors().get(0).getErrorCode()).isEqualTo("404");
+        assertThat(broken.getErrors().get(0).getErrorCode()).isEqualTo("500");
+    }
+
+    @Test
+    public void collectFetchesMeasuresInBatches() throws Exception {
+        when(sonarClientSelector.openSession(SERVER1, null, null, null))
+                .thenReturn(new SonarServerSession(SERVER1, VERSION83, defaultSonar8Client));
+        when(sonarSettings.getMeasuresBatchSize()).thenReturn(100);
+
+        SonarProject batched = sonarProject("batched");
+        CodeQuality batchedQuality = new CodeQuality();
+        stubBulkWrites();
+        SonarProject single = sonarProject("single");
+        List<SonarProject> projects = Arrays.asList(batched, single);
+        when(sonarProjectRepository.findEnabledProjects(any(), eq(SERVER1))).thenReturn(projects);
+        when(defaultSonar8Client.currentCodeQualities(projects))
+                .thenReturn(Collections.singletonMap(batched.getProjectId(), batchedQuality));
+        when(defaultSonar8Client.currentCodeQuality(single)).thenThrow(new HttpClientErrorException(HttpStatus.NOT_FOUND));
+
+        task.collect(collectorWithOneServer());
+
+        verify(defaultSonar8Client, never()).currentCodeQuality(batched);
+        verify(codeQualityWrites).insert(Collections.singletonList(batchedQuality));
+        assertThat(single.isEnabled()).isFalse();
+        assertThat(meterRegistry.get("sonar.collector.projects").tags("outcome", "refreshed", "instance", SERVER1).counter().count()).isEqualTo(2);
+        assertThat(meterRegistry.get("sonar.collector.projects").tags("outcome", "updated", "instance", SERVER1).counter().count()).isEqualTo(1);
+        assertThat(meterRegistry.get("sonar.collector.projects").tags("outcome", "disabled", "instance", SERVER1).counter().count()).isEqualTo(1);
+        assertThat(meterRegistry.get("sonar.collector.phase").tags("instance", SERVER1).timers())
+                .extracting(timer -> timer.getId().getTag("phase"))
+                .contains("version", "discovery", "refresh", "write");
+        assertThat(meterRegistry.get("sonar.collector.phase").tags("phase", "refresh").timer().count()).isEqualTo(2);
+    }
+
+    @Test
+    public void collectLeavesProjectsOutWhoseBatchedAnalysisIsStored() throws Exception {
+        when(sonarClientSelector.openSession(SERVER1, null, null, null))
+                .thenReturn(new SonarServerSession(SERVER1, VERSION83, defaultSonar8Client));
+        when(sonarSettings.getMeasuresBatchSize()).thenReturn(100);
+
+        SonarProject unchanged = sonarProject("unchanged");
+        SonarProject batched = sonarProject("batched");
+        CodeQuality batchedQuality = new CodeQuality();
+        List<SonarProject> projects = Arrays.asList(unchanged, batched);
+        when(sonarProjectRepository.findEnabledProjects(any(), eq(SERVER1))).thenReturn(projects);
+        Map<String, CodeQuality> codeQualities = new HashMap<>();
+        codeQualities.put(unchanged.getProjectId(), null);
+        codeQualities.put(batched.getProjectId(), batchedQuality);
+        when(defaultSonar8Client.currentCodeQualities(projects)).thenReturn(codeQualities);
+        stubBulkWrites();
+
+        task.collect(collectorWithOneServer());
+
+        verify(defaultSonar8Client, never()).currentCodeQuality(unchanged);
+        verify(codeQualityWrites).insert(Collections.singletonList(batchedQuality));
+        verify(projectWrites).updateOne(any(Query.class), any(Update.class));
+    }
+
+    @Test
+    public void collectSkipsAnalysesAlreadyStored() throws Exception {
+        when(sonarClientSelector.openSession(SERVER1, null, null, null))
+                .thenReturn(new SonarServerSession(SERVER1, VERSION83, defaultSonar8Client));
+
+        SonarProject stored = sonarProject("stored");
+        SonarProject analysed = sonarProject("analysed");
+        when(sonarProjectRepository.findEnabledProjects(any(), eq(SERVER1))).thenReturn(Arrays.asList(stored, analysed));
+        Map<ObjectId, Long> latestTimestamps = new HashMap<>();
+        latestTimestamps.put(stored.getId(), 2000L);
+        latestTimestamps.put(analysed.getId(), 1000L);
+        when(codeQualityTimestampRepository.findLatestTimestamps(Arrays.asList(stored.getId(), analysed.getId())))
+                .thenReturn(latestTimestamps);
+        CodeQuality storedQuality = new CodeQuality();
+        storedQuality.setTimestamp(2000L);
+        CodeQuality analysedQuality = new CodeQuality();
+        analysedQuality.setTimestamp(2000L);
+        when(defaultSonar8Client.currentCodeQuality(stored)).thenReturn(storedQuality);
+        when(defaultSonar8Client.currentCodeQuality(analysed)).thenReturn(analysedQuality);
+        stubBulkWrites();
+
+        task.collect(collectorWithOneServer());
+
+        verify(codeQualityWrites).insert(Collections.singletonList(analysedQuality));
+        assertThat(analysedQuality.getCollectorItemId()).isEqualTo(analysed.getId());
+    }
+
+    @Test
+    public void refreshProjectsReportsTheOutcomeOfEachProject() throws Exception {
+        when(sonarClientSelector.openSession(SERVER1))
+                .thenReturn(new SonarServerSession(SERVER1, VERSION83, defaultSonar8Client));
+        SonarProject stored = sonarProject("stored");
+        SonarProject analysed = sonarProject("analysed");
+        SonarProject forbidden = sonarProject("forbidden");
+        SonarProject deleted = sonarProject("deleted");
+        when(codeQualityTimestampRepository.findLatestTimestamps(any()))
+                .thenReturn(Collections.singletonMap(stored.getId(), 2000L));
+        CodeQuality storedQuality = new CodeQuality();
+        storedQuality.setTimestamp(2000L);
+        CodeQuality analysedQuality = new CodeQuality();
+        analysedQuality.setTimestamp(2000L);
+        when(defaultSonar8Client.currentCodeQuality(stored)).thenReturn(storedQuality);
+        when(defaultSonar8Client.currentCodeQuality(analysed)).thenReturn(analysedQuality);
+        when(defaultSonar8Client.currentCodeQuality(forbidden)).thenThrow(new HttpClientErrorException(HttpStatus.FORBIDDEN));
+        when(defaultSonar8Client.currentCodeQuality(deleted)).thenThrow(new HttpClientErrorException(HttpStatus.NOT_FOUND));
+        stubBulkWrites();
+
+        Map<ObjectId, SonarRefreshTicket.Status> outcomes =
+                task.refreshProjects(SERVER1, Arrays.asList(stored, analysed, forbidden, deleted));
+
+        assertThat(outcomes).containsEntry(stored.getId(), SonarRefreshTicket.Status.REFRESHED)
+                .containsEntry(analysed.getId(), SonarRefreshTicket.Status.REFRESHED)
+                .containsEntry(forbidden.getId(), SonarRefreshTicket.Status.FAILED)
+                .containsEntry(deleted.getId(), SonarRefreshTicket.Status.NOT_FOUND);
+        // the analysis stored already is not stored again
+        verify(codeQualityWrites).insert(Collections.singletonList(analysedQuality));
+    }
+
+    @Test
+    public void collectIncrementalSkipsProjectsWithoutNewAnalysis() throws Exception {
+        when(sonarClientSelector.openSession(SERVER1, null, null, null))
+                .thenReturn(new SonarServerSession(SERVER1, VERSION83, defaultSonar8Client));
+        when(sonarSettings.isIncrementalCollection()).thenReturn(true);
+
+        SonarProject unchanged = sonarProject("unchanged");
+        unchanged.setLastAnalysisTimestamp(1000L);
+        SonarProject changed = sonarProject("changed");
+        changed.setLastAnalysisTimestamp(1000L);
+        SonarProject unlisted = sonarProject("unlisted");
+        stubProjectPages(defaultSonar8Client, Arrays.asList(listedProject("unchanged", 1000L), listedProject("changed", 2000L)),
+                Collections.singletonList(listedProject("unlisted", 0L)));
+        when(sonarProjectRepository.findEnabledProjects(any(), eq(SERVER1))).thenReturn(Arrays.asList(unchanged, changed, unlisted));
+        CodeQuality codeQuality = new CodeQuality();
+        codeQuality.setTimestamp(2000L);
+        when(defaultSonar8Client.currentCodeQuality(changed)).thenReturn(codeQuality);
+        stubBulkWrites();
+
+        task.collect(collectorWithOneServer());
+
+        verify(defaultSonar8Client, never()).currentCodeQuality(unchanged);
+        verify(defaultSonar8Client).currentCodeQuality(unlisted);
+        assertThat(changed.getLastAnalysisTimestamp()).isEqualTo(2000L);
+    }
+
+    @Test
+    public void collectIncrementalMatchesAnalysisDatesByProjectId() throws Exception {
+        when(sonarClientSelector.openSession(SERVER1, null, null, null))
+                .thenReturn(new SonarServerSession(SERVER1, VERSION83, defaultSonar8Client));
+        when(sonarSettings.isIncrementalCollection()).thenReturn(true);
+
+        // two projects of the server share a name
+        SonarProject unchanged = sonarProject("shared");
+        unchanged.setProjectId("unchanged-id");
+        unchanged.setLastAnalysisTimestamp(1000L);
+        SonarProject changed = sonarProject("shared");
+        changed.setProjectId("changed-id");
+        changed.setLastAnalysisTimestamp(1000L);
+        SonarProject listedUnchanged = listedProject("shared", 1000L);
+        listedUnchanged.setProjectId("unchanged-id");
+        SonarProject listedChanged = listedProject("shared", 2000L);
+        listedChanged.setProjectId("changed-id");
+        stubProjectPages(defaultSonar8Client, Arrays.asList(listedChanged, listedUnchanged));
+        when(sonarProjectRepository.findEnabledProjects(any(), eq(SERVER1))).thenReturn(Arrays.asList(unchanged, changed));
+        CodeQuality codeQuality = new CodeQuality();
+        codeQuality.setTimestamp(2000L);
+        when(defaultSonar8Client.currentCodeQuality(same(changed))).thenReturn(codeQuality);
+        stubBulkWrites();
+
+        task.collect(collectorWithOneServer());
+
+        verify(defaultSonar8Client).currentCodeQuality(same(changed));
+        verify(defaultSonar8Client, never()).currentCodeQuality(same(unchanged));
+    }
+
+    private SonarProject listedProject(String name, long lastAnalysisDate) {
+        SonarProject project = new SonarProject();
+        project.setInstanceUrl(SERVER1);
+        project.setProjectName(name);
+        project.setProjectId(name);
+        project.setLastAnalysisDate(lastAnalysisDate);
+        return project;
+    }
+
+    @Test
+    public void collectServersInParallelSumsProjectCounts() throws Exception {
+        when(sonarSettings.getServerThreads()).thenReturn(2);
+        when(sonarClientSelector.openSession(SERVER1, null, null, null))
+                .thenReturn(new SonarServerSession(SERVER1, VERSION83, defaultSonar8Client));
+        when(sonarClientSelector.openSession(SERVER2, null, null, null))
+                .thenReturn(new SonarServerSession(SERVER2, VERSION63, defaultSonar6Client));
+        when(sonarProjectRepository.findEnabledProjects(any(), eq(SERVER1))).thenReturn(Arrays.asList(sonarProject("a")));
+        when(sonarProjectRepository.findEnabledProjects(any(), eq(SERVER2))).thenReturn(Arrays.asList(sonarProject("b"), sonarProject("c")));
+
+        SonarCollector collector = collectorWithOnTwoServers();
+        task.collect(collector);
+
+        assertThat(collector.getLastExecutionRecordCount()).isEqualTo(3);
+        verify(defaultSonar8Client).getQualityProfiles(SERVER1);
+        verify(defaultSonar6Client).getQualityProfiles(SERVER2);
+    }
+
+    @Test
+    public void collectServersInParallelSkipsServerPastTimeout() throws Exception {
+        when(sonarSettings.getServerThreads()).thenReturn(2);
+        when(sonarSettings.getServerTimeoutSeconds()).thenReturn(1L);
+        when(sonarClientSelector.openSession(SERVER1, null, null, null))
+                .thenReturn(new SonarServerSession(SERVER1, VERSION83, defaultSonar8Client));
+        when(sonarClientSelector.openSession(SERVER2, null, null, null))
+                .thenReturn(new SonarServerSession(SERVER2, VERSION63, defaultSonar6Client));
+        doAnswer(invocation -> {
+            Thread.sleep(10000);
+            return null;
+        }).when(defaultSonar8Client).forEachProjectPage(eq(SERVER1), any());
+        when(sonarProjectRepository.findEnabledProjects(any(), eq(SERVER2))).thenReturn(Arrays.asList(sonarProject("b"), sonarProject("c")));
+
+        SonarCollector collector = collectorWithOnTwoServers();
+        task.collect(collector);
+
+        assertThat(collector.getLastExecutionRecordCount()).isEqualTo(2);
+        assertThat(collector.getLastExecutedSeconds()).isLessThan(10);
+    }
+
+    @Test
+    public void collectFlushesBulkWritesWhenBatchIsFull() throws Exception {
+        when(sonarClientSelector.openSession(SERVER1, null, null, null))
+                .thenReturn(new SonarServerSession(SERVER1, VERSION83, defaultSonar8Client));
+        when(sonarSettings.getWriteBatchSize()).thenReturn(2);
+        stubBulkWrites();
+
+        List<SonarProject> projects = Arrays.asList(sonarProject("a"), sonarProject("b"), sonarProject("c"));
+        when(sonarProjectRepository.findEnabledProjects(any(), eq(SERVER1))).thenReturn(projects);
+        for (SonarProject project : projects) {
+            when(defaultSonar8Client.currentCodeQuality(project)).thenReturn(new CodeQuality());
+        }
+
+        task.collect(collectorWithOneServer());
+
+        // one full batch of two, then the remainder when the server is done
+        verify(projectWrites, Mockito.times(3)).updateOne(any(Query.class), any(Update.class));
+        verify(projectWrites, Mockito.times(2)).execute();
+        verify(codeQualityWrites, Mockito.times(2)).execute();
+        verify(sonarProjectRepository, never()).save(any(SonarProject.class));
+    }
+
+    @Test
+    public void collectReconcilesLargeListingsInLinearTime() throws Exception {
+        when(sonarClientSelector.openSession(SERVER1, null, null, null))
+                .thenReturn(new SonarServerSession(SERVER1, VERSION83, defaultSonar8Client));
+        int projectCount = 100_000;
+        AtomicLong comparisons = new AtomicLong();
+        List<SonarProject> listed = new ArrayList<>(projectCount);
+        List<SonarProject> existing = new ArrayList<>(projectCount);
+        for (int i = 0; i < projectCount; i++) {
+            listed.add(new ComparedProject(listedProject("project" + i, 0L), comparisons));
+            // shifted by 1000: 1000 listed projects are new and 1000 stored ones are no longer listed
+            SonarProject stored = sonarProject("project" + (i + 1000));
+            if (i % 100 == 0) {
+                stored.setProjectId("renamed" + i);
+            }
+            existing.add(new ComparedProject(stored, comparisons));
+        }
+        stubProjectPages(defaultSonar8Client, ListUtils.partition(listed, 500).toArray(new List[0]));
+        when(sonarProjectRepository.findByCollectorIdIn(any())).thenReturn(existing);
+        when(sonarSettings.isDeleteStaleProjects()).thenReturn(true);
+
+        task.collect(collectorWithOneServer());
+
+        // listed projects are matched by hash lookups, a scan of the stored ones would compare them pairwise
+        assertThat(comparisons).hasValueLessThan(projectCount);
+        verify(sonarProjectRepository).findByCollectorIdIn(any());
+        verify(sonarProjectRepository, never()).findSonarProjectsByProjectName(any(), any(), any());
+        ArgumentCaptor<List<SonarProject>> saved = ArgumentCaptor.forClass(List.class);
+        verify(sonarProjectRepository, Mockito.atLeastOnce()).saveAll(saved.capture());
+        List<SonarProject> savedProjects = saved.getAllValues().stream().flatMap(List::stream).collect(Collectors.toList());
+        // new projects are stored disabled, updated ones keep their state
+        assertThat(savedProjects).filteredOn(project -> !project.isEnabled()).hasSize(1000);
+        assertThat(savedProjects).filteredOn(SonarProject::isEnabled).hasSize(990);
+        assertThat(meterRegistry.get("sonar.collector.projects").tags("outcome", "new", "instance", SERVER1).counter().count()).isEqualTo(1000);
+        assertThat(meterRegistry.get("sonar.collector.projects").tags("outcome", "stale", "instance", SERVER1).counter().count()).isEqualTo(1000);
+        // the stored projects shifted past the listing are deleted, in a single component lookup
+        ArgumentCaptor<List<SonarProject>> deleted = ArgumentCaptor.forClass(List.class);
+        verify(sonarProjectRepository).deleteAll(deleted.capture());
+        assertThat(deleted.getValue()).extracting(SonarProject::getProjectName)
+                .containsExactlyElementsOf(IntStream.range(projectCount, projectCount + 1000)
+                        .mapToObj(i -> "project" + i).collect(Collectors.toList()));
+        verify(dbComponentRepository).findByCollectorTypeAndItemIdIn(eq(CollectorType.CodeQuality), any());
+    }
+
+    @Test
+    public void collectMatchesProjectsRenamedInSonarById() throws Exception {
+        when(sonarClientSelector.openSession(SERVER1, null, null, null))
+                .thenReturn(new SonarServerSession(SERVER1, VERSION83, defaultSonar8Client));
+        SonarProject stored = sonarProject("before");
+        SonarProject renamed = listedProject("after", 0L);
+        renamed.setProjectId("before");
+        stubProjectPages(defaultSonar8Client, Collections.singletonList(renamed));
+        when(sonarProjectRepository.findByCollectorIdIn(any())).thenReturn(Collections.singletonList(stored));
+        when(sonarSettings.isDeleteStaleProjects()).thenReturn(true);
+
+        task.collect(collectorWithOneServer());
+
+        // the stored project takes the new name instead of being deleted for a new disabled one
+        verify(sonarProjectRepository).saveAll(Collections.singletonList(stored));
+        assertThat(stored.getProjectName()).isEqualTo("after");
+        assertThat(stored.isEnabled()).isTrue();
+        verify(sonarProjectRepository, never()).deleteAll(any());
+    }
+
+    @Test
+    public void collectShardedByInstanceSkipsInstancesOfOtherReplicas() throws Exception {
+        int server1Partition = Math.floorMod(SERVER1.hashCode(), 2);
+        doReturn(new SonarShardCoordinator.Assignment(2, true, Collections.singleton(server1Partition)))
+                .when(shardCoordinator).hold();
+        when(sonarClientSelector.openSession(SERVER1, null, null, null))
+                .thenReturn(new SonarServerSession(SERVER1, VERSION83, defaultSonar8Client));
+        when(sonarProjectRepository.findEnabledProjects(any(), eq(SERVER1))).thenReturn(Arrays.asList(sonarProject("a")));
+
+        SonarCollector collector = collectorWithOnTwoServers();
+        task.collect(collector);
+
+        assertThat(collector.getLastExecutionRecordCount()).isEqualTo(1);
+        verify(sonarClientSelector, never()).openSession(eq(SERVER2), any(), any(), any());
+        verify(defaultSonar8Client).getQualityProfiles(SERVER1);
+    }
+
+    @Test
+    public void collectShardedByProjectRefreshesOnlyOwnedProjects() throws Exception {
+        // the instance and one project belong to another replica, which lists the instance and imports its profiles
+        int otherPartition = Math.floorMod(SERVER1.hashCode(), 2);
+        SonarProject owned = sonarProject("owned");
+        while (partition(owned, 2) == otherPartition) {
+            owned.setId(new ObjectId());
+        }
+        SonarProject other = sonarProject("other");
+        while (partition(other, 2) != otherPartition) {
+            other.setId(new ObjectId());
+        }
+        doReturn(new SonarShardCoordinator.Assignment(2, false, Collections.singleton(1 - otherPartition)))
+                .when(shardCoordinator).hold();
+        when(sonarClientSelector.openSession(SERVER1, null, null, null))
+                .thenReturn(new SonarServerSession(SERVER1, VERSION83, defaultSonar8Client));
+        when(sonarProjectRepository.findEnabledProjects(any(), eq(SERVER1))).thenReturn(Arrays.asList(owned, other));
+        when(defaultSonar8Client.currentCodeQuality(owned)).thenReturn(new CodeQuality());
+        stubBulkWrites();
+
+        task.collect(collectorWithOneServer());
+
+        verify(defaultSonar8Client, never()).currentCodeQuality(other);
+        verify(defaultSonar8Client, never()).forEachProjectPage(eq(SERVER1), any());
+        verify(defaultSonar8Client, never()).getQualityProfiles(SERVER1);
+    }
+
+    @Test
+    public void collectStopsOnceShardLeasesExpireUnrenewed() throws Exception {
+        int server1Partition = Math.floorMod(SERVER1.hashCode(), 2);
+        SonarShardCoordinator.Assignment assignment = new SonarShardCoordinator.Assignment(2, true,
+                Collections.singleton(server1Partition));
+        doReturn(assignment).when(shardCoordinator).hold();
+        // mongo could not be reached to renew the leases while the projects were listed
+        doReturn(false).when(shardCoordinator).holds(assignment);
+        when(sonarClientSelector.openSession(SERVER1, null, null, null))
+                .thenReturn(new SonarServerSession(SERVER1, VERSION83, defaultSonar8Client));
+        when(sonarProjectRepository.findEnabledProjects(any(), eq(SERVER1))).thenReturn(Arrays.asList(sonarProject("a")));
+
+        task.collect(collectorWithOneServer());
+
+        verify(defaultSonar8Client, never()).currentCodeQuality(any());
+        verify(defaultSonar8Client, never()).getQualityProfiles(SERVER1);
+        verify(shardCoordinator).release(assignment);
+    }
+
+    @Test
+    public void collectResumesInterruptedRefresh() throws Exception {
+        when(sonarSettings.isResumeRuns()).thenReturn(true);
+        when(sonarSettings.getResumeWindowMinutes()).thenReturn(60L);
+        when(sonarClientSelector.openSession(SERVER1, null, null, null))
+                .thenReturn(new SonarServerSession(SERVER1, VERSION83, defaultSonar8Client));
+        SonarProject done = sonarProject("done");
+        SonarProject remaining = sonarProject("remaining");
+        SonarCollectionRun interrupted = new SonarCollectionRun(SERVER1, SERVER1, System.currentTimeMillis());
+        interrupted.setCursor(done.getId());
+        interrupted.setProcessedCount(1);
+        when(collectionRunRepository.findById(SERVER1)).thenReturn(Optional.of(interrupted));
+        when(sonarProjectRepository.findEnabledProjects(any(), eq(SERVER1))).thenReturn(Arrays.asList(remaining, done));
+        when(defaultSonar8Client.currentCodeQuality(remaining)).thenReturn(new CodeQuality());
+        stubBulkWrites();
+
+        task.collect(collectorWithOneServer());
+
+        verify(defaultSonar8Client, never()).currentCodeQuality(done);
+        ArgumentCaptor<SonarCollectionRun> saved = ArgumentCaptor.forClass(SonarCollectionRun.class);
+        verify(collectionRunRepository, Mockito.atLeast(2)).save(saved.capture());
+        List<SonarCollectionRun> runs = saved.getAllValues();
+        // the last checkpoint is saved with the final flush, then the run is completed
+        assertThat(runs.get(runs.size() - 2).getCursor()).isEqualTo(remaining.getId());
+        assertThat(runs.get(runs.size() - 2).getProcessedCount()).isEqualTo(2);
+        assertThat(runs.get(runs.size() - 1).isCompleted()).isTrue();
+    }
+
+    @Test
+    public void collectResumesRunInterruptedWithoutNewAnalyses() throws Exception {
+        when(sonarSettings.isResumeRuns()).thenReturn(true);
+        when(sonarSettings.getResumeWindowMinutes()).thenReturn(60L);
+        when(sonarSettings.getMeasuresBatchSize()).thenReturn(1);
+        when(sonarClientSelector.openSession(SERVER1, null, null, null))
+                .thenReturn(new SonarServerSession(SERVER1, VERSION83, defaultSonar8Client));
+        SonarProject first = sonarProject("first");
+        SonarProject second = sonarProject("second");
+        // both analyses are stored already, the run queues no writes
+        CodeQuality stored = new CodeQuality();
+        stored.setTimestamp(1000L);
+        first.setLastAnalysisTimestamp(1000L);
+        second.setLastAnalysisTimestamp(1000L);
+        Map<ObjectId, Long> latestTimestamps = new HashMap<>();
+        latestTimestamps.put(first.getId(), 1000L);
+        latestTimestamps.put(second.getId(), 1000L);
+        when(codeQualityTimestampRepository.findLatestTimestamps(any())).thenReturn(latestTimestamps);
+        when(sonarProjectRepository.findEnabledProjects(any(), eq(SERVER1))).thenReturn(Arrays.asList(second, first));
+        List<SonarCollectionRun> saved = new ArrayList<>();
+        when(collectionRunRepository.save(any())).thenAnswer(invocation -> {
+            saved.add(invocation.getArgument(0));
+            return invocation.getArgument(0);
+        });
+        when(defaultSonar8Client.currentCodeQuality(first)).thenReturn(stored);
+        // the replica goes down while the second project is refreshed
+        List<SonarCollectionRun> savedBeforeInterruption = new ArrayList<>();
+        when(defaultSonar8Client.currentCodeQuality(second)).thenAnswer(invocation -> {
+            savedBeforeInterruption.addAll(saved);
+            return stored;
+        });
+        when(collectionRunRepository.findById(SERVER1)).thenReturn(Optional.empty());
+
+        task.collect(collectorWithOneServer());
+
+        SonarCollectionRun interrupted = savedBeforeInterruption.get(savedBeforeInterruption.size() - 1);
+        assertThat(interrupted.isCompleted()).isFalse();
+        assertThat(interrupted.getCursor()).isEqualTo(first.getId());
+        assertThat(interrupted.getProcessedCount()).isEqualTo(1);
+
+        when(collectionRunRepository.findById(SERVER1)).thenReturn(Optional.of(interrupted));
+        task.collect(collectorWithOneServer());
+
+        verify(defaultSonar8Client).currentCodeQuality(first);
+        verify(defaultSonar8Client, Mockito.times(2)).currentCodeQuality(second);
+        verifyNoInteractions(mongoOperations);
+    }
+
+    @Test
+    public void collectDoesNotCheckpointProjectsThatFailedToRefresh() throws Exception {
+        when(sonarSettings.isResumeRuns()).thenReturn(true);
+        when(sonarSettings.getResumeWindowMinutes()).thenReturn(60L);
+        when(sonarSettings.getMeasuresBatchSize()).thenReturn(1);
+        when(sonarClientSelector.openSession(SERVER1, null, null, null))
+                .thenReturn(new SonarServerSession(SERVER1, VERSION83, defaultSonar8Client));
+        SonarProject refreshed = sonarProject("refreshed");
+        SonarProject forbidden = sonarProject("forbidden");
+        when(collectionRunRepository.findById(SERVER1)).thenReturn(Optional.empty());
+        when(sonarProjectRepository.findEnabledProjects(any(), eq(SERVER1))).thenReturn(Arrays.asList(refreshed, forbidden));
+        when(defaultSonar8Client.currentCodeQuality(refreshed)).thenReturn(new CodeQuality());
+        when(defaultSonar8Client.currentCodeQuality(forbidden)).thenThrow(new HttpClientErrorException(HttpStatus.FORBIDDEN));
+        stubBulkWrites();
+
+        task.collect(collectorWithOneServer());
+
+        ArgumentCaptor<SonarCollectionRun> saved = ArgumentCaptor.forClass(SonarCollectionRun.class);
+        verify(collectionRunRepository, Mockito.atLeast(2)).save(saved.capture());
+        List<SonarCollectionRun> runs = saved.getAllValues();
+        SonarCollectionRun checkpointed = runs.get(runs.size() - 2);
+        assertThat(checkpointed.getProcessedCount()).isEqualTo(1);
+        assertThat(checkpointed.getProcessed()).doesNotContain(forbidden.getId());
+        assertThat(checkpointed.getCursor()).isNotEqualTo(forbidden.getId());
+        // every project was attempted, the next run starts over and retries it
+        assertThat(runs.get(runs.size() - 1).isCompleted()).isTrue();
+    }
+
+    private static int partition(SonarProject project, int shardCount) {
+        return Math.floorMod(project.getId().toHexString().hashCode(), shardCount);
+    }
+
+    @SafeVarargs
+    private final void stubProjectPages(SonarClient client, List<SonarProject>... pages) {
+        doAnswer(invocation -> {
+            Consumer<List<SonarProject>> pageConsumer = invocation.getArgument(1);
+            for (List<SonarProject> page : pages) {
+                pageConsumer.accept(page);
+            }
+            return null;
+        }).when(client).forEachProjectPage(eq(SERVER1), any());
+    }
+
+    private void stubBulkWrites() {
+        when(mongoOperations.bulkOps(BulkOperations.BulkMode.UNORDERED, SonarProject.class)).thenReturn(projectWrites);
+        when(mongoOperations.bulkOps(BulkOperations.BulkMode.UNORDERED, CodeQuality.class)).thenReturn(codeQualityWrites);
+    }
+
+    private SonarProject sonarProject(String name) {
+        SonarProject project = new SonarProject();
+        project.setId(new ObjectId());
+        project.setInstanceUrl(SERVER1);
+        project.setProjectName(name);
+        project.setProjectId(name);
+        project.setEnabled(true);
+        return project;
+    }
+
     private ArrayList<com.capitalone.dashboard.model.Component> components() {
         ArrayList<com.capitalone.dashboard.model.Component> cArray = new ArrayList<>();
         com.capitalone.dashboard.model.Component c = new Component();
@@ -222,4 +805,31 @@ public class SonarCollectorTaskTest {
         return SonarCollector.prototype(Arrays.asList(SERVER1, SERVER2), Arrays.asList(NICENAME1,NICENAME2));
     }
 
+    /**
+     * Counts the comparisons made between projects.
+     */
+    private static final class ComparedProject extends SonarProject {
+        private final AtomicLong comparisons;
+
+        private ComparedProject(SonarProject project, AtomicLong comparisons) {
+            this.comparisons = comparisons;
+            setId(project.getId());
+            setInstanceUrl(project.getInstanceUrl());
+            setProjectName(project.getProjectName());
+            setProjectId(project.getProjectId());
+            setLastAnalysisDate(project.getLastAnalysisDate());
+            setEnabled(project.isEnabled());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            comparisons.incrementAndGet();
+            return super.equals(o);
+        }
+
+        @Override
+        public int hashCode() {
+            return super.hashCode();
+        }
+    }
 }
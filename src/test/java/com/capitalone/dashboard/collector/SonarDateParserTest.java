@@ -0,0 +1,64 @@
+package com.capitalone.dashboard.collector;
+
+import org.joda.time.format.DateTimeFormat;
+import org.junit.jupiter.api.Test;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Checks the parser against the {@code SimpleDateFormat} and Joda parsing it replaces, on generated dates.
+ */
+public class SonarDateParserTest {
+    private static final int SAMPLES = 20000;
+
+    @Test
+    public void parseMatchesSimpleDateFormatAndJoda() throws ParseException {
+        Random random = new Random(19);
+        for (int i = 0; i < SAMPLES; i++) {
+            String date = date(random);
+            long expected = new SimpleDateFormat(SonarDateParser.DATE_FORMAT).parse(date).getTime();
+
+            assertThat(SonarDateParser.parse(date)).as(date).isEqualTo(expected);
+            assertThat(DateTimeFormat.forPattern(SonarDateParser.DATE_FORMAT).parseDateTime(date).getMillis())
+                    .as(date).isEqualTo(expected);
+        }
+    }
+
+    @Test
+    public void parsesOtherOffsetLayouts() {
+        assertThat(SonarDateParser.parse("2015-02-23T17:58:39+0100")).isEqualTo(1424710719000L);
+        assertThat(SonarDateParser.parse("2015-02-23T17:58:39+01:00")).isEqualTo(1424710719000L);
+        assertThat(SonarDateParser.parse("2015-02-23T16:58:39Z")).isEqualTo(1424710719000L);
+        assertThat(SonarDateParser.parse("2015-02-23T16:58:39.250+0000")).isEqualTo(1424710719250L);
+        assertThat(SonarDateParser.parse("1500-02-23T16:58:39+0000")).isEqualTo(-14827129281000L);
+    }
+
+    @Test
+    public void rejectsInvalidDates() {
+        for (String date : new String[]{"", "2015-02-23", "2015-02-23T17:58:39", "2015-02-29T17:58:39+0100",
+                "2015-13-23T17:58:39+0100", "2015-02-23T24:58:39+0100", "2015-02-23T17:58:39+0160",
+                "2015-02-23 17:58:39+0100", "2015-02-23T17:58:39 0100", "2O15-02-23T17:58:39+0100"}) {
+            assertThatThrownBy(() -> SonarDateParser.parse(date)).as(date).isInstanceOf(DateTimeParseException.class);
+        }
+    }
+
+    private static String date(Random random) {
+        int year = 1600 + random.nextInt(random.nextBoolean() ? 8400 : 500);
+        int month = 1 + random.nextInt(12);
+        int day = 1 + random.nextInt(month == 2 ? 28 + (isLeapYear(year) ? 1 : 0) : 30);
+        int offset = random.nextInt(18 * 60 + 1);
+        return String.format(Locale.ROOT, "%04d-%02d-%02dT%02d:%02d:%02d%s%02d%02d", year, month, day, random.nextInt(24),
+                random.nextInt(60), random.nextInt(60), random.nextBoolean() ? "+" : "-", offset / 60, offset % 60);
+    }
+
+    private static boolean isLeapYear(int year) {
+        return (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+    }
+}
@@ -0,0 +1,76 @@
+package com.capitalone.dashboard.collector;
+
+import org.apache.commons.io.IOUtils;
+import org.json.simple.parser.ParseException;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class SonarJsonReaderTest {
+
+    @Test
+    public void readPageReturnsTotalAndComponents() throws Exception {
+        List<SonarJsonReader.SonarComponent> components = new ArrayList<>();
+
+        long total = SonarJsonReader.readPage(getJson("sonar6projects.json"), "components", components::add);
+
+        assertThat(total).isEqualTo(2);
+        assertThat(components).hasSize(2);
+        assertThat(components.get(0).getId()).isEqualTo("AVu3b-MAphY78UZXuYHp");
+        assertThat(components.get(0).getKey()).isEqualTo("com.capitalone.test:TestProject");
+        assertThat(components.get(1).getName()).isEqualTo("com.capitalone.test:AnotherTestProject");
+    }
+
+    @Test
+    public void readPageSkipsComponentsWithoutConsumer() throws Exception {
+        assertThat(SonarJsonReader.readPage(getJson("sonar6projects1000.json"), "components", null)).isEqualTo(500);
+    }
+
+    @Test
+    public void readComponentSkipsMeasurePeriods() throws Exception {
+        SonarJsonReader.SonarComponent component = SonarJsonReader.readComponent(getJson("sonar6measures.json"), "component");
+
+        assertThat(component.getKey()).isEqualTo("com.capitalone.test:TestProject");
+        assertThat(component.getMeasures()).extracting(SonarJsonReader.SonarMeasure::getMetric).contains("test_errors", "coverage");
+        assertThat(component.getMeasures().get(1).getValue()).isEqualTo("26.4");
+    }
+
+    @Test
+    public void readLatestAnalysisTakesVersionEvent() throws Exception {
+        SonarJsonReader.SonarAnalysis analysis = SonarJsonReader.readLatestAnalysis(getJson("sonar6analyses.json"));
+
+        assertThat(analysis.getDate()).isNotNull();
+        assertThat(analysis.getVersion()).isEqualTo("2.0.0");
+    }
+
+    @Test
+    public void readArrayRendersNumbersLikeJsonSimple() throws Exception {
+        List<SonarJsonReader.SonarComponent> resources = new ArrayList<>();
+
+        SonarJsonReader.readArray("[{\"id\":7,\"name\":\"p\",\"msr\":[{\"key\":\"ncloc\",\"val\":1200.0,\"frmt_val\":\"1,200\"},"
+                + "{\"key\":\"tests\",\"val\":12,\"alert\":\"WARN\"}]}]", resources::add);
+
+        assertThat(resources.get(0).getId()).isEqualTo("7");
+        assertThat(resources.get(0).getMeasures().get(0).getValue()).isEqualTo("1200.0");
+        assertThat(resources.get(0).getMeasures().get(0).getFormattedValue()).isEqualTo("1,200");
+        assertThat(resources.get(0).getMeasures().get(1).getValue()).isEqualTo("12");
+        assertThat(resources.get(0).getMeasures().get(1).getAlert()).isEqualTo("WARN");
+    }
+
+    @Test
+    public void malformedBodyThrowsParseException() {
+        assertThrows(ParseException.class, () -> SonarJsonReader.readComponent("{\"component\": {", "component"));
+        assertThrows(ParseException.class, () -> SonarJsonReader.readMeasures("[]", "measures"));
+    }
+
+    private String getJson(String fileName) throws IOException {
+        InputStream inputStream = SonarJsonReaderTest.class.getResourceAsStream(fileName);
+        return IOUtils.toString(inputStream);
+    }
+}
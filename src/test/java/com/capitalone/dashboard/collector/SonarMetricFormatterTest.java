@@ -0,0 +1,157 @@
+package com.capitalone.dashboard.collector;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Locale;
+import java.util.Random;
+import java.util.function.Function;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Checks the formatter against the {@code String.format} based formatting it replaces, on generated values
+ * and in locales with other grouping separators and digits.
+ */
+public class SonarMetricFormatterTest {
+    private static final int SAMPLES = 20000;
+    private static final Locale[] LOCALES = {Locale.US, Locale.GERMANY, Locale.FRANCE, new Locale("de", "CH"),
+            new Locale("hi", "IN"), new Locale("ar", "SA"), Locale.forLanguageTag("th-TH-u-nu-thai")};
+    private final Locale defaultLocale = Locale.getDefault(Locale.Category.FORMAT);
+
+    @AfterEach
+    public void restoreLocale() {
+        Locale.setDefault(Locale.Category.FORMAT, defaultLocale);
+    }
+
+    @Test
+    public void formatValueMatchesStringFormat() {
+        for (Locale locale : LOCALES) {
+            Locale.setDefault(Locale.Category.FORMAT, locale);
+            Random random = new Random(locale.hashCode());
+            for (int i = 0; i < SAMPLES; i++) {
+                String value = value(random);
+                assertSameOutcome(value, SonarMetricFormatter::formatValue, SonarMetricFormatterTest::legacyFormatValue);
+            }
+        }
+    }
+
+    @Test
+    public void formatDurationMatchesStringFormat() {
+        Random random = new Random(8);
+        for (int i = 0; i < SAMPLES; i++) {
+            String duration = duration(random);
+            assertSameOutcome(duration, SonarMetricFormatter::formatDuration, SonarMetricFormatterTest::legacyFormatDuration);
+        }
+    }
+
+    @Test
+    public void formatsKnownValues() {
+        Locale.setDefault(Locale.Category.FORMAT, Locale.US);
+
+        assertThat(SonarMetricFormatter.formatValue("26518")).isEqualTo("26,518");
+        assertThat(SonarMetricFormatter.formatValue("26.4")).isEqualTo("26.4%");
+        assertThat(SonarMetricFormatter.formatValue("ERROR")).isEqualTo("ERROR");
+        assertThat(SonarMetricFormatter.formatValue(null)).isNull();
+        assertThat(SonarMetricFormatter.formatDuration("6225")).isEqualTo("12d");
+        assertThat(SonarMetricFormatter.formatDuration("-125")).isEqualTo("-2h 5min");
+    }
+
+    private static void assertSameOutcome(String input, Function<String, String> formatter, Function<String, String> legacy) {
+        String expected;
+        try {
+            expected = legacy.apply(input);
+        } catch (RuntimeException e) {
+            String actual = null;
+            try {
+                actual = formatter.apply(input);
+            } catch (RuntimeException thrown) {
+                assertThat(thrown).as("input %s", input).isInstanceOf(e.getClass());
+                return;
+            }
+            throw new AssertionError("Expected " + e.getClass().getSimpleName() + " for " + input + " but got " + actual);
+        }
+        assertThat(formatter.apply(input)).as("input %s in %s", input, Locale.getDefault(Locale.Category.FORMAT))
+                .isEqualTo(expected);
+    }
+
+    private static String value(Random random) {
+        switch (random.nextInt(9)) {
+            case 0: return digits(random, 1 + random.nextInt(9));
+            // beyond the int range and with leading zeros
+            case 1: return digits(random, 1 + random.nextInt(14));
+            case 2: return String.valueOf(random.nextInt(Integer.MAX_VALUE));
+            case 3: return random.nextInt(1000) / 10.0 + "";
+            case 4: return "-" + random.nextInt(100000);
+            case 5: return random.nextBoolean() ? ".5" : "1.";
+            case 6: return random.nextBoolean() ? "" : null;
+            // digits \d does not match
+            case 7: return random.nextBoolean() ? "١٢٣" : "1๑";
+            default: return random.nextBoolean() ? "OK" : "{\"level\":\"ERROR\"}";
+        }
+    }
+
+    private static String duration(Random random) {
+        switch (random.nextInt(6)) {
+            case 0: return String.valueOf(random.nextInt(10000) - 5000);
+            case 1: return String.valueOf(random.nextInt(2000000) - 1000000);
+            case 2: return String.valueOf(random.nextLong());
+            case 3: return String.valueOf(random.nextInt(4800));
+            case 4: return random.nextBoolean() ? String.valueOf(Long.MIN_VALUE) : "0";
+            default: return random.nextBoolean() ? "1.5" : null;
+        }
+    }
+
+    private static String digits(Random random, int length) {
+        StringBuilder digits = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            digits.append((char) ('0' + random.nextInt(10)));
+        }
+        return digits.toString();
+    }
+
+    // DefaultSonar6Client formatting before SonarMetricFormatter
+
+    private static String legacyFormatValue(String value) {
+        String valueSafe = value == null ? "" : value;
+        if (valueSafe.indexOf(".") > 0) {
+            return value + "%";
+        } else if (valueSafe.matches("\\d+")) {
+            return String.format("%,d", Integer.valueOf(value));
+        }
+        return value;
+    }
+
+    private static String legacyFormatDuration(String duration) {
+        Long durationInMinutes = Long.valueOf(duration);
+        if (durationInMinutes == 0) {
+            return "0";
+        }
+        boolean isNegative = durationInMinutes < 0;
+        Long absDuration = Math.abs(durationInMinutes);
+
+        int days = ((Double) ((double) absDuration / 8 / 60)).intValue();
+        Long remainingDuration = absDuration - (days * 8 * 60);
+        int hours = ((Double) (remainingDuration.doubleValue() / 60)).intValue();
+        remainingDuration = remainingDuration - (hours * 60);
+        int minutes = remainingDuration.intValue();
+
+        StringBuilder message = new StringBuilder();
+        if (days > 0) {
+            message.append(String.format("%sd", isNegative ? (-1 * days) : days));
+        }
+        if (hours > 0 && days < 10) {
+            if (message.length() > 0) {
+                message.append(" ");
+            }
+            message.append(String.format("%sh", isNegative && message.length() == 0 ? (-1 * hours) : hours));
+        }
+        if (minutes > 0 && hours < 10 && days == 0) {
+            if (message.length() > 0) {
+                message.append(" ");
+            }
+            message.append(String.format("%smin", isNegative && message.length() == 0 ? (-1 * minutes) : minutes));
+        }
+        return message.toString();
+    }
+}
@@ -0,0 +1,114 @@
+package com.capitalone.dashboard.collector;
+
+import com.capitalone.dashboard.model.SonarCollector;
+import com.capitalone.dashboard.model.SonarProject;
+import com.capitalone.dashboard.repository.CodeQualityTimestampRepository;
+import com.capitalone.dashboard.repository.SonarCollectorRepository;
+import com.capitalone.dashboard.repository.SonarProjectRepository;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+public class SonarPollingSchedulerTest {
+    private static final String SERVER1 = "http://sonar1";
+    private static final String SERVER2 = "http://sonar2";
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+    private static final long MIN = 15 * MINUTE;
+    private static final long MAX = 1440 * MINUTE;
+    private static final long NOW = 1_600_000_000_000L;
+
+    @Mock private SonarCollectorTask collectorTask;
+    @Mock private SonarCollectorRepository collectorRepository;
+    @Mock private SonarProjectRepository projectRepository;
+    @Mock private CodeQualityTimestampRepository timestampRepository;
+    private SonarPollingScheduler scheduler;
+
+    @BeforeEach
+    public void setUp() {
+        SonarSettings settings = new SonarSettings();
+        settings.setAdaptivePollingMinMinutes(15);
+        settings.setAdaptivePollingMaxMinutes(1440);
+        scheduler = new SonarPollingScheduler(settings, collectorTask, collectorRepository, projectRepository,
+                timestampRepository, new SonarShardCoordinator(new SonarSettings(), null));
+    }
+
+    @Test
+    public void pollIntervalFollowsAnalysisCadence() {
+        long[] hourly = {NOW - 10 * MINUTE, NOW - 70 * MINUTE, NOW - 130 * MINUTE, NOW - 190 * MINUTE};
+        long[] frequent = {NOW - MINUTE, NOW - 6 * MINUTE, NOW - 11 * MINUTE};
+        long[] dormant = {NOW - TimeUnit.DAYS.toMillis(20), NOW - TimeUnit.DAYS.toMillis(21)};
+
+        assertThat(SonarPollingScheduler.pollInterval(hourly, NOW, MIN, MAX)).isEqualTo(30 * MINUTE);
+        assertThat(SonarPollingScheduler.pollInterval(frequent, NOW, MIN, MAX)).isEqualTo(MIN);
+        assertThat(SonarPollingScheduler.pollInterval(dormant, NOW, MIN, MAX)).isEqualTo(MAX);
+        assertThat(SonarPollingScheduler.pollInterval(new long[0], NOW, MIN, MAX)).isEqualTo(MAX);
+        // a single recent analysis says nothing about the cadence yet
+        assertThat(SonarPollingScheduler.pollInterval(new long[]{NOW - MINUTE}, NOW, MIN, MAX)).isEqualTo(MAX / 2);
+    }
+
+    @Test
+    public void pollRefreshesDueProjectsPerInstanceAndReschedulesThem() {
+        SonarCollector collector = SonarCollector.prototype(Arrays.asList(SERVER1, SERVER2), Collections.emptyList());
+        collector.setId(new ObjectId());
+        SonarProject active = project(SERVER1);
+        SonarProject dormant = project(SERVER2);
+        when(collectorRepository.findByName("Sonar")).thenReturn(collector);
+        when(projectRepository.findEnabledProjects(collector.getId(), SERVER1)).thenReturn(Collections.singletonList(active));
+        when(projectRepository.findEnabledProjects(collector.getId(), SERVER2)).thenReturn(Collections.singletonList(dormant));
+        Map<ObjectId, long[]> history = new HashMap<>();
+        history.put(active.getId(), new long[]{NOW - 10 * MINUTE, NOW - 70 * MINUTE, NOW - 130 * MINUTE});
+        when(timestampRepository.findRecentTimestamps(any(), anyLong(), anyInt())).thenReturn(history);
+
+        assertThat(scheduler.poll(NOW)).isZero();
+        Map<ObjectId, Long> dueTimes = scheduler.dueTimes();
+        assertThat(dueTimes.get(active.getId())).isBetween(NOW + 15 * MINUTE, NOW + 30 * MINUTE);
+        assertThat(dueTimes.get(dormant.getId())).isBetween(NOW + MAX / 2, NOW + MAX);
+
+        long activeDue = dueTimes.get(active.getId());
+        when(projectRepository.findAllById(Collections.singletonList(active.getId())))
+                .thenReturn(Collections.singletonList(active));
+
+        assertThat(scheduler.poll(activeDue)).isEqualTo(1);
+
+        verify(collectorTask).refreshProjects(SERVER1, Collections.singletonList(active));
+        verify(collectorTask, never()).refreshProjects(eq(SERVER2), any());
+        assertThat(scheduler.dueTimes().get(active.getId())).isEqualTo(activeDue + 30 * MINUTE);
+    }
+
+    @Test
+    public void pollWaitsForCollectionRun() {
+        when(collectorTask.isCollecting()).thenReturn(true);
+
+        assertThat(scheduler.poll(NOW)).isZero();
+
+        verifyNoInteractions(collectorRepository, projectRepository, timestampRepository);
+    }
+
+    private static SonarProject project(String instanceUrl) {
+        SonarProject project = new SonarProject();
+        project.setId(new ObjectId());
+        project.setInstanceUrl(instanceUrl);
+        project.setEnabled(true);
+        return project;
+    }
+}
@@ -0,0 +1,174 @@
+package com.capitalone.dashboard.collector;
+
+import com.capitalone.dashboard.model.SonarProject;
+import com.capitalone.dashboard.repository.SonarProjectRepository;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.util.Collections;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+public class SonarRefreshQueueTest {
+    private static final String SERVER = "http://sonar";
+
+    @Mock private SonarCollectorTask collectorTask;
+    @Mock private SonarProjectRepository projectRepository;
+    private SonarRefreshQueue queue;
+
+    @BeforeEach
+    public void setUp() {
+        SonarSettings settings = new SonarSettings();
+        settings.setRefreshQueueThreads(1);
+        settings.setRefreshQueueCapacity(3);
+        queue = new SonarRefreshQueue(settings, collectorTask, projectRepository);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        queue.shutdown();
+    }
+
+    @Test
+    public void coalescesProjectQueuedAgainBeforeItsRefresh() throws InterruptedException {
+        SonarProject running = project();
+        SonarProject queued = project();
+        SonarProject other = project();
+        SonarProject last = project();
+        when(projectRepository.findById(running.getId())).thenReturn(Optional.of(running));
+        when(projectRepository.findById(queued.getId())).thenReturn(Optional.of(queued));
+        when(projectRepository.findById(other.getId())).thenReturn(Optional.of(other));
+        when(projectRepository.findById(last.getId())).thenReturn(Optional.of(last));
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            started.countDown();
+            release.await(5, TimeUnit.SECONDS);
+            return null;
+        }).when(collectorTask).refreshProjects(SERVER, Collections.singletonList(running));
+
+        SonarRefreshTicket first = queue.enqueue(running);
+        assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+        SonarRefreshTicket second = queue.enqueue(queued);
+        SonarRefreshTicket again = queue.enqueue(queued);
+        queue.enqueue(other);
+        queue.enqueue(last);
+
+        assertThat(first.getStatus()).isEqualTo(SonarRefreshTicket.Status.RUNNING);
+        assertThat(again).isSameAs(second);
+        assertThat(second.getStatus()).isEqualTo(SonarRefreshTicket.Status.QUEUED);
+        // the capacity of 3 is taken
+        assertThat(queue.enqueue(project())).isNull();
+        release.countDown();
+
+        // refreshes run in order, so every earlier one is done once the last ran
+        verify(collectorTask, timeout(5000)).refreshProjects(SERVER, Collections.singletonList(last));
+        verify(collectorTask).refreshProjects(SERVER, Collections.singletonList(running));
+        verify(collectorTask).refreshProjects(SERVER, Collections.singletonList(queued));
+        verify(collectorTask).refreshProjects(SERVER, Collections.singletonList(other));
+        assertThat(queue.getTicket(second.getId())).isSameAs(second);
+        assertThat(second.getStatus()).isEqualTo(SonarRefreshTicket.Status.REFRESHED);
+        assertThat(second.getFinishedAt()).isGreaterThanOrEqualTo(second.getStartedAt());
+    }
+
+    @Test
+    public void holdsRefreshRequestedWhileProjectIsRunningUntilItFinishes() throws InterruptedException {
+        SonarSettings settings = new SonarSettings();
+        settings.setRefreshQueueThreads(2);
+        settings.setRefreshQueueCapacity(3);
+        SonarRefreshQueue twoWorkers = new SonarRefreshQueue(settings, collectorTask, projectRepository);
+        try {
+            CountDownLatch started = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+            AtomicInteger concurrent = new AtomicInteger();
+            AtomicInteger maxConcurrent = new AtomicInteger();
+            AtomicInteger calls = new AtomicInteger();
+            Callable<SonarRefreshTicket.Status> refresh = () -> {
+                maxConcurrent.accumulateAndGet(concurrent.incrementAndGet(), Math::max);
+                if (calls.incrementAndGet() == 1) {
+                    started.countDown();
+                    release.await(5, TimeUnit.SECONDS);
+                }
+                concurrent.decrementAndGet();
+                return SonarRefreshTicket.Status.REFRESHED;
+            };
+
+            SonarRefreshTicket first = twoWorkers.submit("project:1", refresh);
+            assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+            SonarRefreshTicket second = twoWorkers.submit("project:1", refresh);
+            SonarRefreshTicket again = twoWorkers.submit("project:1", refresh);
+
+            assertThat(again).isSameAs(second);
+            assertThat(second.getStatus()).isEqualTo(SonarRefreshTicket.Status.QUEUED);
+            release.countDown();
+
+            await(second);
+            assertThat(first.getStatus()).isEqualTo(SonarRefreshTicket.Status.REFRESHED);
+            assertThat(second.getStartedAt()).isGreaterThanOrEqualTo(first.getFinishedAt());
+            assertThat(calls.get()).isEqualTo(2);
+            assertThat(maxConcurrent.get()).isEqualTo(1);
+        } finally {
+            twoWorkers.shutdown();
+        }
+    }
+
+    @Test
+    public void reportsProjectDisabledSinceQueuedAndFailedRefreshes() {
+        SonarProject project = project();
+        SonarProject disabled = project();
+        disabled.setId(project.getId());
+        disabled.setEnabled(false);
+        SonarProject last = project();
+        when(projectRepository.findById(project.getId())).thenReturn(Optional.of(disabled));
+
+        SonarRefreshTicket skipped = queue.enqueue(project);
+        SonarRefreshTicket failed = queue.submit("failing", () -> {
+            throw new IllegalStateException("sonar is down");
+        });
+        SonarRefreshTicket done = queue.submit(last.getId().toHexString(), () -> {
+            collectorTask.refreshProjects(SERVER, Collections.singletonList(last));
+            return SonarRefreshTicket.Status.REFRESHED;
+        });
+
+        verify(collectorTask, timeout(5000)).refreshProjects(SERVER, Collections.singletonList(last));
+        verifyNoMoreInteractions(collectorTask);
+        assertThat(skipped.getStatus()).isEqualTo(SonarRefreshTicket.Status.NOT_FOUND);
+        assertThat(failed.getStatus()).isEqualTo(SonarRefreshTicket.Status.FAILED);
+        assertThat(failed.getMessage()).isEqualTo("sonar is down");
+        assertThat(queue.getTicket(done.getId())).isSameAs(done);
+        assertThat(queue.getTicket("unknown")).isNull();
+    }
+
+    private static void await(SonarRefreshTicket ticket) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!ticket.getStatus().isFinished() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(ticket.getStatus().isFinished()).isTrue();
+    }
+
+    private static SonarProject project() {
+        SonarProject project = new SonarProject();
+        project.setId(new ObjectId());
+        project.setProjectName(project.getId().toHexString());
+        project.setInstanceUrl(SERVER);
+        project.setEnabled(true);
+        return project;
+    }
+}
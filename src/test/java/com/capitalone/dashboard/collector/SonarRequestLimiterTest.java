@@ -0,0 +1,179 @@
+package com.capitalone.dashboard.collector;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.ClientHttpRequestExecution;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.mock.http.client.MockClientHttpRequest;
+import org.springframework.mock.http.client.MockClientHttpResponse;
+
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class SonarRequestLimiterTest {
+    private static final String SONAR_URL = "http://sonar.com";
+    private static final MockClientHttpRequest REQUEST = new MockClientHttpRequest(HttpMethod.GET, URI.create(SONAR_URL + "/api/server/version"));
+
+    private SonarSettings settings;
+    private SimpleMeterRegistry meterRegistry;
+
+    @BeforeEach
+    public void init() {
+        settings = new SonarSettings();
+        settings.setMaxInFlightRequests(20);
+        settings.setSlowRequestMillis(5000);
+        meterRegistry = new SimpleMeterRegistry();
+    }
+
+    @Test
+    public void throttledCallHalvesLimitAndIsSentAgainAfterRetryAfter() throws Exception {
+        SonarRequestLimiter limiter = new SonarRequestLimiter(settings, new SonarCollectorMetrics(meterRegistry));
+        List<Long> sentAt = new ArrayList<>();
+        ClientHttpRequestExecution execution = (request, body) -> {
+            sentAt.add(System.nanoTime());
+            if (sentAt.size() == 1) {
+                MockClientHttpResponse throttled = new MockClientHttpResponse(new byte[0], HttpStatus.TOO_MANY_REQUESTS);
+                throttled.getHeaders().add(HttpHeaders.RETRY_AFTER, "1");
+                return throttled;
+            }
+            return new MockClientHttpResponse(new byte[0], HttpStatus.OK);
+        };
+
+        ClientHttpResponse response = limiter.intercept(REQUEST, new byte[0], execution);
+
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(sentAt).hasSize(2);
+        assertThat(sentAt.get(1) - sentAt.get(0)).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(900));
+        assertThat(meterRegistry.get("sonar.client.limit").tag("instance", SONAR_URL).gauge().value()).isEqualTo(10);
+        assertThat(meterRegistry.get("sonar.client.requests").tags("endpoint", "/api/server/version", "phase", "version", "status", "429")
+                .timer().count()).isEqualTo(1);
+    }
+
+    @Test
+    public void successfulCallsRaiseTheLimitBackTowardsTheMaximum() throws Exception {
+        SonarRequestLimiter limiter = new SonarRequestLimiter(settings, new SonarCollectorMetrics(meterRegistry));
+        limiter.intercept(REQUEST, new byte[0], (request, body) -> new MockClientHttpResponse(new byte[0], HttpStatus.SERVICE_UNAVAILABLE));
+        assertThat(limiter.getLimit(SONAR_URL).getLimit()).isEqualTo(10);
+
+        for (int i = 0; i < 11; i++) {
+            limiter.intercept(REQUEST, new byte[0], (request, body) -> new MockClientHttpResponse(new byte[0], HttpStatus.OK));
+        }
+
+        assertThat(limiter.getLimit(SONAR_URL).getLimit()).isEqualTo(11);
+    }
+
+    @Test
+    public void inFlightLimitHoldsBackCalls() throws Exception {
+        settings.setMaxInFlightRequests(2);
+        SonarRequestLimiter limiter = new SonarRequestLimiter(settings, new SonarCollectorMetrics(meterRegistry));
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger mostRunning = new AtomicInteger();
+        ClientHttpRequestExecution execution = (request, body) -> {
+            mostRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            running.decrementAndGet();
+            return new MockClientHttpResponse(new byte[0], HttpStatus.OK);
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<ClientHttpResponse>> calls = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                calls.add(executor.submit(() -> limiter.intercept(REQUEST, new byte[0], execution)));
+            }
+            long deadline = System.currentTimeMillis() + 5000;
+            while (meterRegistry.find("sonar.client.queue").gauge() == null
+                    || meterRegistry.get("sonar.client.queue").gauge().value() < 2) {
+                assertThat(System.currentTimeMillis()).isLessThan(deadline);
+                Thread.sleep(10);
+            }
+            assertThat(meterRegistry.get("sonar.client.inflight").gauge().value()).isEqualTo(2);
+            release.countDown();
+            for (Future<ClientHttpResponse> call : calls) {
+                assertThat(call.get(5, TimeUnit.SECONDS).getStatusCode()).isEqualTo(HttpStatus.OK);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertThat(mostRunning.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void failingMetricsNeitherReplaceTheResponseNorKeepThePermit() throws Exception {
+        settings.setMaxInFlightRequests(1);
+        SonarRequestLimiter limiter = new SonarRequestLimiter(settings, new SonarCollectorMetrics(meterRegistry) {
+            @Override
+            public void recordRequest(String instance, String endpoint, int status, Duration latency) {
+                throw new IllegalStateException("registry closed");
+            }
+        });
+
+        for (int i = 0; i < 2; i++) {
+            ClientHttpResponse response = limiter.intercept(REQUEST, new byte[0],
+                    (request, body) -> new MockClientHttpResponse(new byte[0], HttpStatus.OK));
+            assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        }
+        assertThat(limiter.getLimit(SONAR_URL).getInFlight()).isZero();
+    }
+
+    @Test
+    public void failedCallReleasesItsPermit() throws Exception {
+        settings.setMaxInFlightRequests(1);
+        SonarRequestLimiter limiter = new SonarRequestLimiter(settings, new SonarCollectorMetrics(meterRegistry));
+
+        assertThatThrownBy(() -> limiter.intercept(REQUEST, new byte[0], (request, body) -> {
+            throw new SocketTimeoutException("Read timed out");
+        })).isInstanceOf(SocketTimeoutException.class);
+
+        assertThat(limiter.getLimit(SONAR_URL).getInFlight()).isZero();
+        assertThat(limiter.getLimit(SONAR_URL).getLimit()).isEqualTo(1);
+    }
+
+    @Test
+    public void maxRequestsPerSecondSpacesCalls() throws Exception {
+        settings.setMaxRequestsPerSecond(20);
+        SonarRequestLimiter limiter = new SonarRequestLimiter(settings, new SonarCollectorMetrics(meterRegistry));
+        long start = System.nanoTime();
+
+        for (int i = 0; i < 5; i++) {
+            limiter.intercept(REQUEST, new byte[0], (request, body) -> new MockClientHttpResponse(new byte[0], HttpStatus.OK));
+        }
+
+        assertThat(System.nanoTime() - start).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(190));
+    }
+
+    @Test
+    public void retryAfterIsReadAsSecondsOrDate() {
+        HttpHeaders seconds = new HttpHeaders();
+        seconds.add(HttpHeaders.RETRY_AFTER, "30");
+        HttpHeaders date = new HttpHeaders();
+        date.setDate(HttpHeaders.RETRY_AFTER, 1_000_000_000_000L + 10_000);
+        HttpHeaders tooLong = new HttpHeaders();
+        tooLong.add(HttpHeaders.RETRY_AFTER, "3600");
+
+        assertThat(SonarRequestLimiter.retryAfterNanos(seconds, 0)).isEqualTo(TimeUnit.SECONDS.toNanos(30));
+        assertThat(SonarRequestLimiter.retryAfterNanos(date, 1_000_000_000_000L)).isEqualTo(TimeUnit.SECONDS.toNanos(10));
+        assertThat(SonarRequestLimiter.retryAfterNanos(tooLong, 0)).isZero();
+        assertThat(SonarRequestLimiter.retryAfterNanos(new HttpHeaders(), 0)).isZero();
+    }
+}
@@ -0,0 +1,94 @@
+package com.capitalone.dashboard.collector;
+
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.client.RestOperations;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.GZIPOutputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SonarRestOperationsSupplierTest {
+    private static final String BODY = "{\"components\":[]}";
+
+    private HttpServer server;
+    private SonarRestOperationsSupplier supplier;
+    private final List<String> acceptEncodings = new CopyOnWriteArrayList<>();
+    private final Set<Integer> clientPorts = Collections.synchronizedSet(new HashSet<>());
+    private final List<String> queries = new CopyOnWriteArrayList<>();
+
+    @BeforeEach
+    public void init() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/api/projects/search", exchange -> {
+            acceptEncodings.add(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+            clientPorts.add(exchange.getRemoteAddress().getPort());
+            queries.add(exchange.getRequestURI().getRawQuery());
+            byte[] body = gzip(BODY);
+            exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+
+        SonarSettings settings = new SonarSettings();
+        settings.setRequestConnectTimeout(1000);
+        settings.setRequestReadTimeout(1000);
+        settings.setMaxConnectionsPerHost(2);
+        settings.setMaxConnections(2);
+        supplier = new SonarRestOperationsSupplier(settings, new SonarRequestLimiter(settings, new SonarCollectorMetrics(new SimpleMeterRegistry())));
+    }
+
+    @AfterEach
+    public void close() {
+        supplier.close();
+        server.stop(0);
+    }
+
+    @Test
+    public void requestsGzipAndReusesConnections() {
+        RestOperations rest = supplier.get();
+        String url = "http://localhost:" + server.getAddress().getPort() + "/api/projects/search";
+
+        for (int i = 0; i < 3; i++) {
+            assertThat(rest.getForObject(url, String.class)).isEqualTo(BODY);
+        }
+
+        assertThat(supplier.get()).isSameAs(rest);
+        assertThat(acceptEncodings).allSatisfy(encoding -> assertThat(encoding).contains("gzip"));
+        assertThat(clientPorts).hasSize(1);
+    }
+
+    @Test
+    public void sendsEncodedUrlsAsTheyAre() {
+        String url = "http://localhost:" + server.getAddress().getPort() + "/api/projects/search?projects="
+                + DefaultSonar6Client.encode("a+b:c&d") + "," + DefaultSonar6Client.encode("e f");
+
+        supplier.get().getForObject(url, String.class);
+
+        assertThat(queries).containsExactly("projects=a%2Bb%3Ac%26d,e+f");
+    }
+
+    private static byte[] gzip(String text) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(text.getBytes(StandardCharsets.UTF_8));
+        }
+        return bytes.toByteArray();
+    }
+}
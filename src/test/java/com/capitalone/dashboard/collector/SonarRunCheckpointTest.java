@@ -0,0 +1,160 @@
+package com.capitalone.dashboard.collector;
+
+import com.capitalone.dashboard.model.SonarCollectionRun;
+import com.capitalone.dashboard.model.SonarProject;
+import com.capitalone.dashboard.repository.SonarCollectionRunRepository;
+import org.apache.commons.collections4.ListUtils;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+public class SonarRunCheckpointTest {
+    private static final String INSTANCE = "http://sonar";
+    private static final long WINDOW = TimeUnit.HOURS.toMillis(1);
+
+    @Mock private SonarCollectionRunRepository repository;
+
+    @Test
+    public void savesCursorOfContiguousChunksAndProjectsDoneBeyondIt() {
+        when(repository.findById(INSTANCE)).thenReturn(Optional.empty());
+        List<SonarProject> projects = projects(6);
+        SonarRunCheckpoint checkpoint = SonarRunCheckpoint.open(repository, INSTANCE, INSTANCE, WINDOW);
+        List<SonarProject> remaining = checkpoint.remaining(reversed(projects));
+        assertThat(remaining).containsExactlyElementsOf(projects);
+        checkpoint.start(ListUtils.partition(remaining, 2));
+
+        checkpoint.chunkDone(0);
+        checkpoint.chunkDone(2);
+        checkpoint.snapshot().run();
+
+        SonarCollectionRun saved = savedRun();
+        assertThat(saved.getCursor()).isEqualTo(projects.get(1).getId());
+        assertThat(saved.getProcessed()).containsExactly(projects.get(4).getId(), projects.get(5).getId());
+        assertThat(saved.getProcessedCount()).isEqualTo(4);
+        assertThat(saved.isCompleted()).isFalse();
+        assertThat(checkpoint.isFinished()).isFalse();
+    }
+
+    @Test
+    public void resumesInterruptedRunWithinWindow() {
+        List<SonarProject> projects = projects(6);
+        SonarCollectionRun interrupted = new SonarCollectionRun(INSTANCE, INSTANCE, System.currentTimeMillis());
+        interrupted.setCursor(projects.get(1).getId());
+        interrupted.setProcessed(new ArrayList<>(Collections.singletonList(projects.get(4).getId())));
+        interrupted.setProcessedCount(3);
+        when(repository.findById(INSTANCE)).thenReturn(Optional.of(interrupted));
+
+        SonarRunCheckpoint checkpoint = SonarRunCheckpoint.open(repository, INSTANCE, INSTANCE, WINDOW);
+        List<SonarProject> remaining = checkpoint.remaining(projects);
+        assertThat(checkpoint.isResumed()).isTrue();
+        assertThat(remaining).containsExactly(projects.get(2), projects.get(3), projects.get(5));
+
+        checkpoint.start(ListUtils.partition(remaining, 2));
+        checkpoint.chunkDone(0);
+        checkpoint.snapshot().run();
+
+        SonarCollectionRun saved = savedRun();
+        // projects.get(4) was done before, so the cursor can pass it
+        assertThat(saved.getCursor()).isEqualTo(projects.get(3).getId());
+        assertThat(saved.getProcessed()).containsExactly(projects.get(4).getId());
+        assertThat(saved.getProcessedCount()).isEqualTo(5);
+    }
+
+    @Test
+    public void leavesFailedChunksOutOfTheRecord() {
+        when(repository.findById(INSTANCE)).thenReturn(Optional.empty());
+        List<SonarProject> projects = projects(6);
+        SonarRunCheckpoint checkpoint = SonarRunCheckpoint.open(repository, INSTANCE, INSTANCE, WINDOW);
+        checkpoint.start(ListUtils.partition(checkpoint.remaining(projects), 2));
+
+        checkpoint.chunkDone(0);
+        checkpoint.chunkFailed(1);
+        checkpoint.chunkDone(1);
+        checkpoint.chunkDone(2);
+        // a write of a chunk done before failed
+        checkpoint.projectFailed(projects.get(0).getId());
+        checkpoint.snapshot().run();
+
+        SonarCollectionRun saved = savedRun();
+        assertThat(saved.getCursor()).isNull();
+        assertThat(saved.getProcessed()).containsExactly(projects.get(4).getId(), projects.get(5).getId());
+        assertThat(saved.getProcessedCount()).isEqualTo(2);
+        assertThat(checkpoint.isFinished()).isTrue();
+    }
+
+    @Test
+    public void startsOverAfterCompletedOrStaleRun() {
+        SonarCollectionRun stale = new SonarCollectionRun(INSTANCE, INSTANCE, System.currentTimeMillis() - 2 * WINDOW);
+        stale.setCursor(new ObjectId());
+        when(repository.findById(INSTANCE)).thenReturn(Optional.of(stale));
+
+        SonarRunCheckpoint checkpoint = SonarRunCheckpoint.open(repository, INSTANCE, INSTANCE, WINDOW);
+
+        assertThat(checkpoint.isResumed()).isFalse();
+        List<SonarProject> projects = projects(2);
+        assertThat(checkpoint.remaining(projects)).containsExactlyElementsOf(projects);
+
+        checkpoint.start(ListUtils.partition(projects, 2));
+        checkpoint.chunkDone(0);
+        assertThat(checkpoint.isFinished()).isTrue();
+        checkpoint.complete();
+        assertThat(savedRun().isCompleted()).isTrue();
+    }
+
+    @Test
+    public void savesRecordWhenRunStarts() {
+        when(repository.findById(INSTANCE)).thenReturn(Optional.empty());
+        SonarRunCheckpoint checkpoint = SonarRunCheckpoint.open(repository, INSTANCE, INSTANCE, WINDOW);
+
+        checkpoint.start(ListUtils.partition(checkpoint.remaining(projects(2)), 1));
+
+        SonarCollectionRun saved = savedRun();
+        assertThat(saved.getId()).isEqualTo(INSTANCE);
+        assertThat(saved.getProcessedCount()).isZero();
+        assertThat(saved.isCompleted()).isFalse();
+        // the start counts as the last snapshot
+        assertThat(checkpoint.isSnapshotDue(WINDOW)).isFalse();
+        assertThat(checkpoint.isSnapshotDue(0)).isTrue();
+    }
+
+    /**
+     * @return the run record saved last
+     */
+    private SonarCollectionRun savedRun() {
+        ArgumentCaptor<SonarCollectionRun> saved = ArgumentCaptor.forClass(SonarCollectionRun.class);
+        verify(repository, atLeastOnce()).save(saved.capture());
+        return saved.getValue();
+    }
+
+    private static List<SonarProject> projects(int count) {
+        List<SonarProject> projects = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            SonarProject project = new SonarProject();
+            project.setId(new ObjectId());
+            project.setProjectName("project" + i);
+            projects.add(project);
+        }
+        return projects;
+    }
+
+    private static List<SonarProject> reversed(List<SonarProject> projects) {
+        List<SonarProject> reversed = new ArrayList<>(projects);
+        Collections.reverse(reversed);
+        return reversed;
+    }
+}
@@ -0,0 +1,160 @@
+package com.capitalone.dashboard.collector;
+
+import com.capitalone.dashboard.model.SonarProject;
+import com.capitalone.dashboard.repository.SonarShardLeaseRepository;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.dao.DataAccessResourceFailureException;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+public class SonarShardCoordinatorTest {
+    private static final String REPLICA = "replica-1";
+
+    @Mock private SonarShardLeaseRepository leaseRepository;
+    private SonarSettings settings;
+    private SonarShardCoordinator coordinator;
+
+    @BeforeEach
+    public void setUp() {
+        settings = new SonarSettings();
+        settings.setShardCount(4);
+        settings.setShardBy("project");
+        settings.setShardLeaseSeconds(60);
+        settings.setReplicaId(REPLICA);
+        coordinator = new SonarShardCoordinator(settings, leaseRepository);
+    }
+
+    @Test
+    public void ownsEverythingWhenNotSharded() {
+        settings.setShardCount(0);
+
+        SonarShardCoordinator.Assignment assignment = coordinator.assignment();
+
+        assertThat(assignment.ownsInstance("http://sonar")).isTrue();
+        assertThat(assignment.ownsProject(project("http://sonar"))).isTrue();
+        verifyNoInteractions(leaseRepository);
+    }
+
+    @Test
+    public void claimsEvenShareOfFreePartitions() {
+        when(leaseRepository.countLiveReplicas(anyLong())).thenReturn(2L);
+        when(leaseRepository.renew(eq(REPLICA), anyLong())).thenReturn(Collections.emptyList());
+        when(leaseRepository.claim(eq(0), eq(REPLICA), anyLong(), anyLong())).thenReturn(false);
+        when(leaseRepository.claim(eq(1), eq(REPLICA), anyLong(), anyLong())).thenReturn(true);
+        when(leaseRepository.claim(eq(2), eq(REPLICA), anyLong(), anyLong())).thenReturn(true);
+
+        SonarShardCoordinator.Assignment assignment = coordinator.assignment();
+
+        assertThat(assignment.getPartitions()).containsExactly(1, 2);
+        verify(leaseRepository).heartbeat(eq(REPLICA), anyLong());
+        verify(leaseRepository, never()).claim(eq(3), eq(REPLICA), anyLong(), anyLong());
+    }
+
+    @Test
+    public void releasesPartitionsBeyondShareWhenReplicasJoin() {
+        when(leaseRepository.countLiveReplicas(anyLong())).thenReturn(3L);
+        when(leaseRepository.renew(eq(REPLICA), anyLong())).thenReturn(Arrays.asList(0, 1, 2, 3, 7));
+
+        SonarShardCoordinator.Assignment assignment = coordinator.assignment();
+
+        assertThat(assignment.getPartitions()).containsExactly(0, 1);
+        verify(leaseRepository).release(2, REPLICA);
+        verify(leaseRepository).release(3, REPLICA);
+        verify(leaseRepository).release(7, REPLICA);
+        verify(leaseRepository, never()).claim(anyInt(), eq(REPLICA), anyLong(), anyLong());
+    }
+
+    @Test
+    public void keepsPartitionsHeldByRunInProgressUntilItEnds() {
+        when(leaseRepository.countLiveReplicas(anyLong())).thenReturn(1L, 2L, 2L);
+        when(leaseRepository.renew(eq(REPLICA), anyLong()))
+                .thenReturn(Collections.emptyList(), Arrays.asList(0, 1, 2, 3), Arrays.asList(0, 1, 2, 3));
+        when(leaseRepository.claim(anyInt(), eq(REPLICA), anyLong(), anyLong())).thenReturn(true);
+
+        SonarShardCoordinator.Assignment run = coordinator.hold();
+        // another replica joined while the run collects
+        SonarShardCoordinator.Assignment renewed = coordinator.rebalance();
+
+        assertThat(run.getPartitions()).containsExactly(0, 1, 2, 3);
+        assertThat(renewed.getPartitions()).containsExactly(0, 1, 2, 3);
+        verify(leaseRepository, never()).release(anyInt(), eq(REPLICA));
+
+        coordinator.release(run);
+        SonarShardCoordinator.Assignment afterRun = coordinator.rebalance();
+
+        assertThat(afterRun.getPartitions()).containsExactly(0, 1);
+        verify(leaseRepository).release(2, REPLICA);
+        verify(leaseRepository).release(3, REPLICA);
+    }
+
+    @Test
+    public void ownsNothingWhenLeasesCanNotBeRenewed() {
+        doThrow(new DataAccessResourceFailureException("down")).when(leaseRepository).heartbeat(eq(REPLICA), anyLong());
+
+        SonarShardCoordinator.Assignment assignment = coordinator.assignment();
+
+        assertThat(assignment.getPartitions()).isEmpty();
+        assertThat(assignment.ownsInstance("http://sonar")).isFalse();
+    }
+
+    @Test
+    public void runStopsHoldingItsPartitionsOnceUnrenewedLeasesExpire() {
+        when(leaseRepository.countLiveReplicas(anyLong())).thenReturn(2L);
+        when(leaseRepository.renew(eq(REPLICA), anyLong())).thenReturn(Arrays.asList(0, 1));
+        SonarShardCoordinator.Assignment run = coordinator.hold();
+        long renewedAt = System.currentTimeMillis();
+        doThrow(new DataAccessResourceFailureException("down")).when(leaseRepository).heartbeat(eq(REPLICA), anyLong());
+
+        coordinator.rebalance();
+
+        // the leases renewed last are good for another lease time, then another replica may claim them
+        assertThat(coordinator.holds(run, renewedAt)).isTrue();
+        assertThat(coordinator.holds(run, renewedAt + TimeUnit.SECONDS.toMillis(61))).isFalse();
+        assertThat(coordinator.holds(new SonarShardCoordinator.Assignment(4, false, Collections.singleton(2)), renewedAt))
+                .isFalse();
+    }
+
+    @Test
+    public void partitionsProjectsByIdOrByInstance() {
+        SonarProject project = project("http://sonar");
+        int byId = Math.floorMod(project.getId().toHexString().hashCode(), 4);
+        int byInstance = Math.floorMod("http://sonar".hashCode(), 4);
+
+        SonarShardCoordinator.Assignment projects = new SonarShardCoordinator.Assignment(4, false, Collections.singleton(byId));
+        SonarShardCoordinator.Assignment instances = new SonarShardCoordinator.Assignment(4, true, Collections.singleton(byInstance));
+        SonarShardCoordinator.Assignment others = new SonarShardCoordinator.Assignment(4, true,
+                Collections.singleton((byInstance + 1) % 4));
+
+        assertThat(projects.ownsProject(project)).isTrue();
+        assertThat(projects.collectsInstance("http://sonar")).isTrue();
+        assertThat(instances.ownsProject(project)).isTrue();
+        assertThat(instances.collectsInstance("http://sonar")).isTrue();
+        assertThat(others.ownsProject(project)).isFalse();
+        assertThat(others.collectsInstance("http://sonar")).isFalse();
+    }
+
+    private static SonarProject project(String instanceUrl) {
+        SonarProject project = new SonarProject();
+        project.setId(new ObjectId());
+        project.setInstanceUrl(instanceUrl);
+        return project;
+    }
+}
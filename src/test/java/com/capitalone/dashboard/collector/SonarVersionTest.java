@@ -0,0 +1,33 @@
+package com.capitalone.dashboard.collector;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class SonarVersionTest {
+
+    @Test
+    public void parseKeepsEveryPart() {
+        SonarVersion version = SonarVersion.parse("10.1.0.73491");
+
+        assertThat(version.getMajor()).isEqualTo(10);
+        assertThat(version.getMinor()).isEqualTo(1);
+        assertThat(version.toString()).isEqualTo("10.1.0.73491");
+        assertThat(version).isGreaterThan(SonarVersion.parse("9.9.2"));
+    }
+
+    @Test
+    public void parseIgnoresQualifiers() {
+        assertThat(SonarVersion.parse("7.9-SNAPSHOT")).isEqualTo(SonarVersion.parse("7.9.0"));
+        assertThat(SonarVersion.parse(" 6.3\n").isAtLeast(6, 3)).isTrue();
+        assertThat(SonarVersion.parse("6.2").isAtLeast(6, 3)).isFalse();
+    }
+
+    @Test
+    public void parseRejectsNonVersions() {
+        assertThrows(IllegalArgumentException.class, () -> SonarVersion.parse("<html>"));
+        assertThrows(IllegalArgumentException.class, () -> SonarVersion.parse(""));
+        assertThrows(IllegalArgumentException.class, () -> SonarVersion.parse(null));
+    }
+}
@@ -0,0 +1,242 @@
+package com.capitalone.dashboard.controller;
+
+import com.capitalone.dashboard.collector.SonarClient;
+import com.capitalone.dashboard.collector.SonarClientSelector;
+import com.capitalone.dashboard.collector.SonarCollectorTask;
+import com.capitalone.dashboard.collector.SonarRefreshQueue;
+import com.capitalone.dashboard.collector.SonarRefreshTicket;
+import com.capitalone.dashboard.collector.SonarServerSession;
+import com.capitalone.dashboard.collector.SonarVersion;
+import com.capitalone.dashboard.model.CodeQuality;
+import com.capitalone.dashboard.model.Collector;
+import com.capitalone.dashboard.model.SonarProject;
+import com.capitalone.dashboard.repository.CodeQualityRepository;
+import com.capitalone.dashboard.repository.CollectorRepository;
+import com.capitalone.dashboard.repository.SonarProjectRepository;
+import com.capitalone.dashboard.util.SonarCollectorUtil;
+import org.bson.types.ObjectId;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.client.RestClientException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+public class SonarControllerTest {
+    private static final String SERVER = "http://sonar";
+
+    @Mock private SonarProjectRepository sonarProjectRepository;
+    @Mock private CodeQualityRepository codeQualityRepository;
+    @Mock private CollectorRepository collectorRepository;
+    @Mock private SonarClientSelector sonarClientSelector;
+    @Mock private SonarRefreshQueue refreshQueue;
+    @Mock private SonarCollectorTask collectorTask;
+    @Mock private SonarClient sonarClient;
+    private SonarController controller;
+
+    @BeforeEach
+    public void setUp() {
+        controller = new SonarController(sonarProjectRepository, codeQualityRepository, collectorRepository,
+                sonarClientSelector, refreshQueue, collectorTask);
+    }
+
+    @Test
+    public void refreshQueuesLookupAndAnswersWithTicket() throws Exception {
+        SonarRefreshTicket ticket = new SonarRefreshTicket(System.currentTimeMillis());
+        ArgumentCaptor<Callable<SonarRefreshTicket.Status>> refresh = captor();
+        when(refreshQueue.submit(eq(SERVER + "|my-key|My Project"), refresh.capture())).thenReturn(ticket);
+
+        ResponseEntity<String> response = controller.refresh("My Project", "my-key", SERVER);
+
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.ACCEPTED);
+        assertThat(response.getBody()).contains("\"ticketId\":\"" + ticket.getId() + "\"", "\"status\":\"QUEUED\"");
+        assertThat(response.getHeaders().getLocation()).hasPath("/refresh/" + ticket.getId());
+        // nothing is asked of Sonar before a worker runs the refresh
+        verifyNoInteractions(sonarClientSelector);
+
+        Collector collector = new Collector();
+        collector.setId(new ObjectId());
+        SonarProject inSonar = new SonarProject();
+        inSonar.setProjectId("my-key");
+        SonarProject stored = new SonarProject();
+        stored.setProjectName("My Project");
+        when(sonarClientSelector.openSession(SERVER)).thenReturn(new SonarServerSession(SERVER, SonarVersion.parse("8.9"), sonarClient));
+        when(collectorRepository.findByName("Sonar")).thenReturn(collector);
+        when(sonarClient.getProject("my-key", SERVER)).thenReturn(inSonar);
+        when(sonarProjectRepository.findSonarProjectsByProjectName(collector.getId(), SERVER, "My Project"))
+                .thenReturn(Collections.singletonList(stored));
+
+        when(sonarClient.currentCodeQuality(stored)).thenReturn(new CodeQuality());
+        new SonarCollectorUtil(sonarProjectRepository, codeQualityRepository);
+
+        assertThat(refresh.getValue().call()).isEqualTo(SonarRefreshTicket.Status.REFRESHED);
+        verify(codeQualityRepository).save(any(CodeQuality.class));
+    }
+
+    @Test
+    public void refreshQueuesStoredProjectUnderTheKeyOfItsWebhookRefreshes() {
+        Collector collector = new Collector();
+        collector.setId(new ObjectId());
+        SonarProject stored = stored("My Project");
+        stored.setProjectId("AVu3b-MAphY78UZXuYHp");
+        stored.setProjectKey("my-key");
+        SonarRefreshTicket ticket = new SonarRefreshTicket(System.currentTimeMillis());
+        when(collectorRepository.findByName("Sonar")).thenReturn(collector);
+        when(sonarProjectRepository.findSonarProjectByKey(collector.getId(), SERVER, "my-key")).thenReturn(stored);
+        when(refreshQueue.submit(eq(SonarRefreshQueue.key(stored)), any())).thenReturn(ticket);
+
+        assertThat(controller.refresh("My Project", "my-key", SERVER).getStatusCode()).isEqualTo(HttpStatus.ACCEPTED);
+    }
+
+    @Test
+    public void refreshStatusReportsTicket() {
+        SonarRefreshTicket ticket = new SonarRefreshTicket(System.currentTimeMillis());
+        when(refreshQueue.getTicket(ticket.getId())).thenReturn(ticket);
+
+        assertThat(controller.refreshStatus(ticket.getId()).getBody()).contains("\"status\":\"QUEUED\"");
+        assertThat(controller.refreshStatus("unknown").getStatusCode()).isEqualTo(HttpStatus.NOT_FOUND);
+    }
+
+    @Test
+    public void refreshIsRefusedWhenQueueIsFull() {
+        when(refreshQueue.submit(any(), any())).thenReturn(null);
+
+        assertThat(controller.refresh("My Project", "my-key", SERVER).getStatusCode())
+                .isEqualTo(HttpStatus.SERVICE_UNAVAILABLE);
+    }
+
+    @Test
+    public void bulkRefreshResolvesEachInstanceOnceAndRefreshesItsProjectsTogether() throws Exception {
+        Collector collector = new Collector();
+        collector.setId(new ObjectId());
+        SonarProject first = stored("first");
+        SonarProject second = stored("second");
+        when(collectorRepository.findByName("Sonar")).thenReturn(collector);
+        when(sonarClientSelector.openSession(SERVER)).thenReturn(new SonarServerSession(SERVER, SonarVersion.parse("8.9"), sonarClient));
+        when(sonarClientSelector.openSession("http://down")).thenThrow(new RestClientException("connection refused"));
+        when(sonarProjectRepository.findSonarProject(collector.getId(), SERVER, "first")).thenReturn(first);
+        when(sonarProjectRepository.findSonarProject(collector.getId(), SERVER, "second")).thenReturn(second);
+        when(sonarClient.getProjectsByKey(SERVER, Collections.singletonList("missing"))).thenReturn(Collections.emptyMap());
+        Map<ObjectId, SonarRefreshTicket.Status> refreshed = new HashMap<>();
+        refreshed.put(first.getId(), SonarRefreshTicket.Status.REFRESHED);
+        refreshed.put(second.getId(), SonarRefreshTicket.Status.NOT_FOUND);
+        when(collectorTask.refreshProjects(SERVER, Arrays.asList(first, second))).thenReturn(refreshed);
+
+        ResponseEntity<String> response = controller.bulkRefresh(Arrays.asList(
+                new SonarRefreshRequest(SERVER, "first", "first"),
+                new SonarRefreshRequest("http://down", "other", "other"),
+                new SonarRefreshRequest(SERVER, "second", "second"),
+                new SonarRefreshRequest(SERVER, "missing", "missing"),
+                new SonarRefreshRequest(SERVER, null, "first"),
+                new SonarRefreshRequest(SERVER, "first", "first")));
+
+        JSONArray outcomes = (JSONArray) new JSONParser().parse(response.getBody());
+        assertThat(outcomes).extracting(outcome -> ((JSONObject) outcome).get("status"))
+                .containsExactly("REFRESHED", "FAILED", "NOT_FOUND", "NOT_FOUND", "FAILED", "REFRESHED");
+        verify(sonarClientSelector).openSession(SERVER);
+        // the analyses are claimed and stored by the collector task, never saved here
+        verifyNoInteractions(codeQualityRepository);
+        verify(sonarProjectRepository, never()).saveAll(any());
+    }
+
+    @Test
+    public void bulkRefreshLooksProjectsNotStoredUnderTheirKeyUpByKey() throws Exception {
+        Collector collector = new Collector();
+        collector.setId(new ObjectId());
+        SonarProject first = stored("first");
+        first.setProjectId(null);
+        SonarProject second = stored("second");
+        second.setProjectId(null);
+        when(collectorRepository.findByName("Sonar")).thenReturn(collector);
+        when(sonarClientSelector.openSession(SERVER)).thenReturn(new SonarServerSession(SERVER, SonarVersion.parse("6.7"), sonarClient));
+        Map<String, SonarProject> inSonar = new HashMap<>();
+        inSonar.put("first-key", listed("first-id", "first-key"));
+        inSonar.put("second-key", listed("second-id", "second-key"));
+        when(sonarClient.getProjectsByKey(SERVER, Arrays.asList("first-key", "second-key", "missing-key")))
+                .thenReturn(inSonar);
+        when(sonarProjectRepository.findSonarProjectsByProjectName(collector.getId(), SERVER, "first"))
+                .thenReturn(new ArrayList<>(Collections.singletonList(first)));
+        when(sonarProjectRepository.findSonarProjectsByProjectName(collector.getId(), SERVER, "second"))
+                .thenReturn(new ArrayList<>(Collections.singletonList(second)));
+        Map<ObjectId, SonarRefreshTicket.Status> refreshed = new HashMap<>();
+        refreshed.put(first.getId(), SonarRefreshTicket.Status.REFRESHED);
+        refreshed.put(second.getId(), SonarRefreshTicket.Status.REFRESHED);
+        when(collectorTask.refreshProjects(SERVER, Arrays.asList(first, second))).thenReturn(refreshed);
+
+        ResponseEntity<String> response = controller.bulkRefresh(Arrays.asList(
+                new SonarRefreshRequest(SERVER, "first", "first-key"),
+                new SonarRefreshRequest(SERVER, "second", "second-key"),
+                new SonarRefreshRequest(SERVER, "missing", "missing-key")));
+
+        JSONArray outcomes = (JSONArray) new JSONParser().parse(response.getBody());
+        assertThat(outcomes).extracting(outcome -> ((JSONObject) outcome).get("status"))
+                .containsExactly("REFRESHED", "REFRESHED", "NOT_FOUND");
+        assertThat(first.getProjectId()).isEqualTo("first-id");
+        verify(sonarProjectRepository).saveAll(Arrays.asList(first, second));
+        verify(sonarClient, never()).forEachProjectPage(any(), any());
+        verify(sonarClient, never()).getProject(any(), any());
+    }
+
+    @Test
+    public void bulkRefreshFailsTheProjectsOfAnInstanceItCouldNotRefresh() throws Exception {
+        Collector collector = new Collector();
+        collector.setId(new ObjectId());
+        SonarProject first = stored("first");
+        when(collectorRepository.findByName("Sonar")).thenReturn(collector);
+        when(sonarClientSelector.openSession(SERVER)).thenReturn(new SonarServerSession(SERVER, SonarVersion.parse("8.9"), sonarClient));
+        when(sonarProjectRepository.findSonarProject(collector.getId(), SERVER, "first")).thenReturn(first);
+        when(collectorTask.refreshProjects(SERVER, Collections.singletonList(first)))
+                .thenThrow(new RestClientException("connection refused"));
+
+        ResponseEntity<String> response = controller.bulkRefresh(Collections.singletonList(
+                new SonarRefreshRequest(SERVER, "first", "first")));
+
+        JSONObject outcome = (JSONObject) ((JSONArray) new JSONParser().parse(response.getBody())).get(0);
+        assertThat(outcome.get("status")).isEqualTo("FAILED");
+        assertThat(outcome.get("message")).isEqualTo("connection refused");
+    }
+
+    private static SonarProject listed(String projectId, String projectKey) {
+        SonarProject project = new SonarProject();
+        project.setInstanceUrl(SERVER);
+        project.setProjectId(projectId);
+        project.setProjectKey(projectKey);
+        return project;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ArgumentCaptor<Callable<SonarRefreshTicket.Status>> captor() {
+        return ArgumentCaptor.forClass(Callable.class);
+    }
+
+    private static SonarProject stored(String key) {
+        SonarProject project = new SonarProject();
+        project.setId(new ObjectId());
+        project.setInstanceUrl(SERVER);
+        project.setProjectName(key);
+        project.setProjectId(key);
+        return project;
+    }
+}
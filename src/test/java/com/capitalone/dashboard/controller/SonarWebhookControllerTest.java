@@ -0,0 +1,155 @@
+package com.capitalone.dashboard.controller;
+
+import com.capitalone.dashboard.collector.SonarRefreshQueue;
+import com.capitalone.dashboard.collector.SonarRefreshTicket;
+import com.capitalone.dashboard.collector.SonarSettings;
+import com.capitalone.dashboard.model.SonarCollector;
+import com.capitalone.dashboard.model.SonarProject;
+import com.capitalone.dashboard.repository.SonarCollectorRepository;
+import com.capitalone.dashboard.repository.SonarProjectRepository;
+import com.capitalone.dashboard.util.SonarWebhookSignature;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+@ExtendWith(MockitoExtension.class)
+public class SonarWebhookControllerTest {
+    private static final String SECRET = "s3cr3t";
+    private static final String SERVER = "http://sonar";
+
+    @Mock private SonarCollectorRepository sonarCollectorRepository;
+    @Mock private SonarProjectRepository sonarProjectRepository;
+    @Mock private SonarRefreshQueue refreshQueue;
+    private SonarCollector collector;
+    private SonarWebhookController controller;
+
+    @BeforeEach
+    public void setUp() {
+        SonarSettings settings = new SonarSettings();
+        settings.setWebhookSecret(SECRET);
+        collector = SonarCollector.prototype(Arrays.asList(SERVER, "http://other"), Collections.emptyList());
+        collector.setId(new ObjectId());
+        controller = new SonarWebhookController(settings, sonarCollectorRepository, sonarProjectRepository, refreshQueue);
+    }
+
+    @Test
+    public void refusesUnsignedPayload() {
+        byte[] payload = payload(SERVER, "SUCCESS");
+
+        ResponseEntity<String> response = controller.webhook(payload, SonarWebhookSignature.sign("wrong", payload), null);
+
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.FORBIDDEN);
+        verifyNoInteractions(sonarCollectorRepository, sonarProjectRepository, refreshQueue);
+    }
+
+    @Test
+    public void queuesRefreshOfProjectStoredUnderKey() {
+        SonarProject project = project();
+        when(sonarCollectorRepository.findByName("Sonar")).thenReturn(collector);
+        when(sonarProjectRepository.findSonarProject(collector.getId(), SERVER, "my-project")).thenReturn(project);
+        when(refreshQueue.enqueue(project)).thenReturn(new SonarRefreshTicket(System.currentTimeMillis()));
+
+        ResponseEntity<String> response = webhook(payload(SERVER + "/", "SUCCESS"));
+
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.ACCEPTED);
+        verify(refreshQueue).enqueue(project);
+    }
+
+    @Test
+    public void findsProjectStoredUnderComponentIdByKey() {
+        SonarProject project = project();
+        project.setProjectKey("my-project");
+        when(sonarCollectorRepository.findByName("Sonar")).thenReturn(collector);
+        when(sonarProjectRepository.findSonarProjectByKey(collector.getId(), SERVER, "my-project")).thenReturn(project);
+        when(refreshQueue.enqueue(project)).thenReturn(new SonarRefreshTicket(System.currentTimeMillis()));
+
+        ResponseEntity<String> response = webhook(payload(SERVER, "SUCCESS"));
+
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.ACCEPTED);
+    }
+
+    @Test
+    public void doesNotRefreshProjectOfTheSameNameUnderAnotherKey() {
+        when(sonarCollectorRepository.findByName("Sonar")).thenReturn(collector);
+
+        ResponseEntity<String> response = webhook(payload(SERVER, "SUCCESS"));
+
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        verify(sonarProjectRepository, never()).findSonarProjectsByProjectName(any(), any(), any());
+        verify(refreshQueue, never()).enqueue(any());
+    }
+
+    @Test
+    public void checksSignatureOverPostedJsonBytes() throws Exception {
+        MockMvc mockMvc = MockMvcBuilders.standaloneSetup(controller).build();
+        SonarProject project = project();
+        when(sonarCollectorRepository.findByName("Sonar")).thenReturn(collector);
+        when(sonarProjectRepository.findSonarProject(collector.getId(), SERVER, "my-project")).thenReturn(project);
+        when(refreshQueue.enqueue(project)).thenReturn(new SonarRefreshTicket(System.currentTimeMillis()));
+        // signed as sent, with a name that is not ascii
+        byte[] payload = payload(SERVER, "SUCCESS", "Projekt \u00fc");
+
+        mockMvc.perform(post("/webhook").contentType(MediaType.APPLICATION_JSON).content(payload)
+                        .header(SonarWebhookSignature.HEADER, SonarWebhookSignature.sign(SECRET, payload)))
+                .andExpect(status().isAccepted());
+        mockMvc.perform(post("/webhook").contentType(MediaType.TEXT_PLAIN).content(payload)
+                        .header(SonarWebhookSignature.HEADER, SonarWebhookSignature.sign(SECRET, payload)))
+                .andExpect(status().isUnsupportedMediaType());
+        verify(refreshQueue).enqueue(project);
+    }
+
+    @Test
+    public void ignoresFailedAnalysesAndUnknownServers() {
+        when(sonarCollectorRepository.findByName("Sonar")).thenReturn(collector);
+
+        assertThat(webhook(payload(SERVER, "FAILED")).getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(webhook(payload("http://unknown", "SUCCESS")).getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(webhook("[]".getBytes(StandardCharsets.UTF_8)).getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST);
+        verify(refreshQueue, never()).enqueue(any());
+    }
+
+    private ResponseEntity<String> webhook(byte[] payload) {
+        return controller.webhook(payload, SonarWebhookSignature.sign(SECRET, payload), null);
+    }
+
+    private static byte[] payload(String serverUrl, String status) {
+        return payload(serverUrl, status, "My Project");
+    }
+
+    private static byte[] payload(String serverUrl, String status, String projectName) {
+        return ("{\"serverUrl\":\"" + serverUrl + "\",\"taskId\":\"AVh21JS2JepAEhwQ-b3u\",\"status\":\"" + status + "\","
+                + "\"analysedAt\":\"2016-11-18T10:46:28+0100\","
+                + "\"project\":{\"key\":\"my-project\",\"name\":\"" + projectName + "\",\"url\":\"" + serverUrl + "/dashboard\"}}")
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static SonarProject project() {
+        SonarProject project = new SonarProject();
+        project.setId(new ObjectId());
+        project.setProjectName(project.getId().toHexString());
+        project.setInstanceUrl(SERVER);
+        project.setEnabled(true);
+        return project;
+    }
+}
@@ -0,0 +1,128 @@
+package com.capitalone.dashboard.repository;
+
+import com.capitalone.dashboard.model.CodeQuality;
+import com.capitalone.dashboard.model.SonarProject;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.ServerAddress;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.BsonDocument;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+public class SonarBulkWriterTest {
+    private static final int DUPLICATE_KEY = 11000;
+
+    @Mock private MongoOperations mongoOperations;
+    @Mock private BulkOperations projectWrites;
+    @Mock private BulkOperations codeQualityWrites;
+
+    private SonarBulkWriter writer;
+
+    @BeforeEach
+    public void init() {
+        writer = new SonarBulkWriter(mongoOperations, 100, 0, new SimpleMeterRegistry().timer("write"));
+    }
+
+    @Test
+    public void updatesOnlyProjectsWhoseCodeQualityWasInserted() {
+        stubBulkWrites();
+        SonarProject inserted = sonarProject();
+        SonarProject failed = sonarProject();
+        SonarProject collectedBefore = sonarProject();
+        doThrow(bulkFailure(new BulkWriteError(121, "validation failed", new BsonDocument(), 1)))
+                .when(codeQualityWrites).execute();
+        List<ObjectId> failedProjects = new ArrayList<>();
+        AtomicBoolean checkpointed = new AtomicBoolean();
+        writer.onFlush(() -> () -> checkpointed.set(true));
+        writer.onFailedWrite(failedProjects::add);
+
+        writer.saveCodeQuality(inserted, new CodeQuality());
+        writer.saveCodeQuality(failed, new CodeQuality());
+        writer.saveLastAnalysisTimestamp(collectedBefore);
+        writer.flush();
+
+        ArgumentCaptor<Query> updated = ArgumentCaptor.forClass(Query.class);
+        verify(projectWrites, times(2)).updateOne(updated.capture(), any(Update.class));
+        assertThat(updated.getAllValues()).extracting(query -> query.getQueryObject().get("_id"))
+                .containsExactly(inserted.getId(), collectedBefore.getId());
+        assertThat(failedProjects).containsExactly(failed.getId());
+        assertThat(checkpointed).isFalse();
+    }
+
+    @Test
+    public void treatsDuplicateKeyAsInsertedByEarlierFlush() {
+        stubBulkWrites();
+        SonarProject project = sonarProject();
+        doThrow(bulkFailure(new BulkWriteError(DUPLICATE_KEY, "duplicate key", new BsonDocument(), 0)))
+                .when(codeQualityWrites).execute();
+
+        writer.saveCodeQuality(project, new CodeQuality());
+        writer.flush();
+
+        verify(projectWrites).updateOne(any(Query.class), any(Update.class));
+    }
+
+    @Test
+    public void buffersWritesAgainWhenFlushFails() {
+        stubBulkWrites();
+        SonarProject project = sonarProject();
+        CodeQuality codeQuality = new CodeQuality();
+        doThrow(new DataAccessResourceFailureException("connection reset")).doReturn(null)
+                .when(codeQualityWrites).execute();
+
+        writer.saveCodeQuality(project, codeQuality);
+        assertThatThrownBy(writer::flush).isInstanceOf(DataAccessResourceFailureException.class);
+        ObjectId firstAttemptId = codeQuality.getId();
+        writer.flush();
+
+        verify(codeQualityWrites, times(2)).insert(Collections.singletonList(codeQuality));
+        verify(projectWrites).updateOne(any(Query.class), any(Update.class));
+        assertThat(firstAttemptId).isNotNull();
+        assertThat(codeQuality.getId()).isEqualTo(firstAttemptId);
+    }
+
+    private void stubBulkWrites() {
+        when(mongoOperations.bulkOps(BulkOperations.BulkMode.UNORDERED, SonarProject.class)).thenReturn(projectWrites);
+        when(mongoOperations.bulkOps(BulkOperations.BulkMode.UNORDERED, CodeQuality.class)).thenReturn(codeQualityWrites);
+    }
+
+    private static BulkOperationException bulkFailure(BulkWriteError... errors) {
+        List<BulkWriteError> writeErrors = Arrays.asList(errors);
+        return new BulkOperationException("bulk write failed",
+                new MongoBulkWriteException(BulkWriteResult.unacknowledged(), writeErrors, null, new ServerAddress()));
+    }
+
+    private static SonarProject sonarProject() {
+        SonarProject project = new SonarProject();
+        project.setId(new ObjectId());
+        return project;
+    }
+}
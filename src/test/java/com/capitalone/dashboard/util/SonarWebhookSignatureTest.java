@@ -0,0 +1,33 @@
+package com.capitalone.dashboard.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SonarWebhookSignatureTest {
+    private static final String SECRET = "s3cr3t";
+    private static final byte[] BODY = "{\"status\":\"SUCCESS\",\"project\":{\"key\":\"my-project\",\"name\":\"Projekt \u00fc\"}}"
+            .getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void signsLikeSonar() {
+        // echo -n 'The quick brown fox jumps over the lazy dog' | openssl dgst -sha256 -hmac key
+        assertThat(SonarWebhookSignature.sign("key", "The quick brown fox jumps over the lazy dog"))
+                .isEqualTo("f7bc83f430538424b13298e6aa6fb143ef4d59a14946175997479dbc2d1a3cd8");
+    }
+
+    @Test
+    public void acceptsOnlySignatureOfBodyWithSecret() {
+        String signature = SonarWebhookSignature.sign(SECRET, BODY);
+
+        assertThat(SonarWebhookSignature.isValid(SECRET, BODY, signature)).isTrue();
+        assertThat(SonarWebhookSignature.isValid(SECRET, BODY, signature.toUpperCase())).isTrue();
+        assertThat(SonarWebhookSignature.isValid(SECRET, Arrays.copyOf(BODY, BODY.length + 1), signature)).isFalse();
+        assertThat(SonarWebhookSignature.isValid("other", BODY, signature)).isFalse();
+        assertThat(SonarWebhookSignature.isValid(SECRET, BODY, null)).isFalse();
+        assertThat(SonarWebhookSignature.isValid("", BODY, signature)).isFalse();
+    }
+}